@@ -1,15 +1,11 @@
 package com.lob.tunner.client;
 
-import com.lob.tunner.BlockUtils;
-import com.lob.tunner.BufferUtils;
 import com.lob.tunner.common.Block;
+import com.lob.tunner.handlers.DataForwardHandler;
 import com.lob.tunner.logger.AutoLog;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.util.ReferenceCountUtil;
-
-import java.nio.ByteBuffer;
 
 /**
  * ClientConnectionHandler handles a client connection by
@@ -19,9 +15,7 @@ import java.nio.ByteBuffer;
  * 4. read data from tunnel
  * 5. respond data to channel
  */
-public class ClientConnectionHandler extends ChannelInboundHandlerAdapter {
-    private EventLoopGroup remoteLoopGroup = TunnelClient.REMOTEWORKER;
-
+public class ClientConnectionHandler extends DataForwardHandler {
     /**
      * Channel to Client APP
      */
@@ -47,57 +41,24 @@ public class ClientConnectionHandler extends ChannelInboundHandlerAdapter {
         boolean canWrite = ctx.channel().isWritable();
         AutoLog.WARN.log(ctx.channel() + " 可写性：" + canWrite);
 
-        _clientConnection.channel().config().setAutoRead(canWrite);
+        _clientConnection.updateAutoRead();
         super.channelWritabilityChanged(ctx);
     }
 
 
+    @Override
+    protected int segment() {
+        return _clientConnection.segment();
+    }
+
     /**
      * Read something on channel, let's respond to server ...
-     * @param localCtx
-     * @param msg
-     * @throws Exception
+     * @param data
      */
     @Override
-    public void channelRead(ChannelHandlerContext localCtx, Object msg) throws Exception {
-        ByteBuf buf = (ByteBuf)msg;
-
-        //
-        // Create a block from the buffer and send it to tunnel
-        int bytes = buf.readableBytes();
-
-        for(;;) {
-            // we need to split to smaller packets!!! Unlucky!!!!
-            if(bytes > Block.MAX_LENGTH) {
-                ByteBuffer data = ByteBuffer.allocate(Block.MAX_LENGTH);
-                buf.readBytes(data);
-
-                Block block = new Block(
-                        _clientConnection.getID(),
-                        BlockUtils.sequence(_clientConnection.nextRequest()),
-                        Block.MAX_LENGTH, data
-                );
-
-                _clientConnection.request(block);
-
-                bytes -= Block.MAX_LENGTH;
-
-                continue;
-            }
-
-            Block block = new Block(
-                    _clientConnection.getID(),
-                    BlockUtils.sequence(_clientConnection.nextRequest()),
-                    (short)bytes, BufferUtils.toNioBuffer(buf)
-            );
-
-            _clientConnection.request(block);
-
-            break;
-        }
-
-
-        ReferenceCountUtil.release(msg);
+    protected void forward(ByteBuf data) {
+        Block block = Block.data(_clientConnection.getID(), _clientConnection.nextRequest(), data);
+        _clientConnection.request(block);
     }
 
     @Override
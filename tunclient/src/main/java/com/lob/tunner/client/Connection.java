@@ -1,31 +1,79 @@
 package com.lob.tunner.client;
 
-import com.lob.tunner.BlockUtils;
-import com.lob.tunner.BufferUtils;
-import com.lob.tunner.OOOException;
+import com.lob.tunner.Timeoutable;
 import com.lob.tunner.common.Block;
+import com.lob.tunner.common.Config;
+import com.lob.tunner.common.FlowControl;
+import com.lob.tunner.common.ReorderBuffer;
+import com.lob.tunner.common.ReplayBuffer;
+import com.lob.tunner.common.Segmenter;
 import com.lob.tunner.logger.AutoLog;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.socket.SocketChannel;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represent a connection from client APP
  */
-public class Connection {
+public class Connection extends Timeoutable {
     private static final AtomicInteger _COUNTER = new AtomicInteger();
 
     private final int _id;
     private final SocketChannel _channel;
     private Tunnel _tunnel;
 
-    private short _reqSeq = 0;
-    private short _resSeq = 0;
+    /**
+     * Other tunnels the connection is striped over, data blocks go on whichever of them and _tunnel has the
+     * fewest bytes queued. Only used in the event loop of _channel
+     */
+    private final ArrayList<Tunnel> _stripes = new ArrayList<>();
+    private int _nextStripe = 0;
+
+    private int _reqSeq = 0;
+
+    /**
+     * Sequence after the last data block sent to tunnel, only used in the event loop of _channel
+     */
+    private int _sent = 0;
+
+    /**
+     * Heard from server, so it has the connection started. Only used in the event loop of _channel
+     */
+    private boolean _acknowledged = false;
+
+    /**
+     * Started on a tunnel whose server takes FEATURE_RESUME, so it may be moved to other tunnels. Only used in
+     * the event loop of _channel
+     */
+    private boolean _resumable = false;
+
+    /**
+     * Aborted by server, close once blocks up to this sequence are written, -1 if not aborted
+     */
+    private int _abortAt = -1;
+
+    /**
+     * Only used in the event loop of _channel
+     */
+    private final FlowControl _flow = new FlowControl(Config.getWindow());
+    private final ReorderBuffer _reorder = new ReorderBuffer();
+    private final ReplayBuffer _replay = new ReplayBuffer();
+    private final Segmenter.Sender _sender = new Segmenter.Sender();
 
-    private long _lastWrite = System.currentTimeMillis();
-    private long _lastRead = System.currentTimeMillis();
+    /**
+     * Traffic of the connection for classifying it, only used in the event loop of _channel
+     */
+    private static final double _ALPHA = 0.3;
+    private long _bytes = 0;
+    private double _rate = 0;
+    private boolean _elephant = false;
+
+    /**
+     * Scheduling weight, on both sides of the tunnel
+     */
+    private final int _weight = Config.getWeight();
 
     public Connection(SocketChannel channel) {
         _id = (int)((System.currentTimeMillis() / 1000) * 1000) + _COUNTER.incrementAndGet() % 1000;
@@ -38,48 +86,219 @@ public class Connection {
         return _id;
     }
 
+    public int weight() {
+        return _weight;
+    }
+
     public void attach(Tunnel tunnel) {
         _tunnel = tunnel;
     }
 
-    public short nextRequest() {
-        short seq = _reqSeq;
-        _reqSeq = BlockUtils.nextSeqence(seq);
-        return seq;
+    /**
+     * Stripe over one more tunnel (CODE_STRIPE sent already)
+     * @param tunnel
+     */
+    public void stripe(Tunnel tunnel) {
+        _stripes.add(tunnel);
+    }
+
+    /**
+     * Back to _tunnel only
+     */
+    public void unstripe() {
+        for(Tunnel tunnel : _stripes) {
+            if(tunnel != _tunnel) {
+                tunnel.remove(_id);
+            }
+        }
+
+        _stripes.clear();
+    }
+
+    /**
+     * Tunnels the connection is on, its own and those striped over
+     * @return
+     */
+    public int stripes() {
+        return _stripes.size() + 1;
+    }
+
+    public boolean striped(Tunnel tunnel) {
+        return tunnel == _tunnel || _stripes.contains(tunnel);
+    }
+
+    /**
+     * Take a sample of bytes read and written since last one
+     * @param nanos - since last sample
+     * @return bytes per second, smoothed
+     */
+    public double sample(long nanos) {
+        _rate = _ALPHA * (_bytes * 1e9 / nanos) + (1 - _ALPHA) * _rate;
+        _bytes = 0;
+
+        return _rate;
+    }
+
+    /**
+     * Flagged as long bulk transfer, moved to a bulk tunnel
+     * @return
+     */
+    public boolean elephant() {
+        return _elephant;
+    }
+
+    public void elephant(boolean elephant) {
+        _elephant = elephant;
+    }
+
+    /**
+     * Start the connection on its tunnel, with our window if larger than the initial one. Servers not knowing
+     * CODE_CREDIT just ignore it
+     */
+    public void start() {
+        if(_tunnel.credited()) {
+            _flow.limit();
+        }
+
+        _resumable = _tunnel.resumable();
+
+        _tunnel.write(Block.start(_id, _weight));
+
+        int grant = _flow.initialGrant();
+        if(grant > 0) {
+            _tunnel.write(Block.credit(_id, _flow.grant(grant), -1));
+        }
+    }
+
+    /**
+     * Moved to another tunnel after the one we were on failed (CODE_RESUME sent already), send again what
+     * server hasn't acknowledged and the credit we granted. Called in our event loop
+     */
+    public void resumed() {
+        AutoLog.INFO.log(
+                "Resuming connection %08x on tunnel %08x, replaying %d blocks (%d bytes)",
+                _id, _tunnel.getID(), _replay.size(), _replay.bytes()
+        );
+
+        _replay.replay(_tunnel::write);
+        _tunnel.write(Block.credit(_id, _flow.grant(0), _reorder.next()));
+    }
+
+    /**
+     * Sequence after the last data block received in order
+     * @return
+     */
+    public int received() {
+        return _reorder.next();
+    }
+
+    /**
+     * Sequence after the last data block sent
+     * @return
+     */
+    public int sent() {
+        return _sent;
+    }
+
+    /**
+     * Server has started the connection, so it could be moved to another tunnel
+     * @return
+     */
+    public boolean acknowledged() {
+        return _acknowledged;
     }
 
-    public long lastRead() {
-        return _lastRead;
+    /**
+     * Server takes CODE_RESUME, known when the connection was started. Connections started before the server
+     * answered CODE_HELLO stay on their tunnel
+     * @return
+     */
+    public boolean resumable() {
+        return _resumable;
     }
 
-    public long lastWrite() {
-        return _lastWrite;
+    public int nextRequest() {
+        return _reqSeq++;
     }
 
+    /**
+     * Close on the connection's event loop, where the shard owning it runs
+     * @param now
+     */
+    @Override
     public void timeout(long now) {
         AutoLog.WARN.log(
                 "Timing out connection %08x (lastRead=%d secs, lastWrite=%d secs)",
-                _id, (now - _lastRead) / 1000, (now - _lastWrite) / 1000
+                _id, (now - lastRead()) / 1000, (now - lastWrite()) / 1000
         );
 
-        TunnelManager.getInstance().close(this);
+        _channel.eventLoop().execute(() -> TunnelManager.getInstance().close(this));
     }
 
     /**
-     * Write response back to client APP
+     * Write response back to client APP, could come on any tunnel of the shard (after being moved), blocks
+     * are put back in sequence on our event loop. Blocks received already (replayed by server after a
+     * tunnel failed) are dropped
      * @param block
-     * @throws OOOException
      */
-    public void respond(Block block) throws OOOException {
-        short seq = block.sequence();
-        if(_resSeq != seq) {
-            AutoLog.ERROR.log("Got response with incorrect sequence %d (expecting %d) on connection %08x!!!", seq, _resSeq, _id);
-            throw new OOOException(_resSeq, seq);
+    public void respond(Block block) {
+        if(!_channel.eventLoop().inEventLoop()) {
+            _channel.eventLoop().execute(() -> respond(block));
+            return;
+        }
+
+        _acknowledged = true;
+
+        if(!_reorder.add(block, this::_respond)) {
+            AutoLog.DEBUG.log("Dropping duplicate response on connection %08x", _id);
+        }
+
+        if(_abortAt >= 0 && _reorder.next() == _abortAt) {
+            _tunnel.shard().aborted(this);
+        }
+    }
+
+    /**
+     * Aborted by server, close once all blocks it sent are written to client APP. Could be called from any thread
+     * @param last - sequence after the last data block sent by server, -1 if not known
+     */
+    public void aborted(int last) {
+        if(!_channel.eventLoop().inEventLoop()) {
+            _channel.eventLoop().execute(() -> aborted(last));
+            return;
+        }
+
+        if(last < 0 || _reorder.next() == last) {
+            _tunnel.shard().aborted(this);
         }
+        else {
+            AutoLog.INFO.log("Connection %08x aborted, waiting for blocks up to %d (next=%d)", _id, last, _reorder.next());
+            _abortAt = last;
+        }
+    }
+
+    private void _respond(Block block) {
+        int seq = block.sequence();
+        if(block.content() == null) {
+            return;
+        }
+
+        _bytes += block.length();
+
+        // ownership of the payload goes to netty, it will be released once written out
+        int length = block.length();
+        ChannelFuture future = _channel.writeAndFlush(block.content());
 
-        _resSeq = BlockUtils.nextSeqence(seq);
+        // credit server back once drained to client APP, listeners are notified in our event loop
+        future.addListener(f -> {
+            if(f.isSuccess()) {
+                int grant = _flow.drained(length);
+                if(grant > 0) {
+                    _tunnel.write(Block.credit(_id, _flow.grant(grant), _reorder.next()));
+                }
+            }
+        });
 
-        ChannelFuture future = _channel.writeAndFlush(BufferUtils.fromNioBuffer(block.data()));
         if(block.length() >= 0x8FFF) {
             long start = System.currentTimeMillis();
             future.addListener(f -> {
@@ -93,12 +312,94 @@ public class Connection {
             });
         }
 
-        _lastWrite = System.currentTimeMillis();
+        updateWrite();
+    }
+
+    /**
+     * Longest data block to cut from what was just read from client APP, called in our event loop
+     * @return
+     */
+    public int segment() {
+        return _tunnel.segmenter().segment(_sender);
     }
 
+    /**
+     * Send data read from client APP to tunnel if holding credit, called in our event loop
+     * @param block
+     */
     public void request(Block block) {
-        _tunnel.write(block);
-        _lastRead = System.currentTimeMillis();
+        _bytes += block.length();
+
+        if(!_flow.send(block, this::_send)) {
+            updateAutoRead();
+        }
+
+        updateRead();
+    }
+
+    /**
+     * Credit granted by server, and blocks it has acknowledged
+     * @param granted - in total
+     * @param ack - sequence after the last block server has, -1 if none
+     */
+    public void credit(int granted, int ack) {
+        if(!_channel.eventLoop().inEventLoop()) {
+            _channel.eventLoop().execute(() -> credit(granted, ack));
+            return;
+        }
+
+        _acknowledged = true;
+
+        if(ack >= 0) {
+            _replay.ack(ack);
+        }
+
+        // server grants, so it takes FEATURE_CREDIT even if its CODE_HELLO answer came after we started
+        _flow.limit();
+        if(_flow.credit(granted, this::_send)) {
+            updateAutoRead();
+        }
+    }
+
+    /**
+     * Send a data block, kept until server acknowledges it if it could be resumed
+     * @param block
+     */
+    private void _send(Block block) {
+        _stripe().write(_resumable ? _replay.sent(block) : block);
+        _sent = block.sequence() + 1;
+    }
+
+    /**
+     * Tunnel to send the next data block on, the one with the fewest bytes queued, in turns if even
+     * @return
+     */
+    private Tunnel _stripe() {
+        if(_stripes.isEmpty()) {
+            return _tunnel;
+        }
+
+        int count = _stripes.size() + 1;
+        int start = _nextStripe % count;
+        _nextStripe = start + 1;
+
+        Tunnel best = null;
+        for(int idx = 0; idx < count; idx++) {
+            int pos = (start + idx) % count;
+            Tunnel tunnel = pos == _stripes.size() ? _tunnel : _stripes.get(pos);
+            if(tunnel.ready() && (best == null || tunnel.pending() < best.pending())) {
+                best = tunnel;
+            }
+        }
+
+        return best == null ? _tunnel : best;
+    }
+
+    /**
+     * Read from client APP only if we could send and respond, called in our event loop
+     */
+    public void updateAutoRead() {
+        _channel.config().setAutoRead(_channel.isWritable() && !_flow.blocked());
     }
 
     public Tunnel tunnel() {
@@ -109,7 +410,22 @@ public class Connection {
         return _channel;
     }
 
+    private void _drop() {
+        _flow.drop();
+        _reorder.drop();
+        _replay.drop();
+    }
+
     public void shutdown() {
+        disarm();
+
+        if(_channel.eventLoop().inEventLoop()) {
+            _drop();
+        }
+        else {
+            _channel.eventLoop().execute(this::_drop);
+        }
+
         try {
             /**
              *
@@ -0,0 +1,493 @@
+package com.lob.tunner.client;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.common.Block;
+import com.lob.tunner.common.BlockReader;
+import com.lob.tunner.common.BlockScheduler;
+import com.lob.tunner.common.Config;
+import com.lob.tunner.handlers.CompactEncoder;
+import com.lob.tunner.logger.AutoLog;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.internal.PlatformDependent;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.channel.ChannelDirectTcpip;
+import org.apache.sshd.client.future.AuthFuture;
+import org.apache.sshd.client.future.ConnectFuture;
+import org.apache.sshd.client.future.OpenFuture;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.channel.StreamingChannel;
+import org.apache.sshd.common.config.keys.FilePasswordProvider;
+import org.apache.sshd.common.io.IoInputStream;
+import org.apache.sshd.common.io.IoOutputStream;
+import org.apache.sshd.common.io.IoReadFuture;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.session.ConnectionService;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.apache.sshd.common.util.security.SecurityUtils;
+import org.apache.sshd.core.CoreModuleProperties;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tunnel transport over a SSH direct-tcpip channel (Apache MINA SSHD, NIO2).
+ *
+ * Unlike SshTransport, no thread is dedicated to a tunnel. All tunnels share one SSH client and its small
+ * NIO2 worker pool; blocks are decoded in read completion callbacks and queued blocks are written out in
+ * batches, one outstanding write at a time.
+ */
+public class SshAsyncTransport implements TunnelTransport {
+    /**
+     * NIO2 threads shared by all tunnels
+     */
+    private static final int _WORKERS = 2;
+    private static final int _READ_SIZE = 64 * 1024;
+    private static final int _BATCH_SIZE = 256 * 1024;
+
+    private static SshClient _CLIENT = null;
+
+    private static synchronized SshClient _client() {
+        if(_CLIENT == null) {
+            SshClient client = SshClient.setUpDefaultClient();
+            client.setServerKeyVerifier(AcceptAllServerKeyVerifier.INSTANCE);
+
+            CoreModuleProperties.NIO_WORKERS.set(client, _WORKERS);
+            // tunnels live as long as the client, keep them even when there's no traffic
+            CoreModuleProperties.IDLE_TIMEOUT.set(client, Duration.ZERO);
+            CoreModuleProperties.NIO2_READ_TIMEOUT.set(client, Duration.ZERO);
+
+            client.start();
+            _CLIENT = client;
+        }
+
+        return _CLIENT;
+    }
+
+    private final Queue<Block> _blocks = PlatformDependent.newMpscQueue();
+    private final AtomicLong _pending = new AtomicLong(0);
+
+    /**
+     * Set while a write is outstanding, only the one setting it could poll the queue
+     */
+    private final AtomicBoolean _writing = new AtomicBoolean(false);
+    private final ArrayList<Block> _batch = new ArrayList<>();
+
+    /**
+     * Order of blocks queued, only accessed by the one setting _writing
+     */
+    private BlockScheduler _scheduler = new BlockScheduler();
+
+    /**
+     * Only accessed by the one setting _writing, null until switched to the compact framing
+     */
+    private CompactEncoder _compact = null;
+    private final ArrayList<ByteBuf> _frames = new ArrayList<>();
+
+    private final BlockReader _reader = new BlockReader();
+    private final ByteArrayBuffer _readBuffer = new ByteArrayBuffer(_READ_SIZE, false);
+
+    private volatile boolean _stop = false;
+
+    private Tunnel _tunnel;
+    private int _forwardPort = 8080;
+    private volatile ClientSession _session = null;
+    private DirectTcpipChannel _channel = null;
+    private volatile IoOutputStream _out = null;
+    private IoInputStream _in = null;
+
+    /**
+     * Connect to SSH server at target:port and forward to forwardPort on the server, everything after
+     * initiating the connection is done in completion callbacks
+     * @param tunnel
+     * @param target
+     * @param port
+     * @param forwardPort
+     * @throws IOException
+     */
+    @Override
+    public void start(Tunnel tunnel, String target, int port, int forwardPort) throws IOException {
+        _tunnel = tunnel;
+        _forwardPort = forwardPort;
+        _scheduler = new BlockScheduler(tunnel::weight);
+
+        String user = Config.getServerUser();
+        if(user == null || user.isEmpty()) {
+            user = System.getProperty("user.name");
+        }
+
+        AutoLog.INFO.log("Try starting a new tunnel by connecting to SSH server %s:%d as %s ...", target, port, user);
+        _client().connect(user, target, port).addListener(this::_connected);
+    }
+
+    @Override
+    public void write(Block block) {
+        _pending.addAndGet(block.length());
+        _blocks.offer(block);
+        _flush();
+    }
+
+    @Override
+    public long pending() {
+        return _pending.get();
+    }
+
+    @Override
+    public void shutdown() {
+        _stop = true;
+
+        ClientSession session = _session;
+        if(session != null) {
+            session.close(true);
+        }
+
+        _flush();
+    }
+
+    private void _connected(ConnectFuture future) {
+        if(!future.isConnected()) {
+            _fail("Cannot connect to remote SSH server!", future.getException());
+            return;
+        }
+
+        _session = future.getClientSession();
+        if(_stop) {
+            _session.close(true);
+            return;
+        }
+
+        try {
+            String key = Config.getServerKey();
+            if(key != null && !key.isEmpty()) {
+                AutoLog.INFO.log("Try auth with pub key %s ...", key);
+
+                try(InputStream is = new FileInputStream(key)) {
+                    Iterable<KeyPair> keys = SecurityUtils.loadKeyPairIdentities(
+                            _session, NamedResource.ofName(key), is, FilePasswordProvider.of(TunnelClient.password)
+                    );
+
+                    for(KeyPair kp : keys) {
+                        _session.addPublicKeyIdentity(kp);
+                    }
+                }
+            }
+            else {
+                _session.addPasswordIdentity(Config.getServerPass());
+            }
+
+            _session.auth().addListener(this::_authenticated);
+        }
+        catch(Exception e) {
+            _fail("Cannot load identity of user - " + _session.getUsername(), e);
+        }
+    }
+
+    private void _authenticated(AuthFuture future) {
+        if(!future.isSuccess()) {
+            _fail("Cannot authenticate user - " + _session.getUsername(), future.getException());
+            return;
+        }
+
+        AutoLog.INFO.log("Tunnel established ...");
+
+        /**
+         * todo: we always try to forward to a port on remote "local" host
+         */
+        final String remoteHost = "127.0.0.1";
+
+        try {
+            _channel = new DirectTcpipChannel(
+                    new SshdSocketAddress(Config.getListenAddress(), Config.getListenPort()),
+                    new SshdSocketAddress(remoteHost, _forwardPort)
+            );
+
+            _session.getService(ConnectionService.class).registerChannel(_channel);
+            _channel.open().addListener(this::_opened);
+        }
+        catch(IOException ioe) {
+            _fail("Cannot open direct-tcpip channel!", ioe);
+        }
+    }
+
+    private void _opened(OpenFuture future) {
+        if(!future.isOpened()) {
+            _fail("Cannot open direct-tcpip channel!", future.getException());
+            return;
+        }
+
+        AutoLog.INFO.log("Tunnel channel opened, forwarding to port %d ...", _forwardPort);
+
+        _in = _channel.getAsyncOut();
+        _out = _channel.getAsyncIn();
+
+        _read();
+        _tunnel.connected((int)Math.min(Integer.MAX_VALUE, _channel.getRemoteWindow().getPacketSize()));
+
+        // write out blocks queued while connecting
+        _flush();
+    }
+
+    private void _read() {
+        _readBuffer.clear();
+        _in.read(_readBuffer).addListener(this::_received);
+    }
+
+    private void _received(IoReadFuture future) {
+        Throwable t = future.getException();
+        if(t != null) {
+            _reader.close();
+            _fail("Encounter exception while reading!", t);
+            return;
+        }
+
+        Buffer buffer = future.getBuffer();
+        _reader.write(buffer.array(), buffer.rpos(), buffer.available());
+
+        Block block;
+        while((block = _reader.next()) != null) {
+            _tunnel.received(block);
+        }
+
+        if(!_stop) {
+            _read();
+        }
+    }
+
+    /**
+     * Start writing queued blocks unless a write is outstanding, blocks are dropped once stopped
+     */
+    private void _flush() {
+        while((!_blocks.isEmpty() || !_scheduler.isEmpty()) && _writing.compareAndSet(false, true)) {
+            if(_stop) {
+                _drop();
+                _writing.set(false);
+                continue;
+            }
+
+            if(_out == null) {
+                // channel not opened yet, _opened() will flush
+                _writing.set(false);
+                if(_out == null) {
+                    return;
+                }
+                continue;
+            }
+
+            ByteArrayBuffer buffer = _encode();
+            if(buffer == null) {
+                // queue emptied by someone else in between
+                _writing.set(false);
+                continue;
+            }
+
+            try {
+                _out.writeBuffer(buffer).addListener(this::_written);
+            }
+            catch(IOException ioe) {
+                _writing.set(false);
+                _fail("Encounter exception while writing!", ioe);
+            }
+
+            return;
+        }
+    }
+
+    private void _written(IoWriteFuture future) {
+        _writing.set(false);
+
+        if(!future.isWritten()) {
+            _fail("Encounter exception while writing!", future.getException());
+            return;
+        }
+
+        // blocks queued while writing
+        _flush();
+    }
+
+    /**
+     * Take queued blocks (up to _BATCH_SIZE bytes) in the order of scheduler and encode them into one buffer
+     * @return null if nothing is queued
+     */
+    private ByteArrayBuffer _encode() {
+        int bytes = 0;
+
+        Block block;
+        while((block = _blocks.poll()) != null) {
+            _scheduler.add(block);
+        }
+
+        long taken = 0;
+        while(bytes < _BATCH_SIZE && (block = _scheduler.next()) != null) {
+            _batch.add(block);
+            bytes += block.frameLength();
+            taken += block.length();
+
+            if(_compact == null && CompactEncoder.switches(block)) {
+                // blocks after it go in the next batch, compact
+                break;
+            }
+        }
+
+        _pending.addAndGet(-taken);
+
+        if(_batch.isEmpty()) {
+            return null;
+        }
+
+        if(_compact != null) {
+            return _encodeCompact();
+        }
+
+        Block last = _batch.get(_batch.size() - 1);
+        int switching = CompactEncoder.switches(last) ? Block.framingFeaturesOf(last) : -1;
+        ByteArrayBuffer buffer = new ByteArrayBuffer(bytes, false);
+        byte[] array = buffer.array();
+        int position = 0;
+
+        for(Block b : _batch) {
+            _count(b);
+
+            int length = b.length();
+            array[position++] = (byte)(b.getTypeSeq() >> 8);
+            array[position++] = (byte)b.getTypeSeq();
+            array[position++] = (byte)(length >> 8);
+            array[position++] = (byte)length;
+            array[position++] = (byte)(b.connection() >> 24);
+            array[position++] = (byte)(b.connection() >> 16);
+            array[position++] = (byte)(b.connection() >> 8);
+            array[position++] = (byte)b.connection();
+
+            int frame = position - 8 + b.frameLength();
+            if(b.extended()) {
+                array[position++] = (byte)(b.sequence() >> 24);
+                array[position++] = (byte)(b.sequence() >> 16);
+                array[position++] = (byte)(b.sequence() >> 8);
+                array[position++] = (byte)b.sequence();
+            }
+
+            if(length > 0) {
+                ByteBuf content = b.content();
+                content.getBytes(content.readerIndex(), array, position, length);
+            }
+
+            System.arraycopy(BlockUtils.PADDING, 0, array, position + length, frame - position - length);
+            position = frame;
+
+            b.release();
+        }
+
+        buffer.wpos(position);
+        _batch.clear();
+
+        if(switching >= 0) {
+            _compact = new CompactEncoder(PooledByteBufAllocator.DEFAULT, switching);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Encode blocks taken in the compact framing into one buffer
+     * @return
+     */
+    private ByteArrayBuffer _encodeCompact() {
+        for(Block b : _batch) {
+            _count(b);
+            _compact.write(b, _frames);
+            b.release();
+        }
+
+        _compact.flush(_frames);
+        _batch.clear();
+
+        int bytes = 0;
+        for(ByteBuf frame : _frames) {
+            bytes += frame.readableBytes();
+        }
+
+        ByteArrayBuffer buffer = new ByteArrayBuffer(bytes, false);
+        byte[] array = buffer.array();
+        int position = 0;
+
+        for(ByteBuf frame : _frames) {
+            int length = frame.readableBytes();
+            frame.getBytes(frame.readerIndex(), array, position, length);
+            position += length;
+
+            frame.release();
+        }
+
+        buffer.wpos(position);
+        _frames.clear();
+
+        return buffer;
+    }
+
+    private void _count(Block block) {
+        if (block.type() == Block.BLOCK_DATA) {
+            TunnelManager.TotalWrite.add(block.length());
+
+            AutoLog.INFO.log(
+                    "Write out data block (seq=%d, length=%d) for connection %08x on tunnel %08x ...",
+                    block.sequence(), block.length(), block.connection(), _tunnel.getID()
+            );
+        }
+    }
+
+    private void _fail(String message, Throwable t) {
+        if(!_stop) {
+            AutoLog.ERROR.exception(t).log(message);
+            // todo: how to abort
+        }
+
+        _tunnel.closed();
+        shutdown();
+    }
+
+    /**
+     * Drop blocks never written out, only called with _writing set
+     */
+    private void _drop() {
+        long bytes = 0;
+        Block block;
+        while((block = _blocks.poll()) != null) {
+            bytes += block.length();
+            block.release();
+        }
+
+        bytes += _scheduler.drop();
+        _pending.addAndGet(-bytes);
+
+        if(_compact != null) {
+            _compact.close();
+            _compact = null;
+        }
+    }
+
+    /**
+     * ChannelDirectTcpip only has async streams for writing, data received is always piped to an InputStream.
+     * Hand it to the async stream instead, so reads complete in callbacks
+     */
+    private static class DirectTcpipChannel extends ChannelDirectTcpip {
+        DirectTcpipChannel(SshdSocketAddress local, SshdSocketAddress remote) {
+            super(local, remote);
+            setStreaming(StreamingChannel.Streaming.Async);
+        }
+
+        @Override
+        protected void doWriteData(byte[] data, int off, long len) throws IOException {
+            asyncOut.write(new ByteArrayBuffer(data, off, (int)len));
+        }
+    }
+}
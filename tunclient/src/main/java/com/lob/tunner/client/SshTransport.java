@@ -0,0 +1,524 @@
+package com.lob.tunner.client;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.common.Block;
+import com.lob.tunner.common.BlockReader;
+import com.lob.tunner.common.BlockScheduler;
+import com.lob.tunner.common.Config;
+import com.lob.tunner.handlers.CompactEncoder;
+import com.lob.tunner.logger.AutoLog;
+import com.lob.tunner.logger.HexDump;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.common.SSHPacket;
+import net.schmizz.sshj.connection.channel.direct.AbstractDirectChannel;
+import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.userauth.UserAuthException;
+import net.schmizz.sshj.userauth.keyprovider.OpenSSHKeyFile;
+import net.schmizz.sshj.userauth.password.PasswordFinder;
+import net.schmizz.sshj.userauth.password.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tunnel transport over a SSH direct-tcpip channel (SSHJ).
+ *
+ * SSHJ is blocking, so there's a pair of threads per tunnel, one reading blocks from the channel and
+ * one writing queued blocks in batches. The writer is a virtual thread with "--threads virtual" on Java 21.
+ */
+public class SshTransport implements TunnelTransport {
+    private final ByteBuffer _headerOut = ByteBuffer.allocate(12);
+
+    /**
+     * Blocks are encoded into this buffer (sized to SSH channel's max packet) and written out together
+     */
+    private ByteBuffer _batch = null;
+
+    /**
+     * Only accessed by writer thread, null until switched to the compact framing
+     */
+    private CompactEncoder _compact = null;
+    private final ArrayList<ByteBuf> _frames = new ArrayList<>();
+
+    private final ArrayList<Block> _blocks = new ArrayList<>();
+    private final AtomicLong _pending = new AtomicLong(0);
+
+    /**
+     * Order of blocks taken from _blocks, only accessed by writer thread
+     */
+    private BlockScheduler _scheduler = new BlockScheduler();
+    private final Lock _lock = new ReentrantLock();
+    private final Condition _empty = _lock.newCondition();
+
+    private volatile boolean _stop = false;
+    private final SSHClient _client;
+    private Thread _reader;
+    private Thread _writer;
+
+    private Tunnel _tunnel;
+    private String _target = "localhost";
+    private int _port = 22;
+    private int _forwardPort = 8080;
+    private AbstractDirectChannel _channel = null;
+
+    public SshTransport() {
+        _client = new SSHClient();
+    }
+
+    /**
+     * Connect to SSH server at target:port and forward to forwardPort on the server, connecting is done on
+     * the writer thread so this won't block
+     * @param tunnel
+     * @param target
+     * @param port
+     * @param forwardPort
+     * @throws IOException
+     */
+    @Override
+    public void start(Tunnel tunnel, String target, int port, int forwardPort) throws IOException {
+        _tunnel = tunnel;
+        _target = target;
+        _port = port;
+        _forwardPort = forwardPort;
+        _scheduler = new BlockScheduler(tunnel::weight);
+
+        String name = String.format("tunnel-%08x", tunnel.getID());
+        // SSHJ channel reads wait on the buffer monitor, writer waits on _empty (and on the remote window briefly)
+        _reader = TunnelThreads.newThread(name + "-reader", this::_readerMain, true);
+        _writer = TunnelThreads.newThread(name + "-writer", this::_writerMain, false);
+
+        _writer.start();
+    }
+
+    @Override
+    public void write(Block block) {
+        _lock.lock();
+        try {
+            if(_stop) {
+                // writer stopped or stopping, it won't take blocks any more
+                block.release();
+                return;
+            }
+
+            _pending.addAndGet(block.length());
+            if(_blocks.isEmpty()) {
+                _empty.signal();
+            }
+
+            _blocks.add(block);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public long pending() {
+        return _pending.get();
+    }
+
+    @Override
+    public void shutdown() {
+        _stop = true;
+        IOUtils.closeQuietly(_client);
+    }
+
+    private void _connect() throws IOException {
+        _client.addHostKeyVerifier(new PromiscuousVerifier());
+
+        _client.loadKnownHosts();
+        _client.connect(_target, _port);
+
+        String user = Config.getServerUser();
+        if(user == null || user.isEmpty()) {
+            user = System.getProperty("user.name");
+        }
+
+        try {
+            AutoLog.DEBUG.log("Try authenticate using system user - " + user);
+
+            String key = Config.getServerKey();
+            if(key != null && !key.isEmpty()) {
+                OpenSSHKeyFile keyFile;
+                keyFile = new OpenSSHKeyFile();
+                keyFile.init(new File(key), new PasswordFinder() {
+                    @Override
+                    public char[] reqPassword(Resource<?> resource) {
+                        // final String pass = Config.getServerPass();
+                        final String pass = TunnelClient.password;
+                        return pass.toCharArray();
+                    }
+
+                    @Override
+                    public boolean shouldRetry(Resource<?> resource) {
+                        return false;
+                    }
+                });
+
+                AutoLog.INFO.log("Try auth with pub key %s and pass %s ...", key, TunnelClient.password);
+                _client.authPublickey(user, keyFile);
+            }
+            else {
+                _client.authPassword(user, Config.getServerPass());
+            }
+
+            AutoLog.INFO.log("Tunnel established ...");
+        }
+        catch(UserAuthException uae) {
+            AutoLog.ERROR.exception(uae).log("Cannot authenticate using default user - " + user);
+            throw new IOException("Invalid username / password!");
+        }
+
+        /**
+         * todo: we always try to forward to a port on remote "local" host
+         */
+        final String remoteHost = "127.0.0.1";
+        final LocalPortForwarder.Parameters params = new LocalPortForwarder.Parameters(
+                Config.getListenAddress(), Config.getListenPort(), remoteHost, _forwardPort
+        );
+
+        /**
+         * Create a direct channel
+         */
+        _channel = new DirectTCPIPChannel(_client.getConnection(), params);
+        _channel.open();
+    }
+
+    private void _readerMain() {
+        final BlockReader reader = new BlockReader(_channel.getInputStream());
+
+        try {
+            while (!_stop) {
+                Block block = reader.read();
+
+                _tunnel.received(block);
+            }
+        }
+        catch(IOException ioe) {
+            if(!_stop) {
+                AutoLog.ERROR.exception(ioe).log("Encounter exception while reading!");
+
+                // link is gone, connections are resumed on other tunnels
+                _tunnel.closed();
+                shutdown();
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private void _writeNoise(OutputStream os) throws IOException {
+        // ByteBuffer bb = ByteBuffer.allocate(1024);
+        // Block block = new Block(0, BlockUtils.control(Block.CODE_ECHO), (short)1024, bb);
+        Block block = new Block(0, BlockUtils.control(Block.CODE_ECHO));
+
+        // TODO: let's add random length of payload here ...
+        _writeBlock(os, block);
+    }
+
+    private void _count(Block block) {
+        if (block.type() == Block.BLOCK_DATA) {
+            TunnelManager.TotalWrite.add(block.length());
+
+            AutoLog.INFO.log(
+                    "Write out data block (seq=%d, length=%d) for connection %08x on tunnel %08x ...",
+                    block.sequence(), block.length(), block.connection(), _tunnel.getID()
+            );
+        }
+    }
+
+    /**
+     * Write one block directly on the stream
+     * @param os
+     * @param block
+     * @throws IOException
+     */
+    private void _writeBlock(OutputStream os, Block block) throws IOException {
+        _count(block);
+
+        long start = System.currentTimeMillis();
+        int length = block.length();
+
+        int bytes = block.frameLength();
+
+        // 1. respond header on channel, with sequence if extended
+        _headerOut.clear();
+        _headerOut.putShort(block.getTypeSeq());
+        _headerOut.putShort((short)(length & 0xFFFF));
+        _headerOut.putInt(block.connection());
+        if(block.extended()) {
+            _headerOut.putInt(block.sequence());
+        }
+
+        os.write(_headerOut.array(), 0, _headerOut.position());
+
+        // 2. if payload, respond payload
+        if(length > 0) {
+            AutoLog.DEBUG.log("Written header - %s", HexDump.dumpHexString(_headerOut.array(), 0, _headerOut.position()));
+            block.content().getBytes(block.content().readerIndex(), os, length);
+        }
+
+        // 3. if frame not multiple of 8, respond padding bytes
+        int padding = bytes - _headerOut.position() - length;
+        if(padding > 0) {
+            os.write(BlockUtils.PADDING, 0, padding);
+            AutoLog.DEBUG.log("Written padding - %s", HexDump.dumpHexString(BlockUtils.PADDING, 0, padding));
+        }
+
+        long end = System.currentTimeMillis();
+        if((end - start) > 0) {
+            AutoLog.INFO.log("!!!!!!!!%d bytes data written in %d milliseconds!!!!!!!!!", bytes, (end - start));
+        }
+    }
+
+    /**
+     * Encode blocks into the batch buffer, and write the buffer out each time it's full. Blocks larger than
+     * the buffer are written directly.
+     *
+     * @param os
+     * @param blocks
+     * @throws IOException
+     */
+    private void _writeBatch(OutputStream os, ArrayList<Block> blocks) throws IOException {
+        for(Block block : blocks) {
+            int length = block.length();
+            int frame = block.frameLength();
+
+            if(frame > _batch.remaining()) {
+                _writeBuffered(os);
+
+                if(frame > _batch.capacity()) {
+                    _writeBlock(os, block);
+                    continue;
+                }
+            }
+
+            _count(block);
+
+            _batch.putShort(block.getTypeSeq());
+            _batch.putShort((short)(length & 0xFFFF));
+            _batch.putInt(block.connection());
+            if(block.extended()) {
+                _batch.putInt(block.sequence());
+            }
+
+            if(length > 0) {
+                int position = _batch.position();
+                block.content().getBytes(block.content().readerIndex(), _batch.array(), position, length);
+                _batch.position(position + length);
+            }
+
+            _batch.put(BlockUtils.PADDING, 0, frame - 8 - block.extension() - length);
+        }
+
+        _writeBuffered(os);
+    }
+
+    /**
+     * Encode blocks in the compact framing, superframes are written out like a batch, those larger than the
+     * batch buffer directly
+     *
+     * @param os
+     * @param blocks
+     * @throws IOException
+     */
+    private void _writeCompact(OutputStream os, ArrayList<Block> blocks) throws IOException {
+        try {
+            for(Block block : blocks) {
+                _count(block);
+                _compact.write(block, _frames);
+            }
+
+            _compact.flush(_frames);
+
+            for(ByteBuf frame : _frames) {
+                int length = frame.readableBytes();
+                if(length > _batch.remaining()) {
+                    _writeBuffered(os);
+
+                    if(length > _batch.capacity()) {
+                        frame.getBytes(frame.readerIndex(), os, length);
+                        continue;
+                    }
+                }
+
+                int position = _batch.position();
+                frame.getBytes(frame.readerIndex(), _batch.array(), position, length);
+                _batch.position(position + length);
+            }
+        }
+        finally {
+            for(ByteBuf frame : _frames) {
+                frame.release();
+            }
+
+            _frames.clear();
+        }
+
+        _writeBuffered(os);
+    }
+
+    private void _writeBuffered(OutputStream os) throws IOException {
+        if(_batch.position() > 0) {
+            os.write(_batch.array(), 0, _batch.position());
+            _batch.clear();
+        }
+    }
+
+    private void _writerMain() {
+        try {
+            AutoLog.INFO.log("Try starting a new tunnel by connecting to SSH server ...");
+            _connect();
+
+            AutoLog.INFO.log("Tunnel created, starting tunnel reader ...");
+            _reader.start();
+            _tunnel.connected(_channel.getRemoteMaxPacketSize());
+
+            OutputStream os = _channel.getOutputStream();
+            _batch = ByteBuffer.allocate(_channel.getRemoteMaxPacketSize());
+
+            ArrayList<Block> blocks = new ArrayList<>();
+            while(!_stop) {
+                // if there are data, respond data, otherwise sleep and respond background data ...
+                _lock.lock();
+                try {
+                    if(_blocks.isEmpty() && _scheduler.isEmpty()) {
+                        if(!_empty.await(500, TimeUnit.MILLISECONDS)) {
+                            // time out
+                            if(false) {
+                                // let's not flush for testing purpose ...
+                                _writeNoise(os);
+                                os.flush();
+                            }
+                            continue;
+                        }
+                    }
+
+                    // take everything queued
+                    for(Block block : _blocks) {
+                        _scheduler.add(block);
+                    }
+                    _blocks.clear();
+                }
+                finally {
+                    _lock.unlock();
+                }
+
+                // one batch at a time in scheduled order, the rest waits in scheduler if SSH window is full
+                int bytes = 0;
+                Block next;
+                long taken = 0;
+                while(bytes < _batch.capacity() && (next = _scheduler.next()) != null) {
+                    blocks.add(next);
+                    bytes += next.frameLength();
+                    taken += next.length();
+
+                    if(_compact == null && CompactEncoder.switches(next)) {
+                        // blocks after it go in the next batch, compact
+                        break;
+                    }
+                }
+
+                _pending.addAndGet(-taken);
+
+                if(blocks.isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    if(_compact != null) {
+                        _writeCompact(os, blocks);
+                    }
+                    else if(blocks.size() == 1) {
+                        // single block, likely latency sensitive, no need to copy into batch buffer
+                        _writeBlock(os, blocks.get(0));
+                    }
+                    else {
+                        _writeBatch(os, blocks);
+                    }
+
+                    os.flush();
+
+                    Block last = blocks.get(blocks.size() - 1);
+                    if(_compact == null && CompactEncoder.switches(last)) {
+                        _compact = new CompactEncoder(PooledByteBufAllocator.DEFAULT, Block.framingFeaturesOf(last));
+                    }
+                }
+                finally {
+                    for(Block block : blocks) {
+                        block.release();
+                    }
+
+                    blocks.clear();
+                }
+            }
+
+            AutoLog.INFO.log("Tunnel stopped");
+        }
+        catch(InterruptedException ie) {
+            AutoLog.ERROR.exception(ie).log("Tunnel interrupted!");
+        }
+        catch(IOException ioe) {
+            AutoLog.ERROR.exception(ioe).log("Cannot connect to remote SSH server!");
+        }
+        finally {
+            _tunnel.closed();
+
+            if(_compact != null) {
+                _compact.close();
+                _compact = null;
+            }
+
+            if(_channel != null) {
+                IOUtils.closeQuietly(_channel);
+                _channel = null;
+            }
+
+            // reader and client go too, blocks written from now on are released right away
+            shutdown();
+
+            _lock.lock();
+            try {
+                // drop blocks never written out
+                for(Block block : _blocks) {
+                    block.release();
+                }
+
+                _blocks.clear();
+                _pending.set(0);
+            }
+            finally {
+                _lock.unlock();
+            }
+
+            _scheduler.drop();
+        }
+    }
+
+    private static class DirectTCPIPChannel extends AbstractDirectChannel {
+        final LocalPortForwarder.Parameters parameters;
+
+        DirectTCPIPChannel(net.schmizz.sshj.connection.Connection conn, LocalPortForwarder.Parameters parameters) {
+            super(conn, "direct-tcpip");
+            this.parameters = parameters;
+        }
+
+        @Override
+        protected SSHPacket buildOpenReq() {
+            return (SSHPacket)((SSHPacket)((SSHPacket)((SSHPacket)super.buildOpenReq().putString(this.parameters.getRemoteHost())).putUInt32((long)this.parameters.getRemotePort())).putString(this.parameters.getLocalHost())).putUInt32((long)this.parameters.getLocalPort());
+        }
+    }
+}
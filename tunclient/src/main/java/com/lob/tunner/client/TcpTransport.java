@@ -0,0 +1,191 @@
+package com.lob.tunner.client;
+
+import com.lob.tunner.common.Block;
+import com.lob.tunner.common.Config;
+import com.lob.tunner.common.EventLoops;
+import com.lob.tunner.handlers.BlockDecoder;
+import com.lob.tunner.handlers.BlockEncoder;
+import com.lob.tunner.handlers.BlockWriter;
+import com.lob.tunner.logger.AutoLog;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Tunnel transport connecting straight to tunnel server over plain TCP, for links already private or
+ * protected by other means. No SSH involved, the channel runs on the event loop of the tunnel's shard (so
+ * blocks are relayed to local connections without leaving it) and shares the block codec with the server.
+ */
+public class TcpTransport implements TunnelTransport {
+    private static final BlockEncoder _ENCODER = new BlockEncoder();
+
+    private Tunnel _tunnel;
+    private Channel _channel = null;
+
+    /**
+     * Blocks written before connected, guarded by itself
+     */
+    private final ArrayList<Block> _pending = new ArrayList<>();
+    private volatile BlockWriter _writer = null;
+
+    /**
+     * Shutdown before connected, blocks written from now on are released right away. Guarded by _pending
+     */
+    private boolean _stopped = false;
+
+    /**
+     * Connect to tunnel server at target:forwardPort, port is not used
+     * @param tunnel
+     * @param target
+     * @param port
+     * @param forwardPort
+     * @throws IOException
+     */
+    @Override
+    public void start(Tunnel tunnel, String target, int port, int forwardPort) throws IOException {
+        _tunnel = tunnel;
+
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(tunnel.shard().eventLoop())
+                .channel(EventLoops.socketChannel())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline()
+                                .addLast(new BlockDecoder(Config.isCutThrough()))
+                                .addLast(_ENCODER)
+                                .addLast(new IOHandler());
+                    }
+                });
+
+        ChannelFuture connect = bootstrap.connect(target, forwardPort);
+        _channel = connect.channel();
+
+        connect.addListener(future -> {
+            if (future.isSuccess()) {
+                AutoLog.INFO.log("Tunnel %08x connected to %s:%d", _tunnel.getID(), target, forwardPort);
+
+                synchronized (_pending) {
+                    BlockWriter writer = new BlockWriter(_channel, _tunnel::weight);
+                    for(Block block : _pending) {
+                        writer.write(block);
+                    }
+
+                    _pending.clear();
+                    _writer = writer;
+                }
+
+                _tunnel.connected();
+            }
+            else {
+                AutoLog.ERROR.exception(future.cause()).log("Tunnel %08x cannot connect to %s:%d!", _tunnel.getID(), target, forwardPort);
+                _tunnel.closed();
+                shutdown();
+            }
+        });
+    }
+
+    @Override
+    public void write(Block block) {
+        BlockWriter writer = _writer;
+        if(writer == null) {
+            synchronized (_pending) {
+                writer = _writer;
+                if(_stopped) {
+                    block.release();
+                    return;
+                }
+
+                if(writer == null) {
+                    _pending.add(block);
+                    return;
+                }
+            }
+        }
+
+        writer.write(block);
+    }
+
+    @Override
+    public long pending() {
+        BlockWriter writer = _writer;
+        if(writer != null) {
+            return writer.pending();
+        }
+
+        long bytes = 0;
+        synchronized (_pending) {
+            for(Block block : _pending) {
+                bytes += block.length();
+            }
+        }
+
+        return bytes;
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (_pending) {
+            for(Block block : _pending) {
+                block.release();
+            }
+
+            _pending.clear();
+            _stopped = true;
+        }
+
+        if(_channel != null) {
+            _channel.close();
+        }
+    }
+
+    class IOHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if(msg instanceof Block) {
+                _tunnel.received((Block)msg);
+            }
+            else {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            AutoLog.ERROR.exception(cause).log("Tunnel %08x caught exception", _tunnel.getID());
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            BlockWriter writer = _writer;
+            if(writer != null && ctx.channel().isWritable()) {
+                writer.writable();
+            }
+
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            AutoLog.INFO.log("Tunnel %08x closed ...", _tunnel.getID());
+            _tunnel.closed();
+
+            BlockWriter writer = _writer;
+            if(writer != null) {
+                writer.close();
+            }
+
+            super.channelInactive(ctx);
+        }
+    }
+}
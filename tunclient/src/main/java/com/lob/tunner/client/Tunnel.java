@@ -2,83 +2,105 @@ package com.lob.tunner.client;
 
 import com.lob.tunner.BlockUtils;
 import com.lob.tunner.common.Block;
+import com.lob.tunner.common.ConcurrentIntMap;
 import com.lob.tunner.common.Config;
+import com.lob.tunner.common.Segmenter;
 import com.lob.tunner.logger.AutoLog;
-import com.lob.tunner.logger.HexDump;
-import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.common.IOUtils;
-import net.schmizz.sshj.common.SSHPacket;
-import net.schmizz.sshj.connection.channel.direct.AbstractDirectChannel;
-import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
-import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
-import net.schmizz.sshj.userauth.UserAuthException;
-import net.schmizz.sshj.userauth.keyprovider.OpenSSHKeyFile;
-import net.schmizz.sshj.userauth.password.PasswordFinder;
-import net.schmizz.sshj.userauth.password.Resource;
-
-import java.io.File;
+
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Represtents one forwarded connection to remote tunnel server.
  *
- * Remote tunnel server will by default listen on 818 port
+ * Blocks are carried by a TunnelTransport (SSH or plain TCP), the tunnel multiplexes connections on it
+ * and dispatches blocks read to them.
+ *
+ * Features (Block.FEATURE_xxx) are offered with CODE_HELLO first thing on the tunnel, and only used once
+ * server answers it taking them. Servers not knowing CODE_HELLO never answer, so none is used with them:
+ * no compact framing nor credit, connections are never moved and probes never time the tunnel out.
+ * Framing is switched by each side on its own direction with CODE_FRAMING, only once FEATURE_COMPACT taken.
  */
 public class Tunnel {
     private static final AtomicInteger _COUNTER = new AtomicInteger();
 
     private static final int _DEFAULT_PORT = 22;
-    private static final int _FORWARD_PORT = 8080;
 
-    private final ByteBuffer _padding = ByteBuffer.allocate(8);
-    private final ByteBuffer _header = ByteBuffer.allocate(8);
-    private final ByteBuffer _headerOut = ByteBuffer.allocate(8);
-    private final ConcurrentHashMap<Integer, Connection> _connections = new ConcurrentHashMap<>();
+    private final ConcurrentIntMap<Connection> _connections = new ConcurrentIntMap<>();
+    private final TunnelTransport _transport;
+    private final TunnelShard _shard;
+    private final TunnelStats _stats = new TunnelStats();
+    private final Segmenter _segmenter = new Segmenter(Block.MAX_LENGTH);
 
+    private final int _id;
 
-    private final LinkedList<Block> _blocks = new LinkedList<>();
-    private final Lock _lock = new ReentrantLock();
-    private final Condition _empty = _lock.newCondition();
+    /**
+     * Bulk tunnels only carry connections moved for long bulk transfers (elephants)
+     */
+    private final boolean _bulk;
 
-    private volatile boolean _stop = false;
-    private final SSHClient _client;
-    private final Thread _reader;
-    private final Thread _writer;
+    private static final int _FEATURES = Block.FEATURE_SEQ32 | Block.FEATURE_COMPACT | Block.FEATURE_CREDIT | Block.FEATURE_RESUME;
 
-    private String _target = "localhost";
-    private int _port = _DEFAULT_PORT;
-    private int _forwardPort = _FORWARD_PORT;
-    private AbstractDirectChannel _channel = null;
+    private volatile boolean _ready = false;
+    private volatile boolean _closed = false;
 
-    private final int _id;
+    /**
+     * Data blocks sent as BLOCK_EXTENDED, taken by server
+     */
+    private volatile boolean _extended = false;
+
+    /**
+     * Server grants credit and takes ours, taken by server
+     */
+    private volatile boolean _credited = false;
+
+    /**
+     * Server takes connections moved from other tunnels, taken by server
+     */
+    private volatile boolean _resumable = false;
+
+    /**
+     * Only accessed in shard's event loop
+     */
+    private boolean _draining = false;
+    private int _emptyProbes = 0;
+
+    /**
+     * Create a new tunnel
+     * @param shard - shard owning the tunnel and its connections
+     * @param transport
+     */
+    public Tunnel(TunnelShard shard, TunnelTransport transport) {
+        this(shard, transport, false);
+    }
 
     /**
      * Create a new tunnel
+     * @param shard - shard owning the tunnel and its connections
+     * @param transport
+     * @param bulk - for elephants only
      */
-    public Tunnel() {
+    public Tunnel(TunnelShard shard, TunnelTransport transport, boolean bulk) {
         _id = _COUNTER.incrementAndGet();
-        _client = new SSHClient();
-        _reader = new Thread(this::_readerMain);
-        _writer = new Thread(this::_writerMain);
+        _shard = shard;
+        _transport = transport;
+        _bulk = bulk;
+    }
+
+    public boolean bulk() {
+        return _bulk;
     }
 
     public int getID() {
         return _id;
     }
 
-    public void multiplex(Connection conn) throws IOException {
+    public TunnelShard shard() {
+        return _shard;
+    }
+
+    public void multiplex(Connection conn) {
         _connections.put(conn.getID(), conn);
     }
 
@@ -86,348 +108,241 @@ public class Tunnel {
         _connections.remove(connId);
     }
 
-    public boolean overloaded() {
-        // too many connections on this!!
-        return _connections.size() > 10;
+    public void forEach(Consumer<Connection> consumer) {
+        _connections.forEach(consumer);
     }
 
-    public void start(String target, int forwardPort) throws IOException {
-        start(target, _DEFAULT_PORT, forwardPort);
+    /**
+     * Scheduling weight of a connection, for transports
+     * @param connId
+     * @return
+     */
+    public int weight(int connId) {
+        Connection conn = _connections.get(connId);
+        return conn == null ? 1 : conn.weight();
     }
 
     /**
-     * Start the tunnel
-     * @param target
-     * @param port
-     * @param forwardPort
-     * @throws IOException
+     * Length of data blocks cut from socket reads by connections on the tunnel
+     * @return
      */
-    public void start(String target, int port, int forwardPort) throws IOException {
-        _target = target;
-        _port = port;
-        _forwardPort = forwardPort;
-
-        AutoLog.INFO.log("Try starting new tunnel to %s:%d and forwarding to %d ", target, port, forwardPort);
-        _writer.start();
+    public Segmenter segmenter() {
+        return _segmenter;
     }
 
-    public void write(Block block) {
-        _lock.lock();
-        try {
-            if(_blocks.isEmpty()) {
-                _empty.signal();
-            }
-
-            _blocks.add(block);
-        }
-        finally {
-            _lock.unlock();
-        }
+    /**
+     * Link up, called by transport
+     */
+    public void connected() {
+        AutoLog.INFO.log("Tunnel %08x ready", _id);
+        _ready = true;
     }
 
-    private void _connect() throws IOException {
-        _client.addHostKeyVerifier(new PromiscuousVerifier());
-
-        _client.loadKnownHosts();
-        _client.connect(_target, _port);
-
-        String user = Config.getServerUser();
-        if(user == null || user.isEmpty()) {
-            user = System.getProperty("user.name");
-        }
+    /**
+     * Link up, called by transport knowing its packet
+     * @param packet - most bytes the link carries in one packet
+     */
+    public void connected(int packet) {
+        _segmenter.packet(packet);
+        connected();
+    }
 
-        try {
-            AutoLog.DEBUG.log("Try authenticate using system user - " + user);
-
-            String key = Config.getServerKey();
-            if(key != null && !key.isEmpty()) {
-                OpenSSHKeyFile keyFile;
-                keyFile = new OpenSSHKeyFile();
-                keyFile.init(new File(key), new PasswordFinder() {
-                    @Override
-                    public char[] reqPassword(Resource<?> resource) {
-                        // final String pass = Config.getServerPass();
-                        final String pass = TunnelClient.password;
-                        return pass.toCharArray();
-                    }
-
-                    @Override
-                    public boolean shouldRetry(Resource<?> resource) {
-                        return false;
-                    }
-                });
-
-                AutoLog.INFO.log("Try auth with pub key %s and pass %s ...", key, TunnelClient.password);
-                _client.authPublickey(user, keyFile);
-            }
-            else {
-                _client.authPassword(user, Config.getServerPass());
+    /**
+     * Link down or never made it, called by transport (or shard if probes go unanswered). Unless shut down
+     * already, the shard resumes connections of the tunnel on others
+     */
+    public void closed() {
+        synchronized(this) {
+            if(_closed) {
+                return;
             }
 
-            AutoLog.INFO.log("Tunnel established ...");
-        }
-        catch(UserAuthException uae) {
-            AutoLog.ERROR.exception(uae).log("Cannot authenticate using default user - " + user);
-            throw new IOException("Invalid username / password!");
+            _closed = true;
         }
 
-        /**
-         * todo: we always try to forward to a port on remote "local" host
-         */
-        final String remoteHost = "127.0.0.1";
-        final LocalPortForwarder.Parameters params = new LocalPortForwarder.Parameters(
-                Config.getListenAddress(), Config.getListenPort(), remoteHost, _forwardPort
-        );
-
-        /**
-         * Create a direct channel
-         */
-        _channel = new DirectTCPIPChannel(_client.getConnection(), params);
-        _channel.open();
+        AutoLog.WARN.log("Tunnel %08x failed with %d connections", _id, _connections.size());
+        _shard.failed(this);
     }
 
-    private Block _readBlock(ReadableByteChannel channel) throws IOException {
-        while (_header.hasRemaining()) {
-            channel.read(_header);
+    /**
+     * Server answered CODE_HELLO with features it takes
+     * @param features
+     */
+    public void hello(int features) {
+        AutoLog.INFO.log("Tunnel %08x features %d taken by server", _id, features);
+        _stats.arm();
+        _extended = (features & Block.FEATURE_SEQ32) != 0;
+        _credited = (features & Block.FEATURE_CREDIT) != 0;
+        _resumable = (features & Block.FEATURE_RESUME) != 0;
+
+        if((features & Block.FEATURE_COMPACT) != 0) {
+            // the transport switches its encoder right after writing it
+            write(Block.framing(Block.FRAMING_COMPACT, features & Block.FEATURE_DEFLATE));
         }
+    }
 
-        _header.rewind();
-        short typeSeq = _header.getShort();
-        int len = (_header.getShort() & 0x0FFFF);
-        int conn = _header.getInt();
-
-        // boolean trace = (len == Block.MAX_NO_PADDING_LENGTH);
-        boolean trace = false;
-
-        if(trace) {
-            AutoLog.INFO.log("Read header - %s", HexDump.dumpHexString(_header.array()));
-        }
-        else {
-            AutoLog.DEBUG.log("Read header - %s", HexDump.dumpHexString(_header.array()));
-        }
+    /**
+     * Server takes FEATURE_CREDIT, so connections limit what they send by its credit. Connections started
+     * before server answered CODE_HELLO find out with the first CODE_CREDIT of server
+     * @return
+     */
+    public boolean credited() {
+        return _credited;
+    }
 
-        // prepare for next block!!!!
-        _header.clear();
+    /**
+     * Server takes FEATURE_RESUME, so connections started on the tunnel from now on may be moved to others
+     * @return
+     */
+    public boolean resumable() {
+        return _resumable;
+    }
 
-        if(typeSeq == 0 && len == 0 && conn == 0) {
-            // all 0 header!!! Ignore
-            return null;
-        }
+    /**
+     * Link up and not closed since
+     * @return
+     */
+    public boolean ready() {
+        return _ready && !_closed;
+    }
 
-        if(len == 0) {
-            return new Block(conn, typeSeq);
-        }
-        else {
-            ByteBuffer buffer = ByteBuffer.allocate(len);
-            while (buffer.hasRemaining()) {
-                channel.read(buffer);
-            }
+    /**
+     * Not up yet, nor failed
+     * @return
+     */
+    public boolean connecting() {
+        return !_ready && !_closed;
+    }
 
-            if(trace) {
-                AutoLog.INFO.log("Read data - %s", HexDump.dumpHexString(buffer.array()));
-            }
-            else {
-                AutoLog.DEBUG.log("Read data - %s", HexDump.dumpHexString(buffer.array()));
-            }
+    public boolean isClosed() {
+        return _closed;
+    }
 
-            // If there are padding, let's get the padding
-            int padding = len % 8;
-            if (padding > 0) {
-                _padding.rewind();
-                _padding.limit(8 - padding);
-
-                while(_padding.hasRemaining()) {
-                    channel.read(_padding);
-                }
-
-                if(trace) {
-                    AutoLog.INFO.log("Read padding - %s", HexDump.dumpHexString(_padding.array(), 0, 8 - padding));
-                }
-                else {
-                    AutoLog.DEBUG.log("Read padding - %s", HexDump.dumpHexString(_padding.array(), 0, 8 - padding));
-                }
-            }
+    /**
+     * Draining tunnels take no new connections and retire once empty
+     * @param draining
+     */
+    public void draining(boolean draining) {
+        _draining = draining;
+    }
 
-            // ready for writing out ...
-            buffer.rewind();
-            return new Block(conn, typeSeq, len, buffer);
-        }
+    public boolean draining() {
+        return _draining;
     }
 
-    private void _readerMain() {
-        final ReadableByteChannel channel = Channels.newChannel(_channel.getInputStream());
+    /**
+     * Count probes in a row the tunnel is found without connections, on shard's event loop
+     * @return
+     */
+    public int emptyProbes() {
+        _emptyProbes = _connections.isEmpty() ? _emptyProbes + 1 : 0;
+        return _emptyProbes;
+    }
 
-        // we are always 8 bytes!!!
-        try {
-            while (!_stop) {
-                Block block = _readBlock(channel);
+    public TunnelStats stats() {
+        return _stats;
+    }
 
-                if (block == null) {
-                    continue;
-                }
+    public int connections() {
+        return _connections.size();
+    }
 
-                int id = block.connection();
+    /**
+     * Bytes queued in transport, not yet written to server
+     * @return
+     */
+    public long pending() {
+        return _transport.pending();
+    }
 
-                if (block.type() == Block.BLOCK_DATA) {
-                    TunnelManager.TotalRead.addAndGet(block.length());
+    /**
+     * At the soft limit of connections ("--tunnelConnections"), only more connections if no more tunnels
+     * @return
+     */
+    public boolean overloaded() {
+        return _connections.size() >= Config.getTunnelConnections();
+    }
 
-                    AutoLog.INFO.log(
-                            "Read in data block (seq=%d, length=%d) for connection %08x on tunnel %08x ...",
-                            block.sequence(), block.length(), id, _id
-                    );
+    public void start(String target, int forwardPort) throws IOException {
+        start(target, _DEFAULT_PORT, forwardPort);
+    }
 
-                    Connection conn = _connections.get(id);
-                    if(conn == null) {
-                        AutoLog.WARN.log("Found non-existing connection %08x", id);
+    /**
+     * Start the tunnel
+     * @param target
+     * @param port
+     * @param forwardPort
+     * @throws IOException
+     */
+    public void start(String target, int port, int forwardPort) throws IOException {
+        AutoLog.INFO.log("Try starting new tunnel to %s:%d and forwarding to %d ", target, port, forwardPort);
 
-                        write(new Block(id, BlockUtils.control(Block.CODE_ABORT)));
+        // queued until the link is up, ahead of anything else
+        _transport.write(Block.hello(Config.isCompress() ? _FEATURES | Block.FEATURE_DEFLATE : _FEATURES));
+        _transport.start(this, target, port, forwardPort);
+    }
 
-                        return;
-                    }
+    public void write(Block block) {
+        if(block.type() == Block.BLOCK_DATA) {
+            _stats.transferred(block.length());
 
-                    conn.respond(block);
-                }
-                else {
-                    TunnelManager.getInstance().handleControl(this, id, block.control(), block.data());
-                }
+            if(_extended) {
+                block = block.extend();
             }
         }
-        catch(IOException ioe) {
-            AutoLog.ERROR.exception(ioe).log("Encounter exception while reading!");
-            // todo: how to abort
-        }
-        finally {
-            // ...
-        }
-    }
 
-    private void _writeData(WritableByteChannel channel, ByteBuffer data) throws IOException {
-        data.rewind();
-
-        while(data.hasRemaining()) {
-            channel.write(data);
-        }
+        _transport.write(block);
     }
 
-    private void _writeNoise(WritableByteChannel channel) throws IOException {
-        // ByteBuffer bb = ByteBuffer.allocate(1024);
-        // Block block = new Block(0, BlockUtils.control(Block.CODE_ECHO), (short)1024, bb);
-        Block block = new Block(0, BlockUtils.control(Block.CODE_ECHO));
+    public void shutdown() {
+        synchronized(this) {
+            _closed = true;
+        }
 
-        // TODO: let's add random length of payload here ...
-        _writeBlock(channel, block);
+        _transport.shutdown();
     }
 
-    private void _writeBlock(WritableByteChannel channel, Block block) throws IOException {
+    /**
+     * Handle one block read by transport, the block is owned by the tunnel from now on
+     * @param block
+     */
+    public void received(Block block) {
+        int id = block.connection();
+        _stats.heard();
+
         if (block.type() == Block.BLOCK_DATA) {
-            TunnelManager.TotalWrite.addAndGet(block.length());
+            TunnelManager.TotalRead.add(block.length());
+            _stats.transferred(block.length());
 
             AutoLog.INFO.log(
-                    "Write out data block (seq=%d, length=%d) for connection %08x on tunnel %08x ...",
-                    block.sequence(), block.length(), block.connection(), _id
+                    "Read in data block (seq=%d, length=%d) for connection %08x on tunnel %08x ...",
+                    block.sequence(), block.length(), id, _id
             );
-        }
-
-        long start = System.currentTimeMillis();
-        int length = block.length();
-
-        int bytes = 8 + length;
 
-        // 1. respond header on channel
-        _headerOut.clear();
-        _headerOut.putShort(block.getTypeSeq());
-        _headerOut.putShort((short)(length & 0xFFFF));
-        _headerOut.putInt(block.connection());
-
-        _writeData(channel, _headerOut);
-
-        // 2. if payload, respond payload
-        if(length > 0) {
-            AutoLog.DEBUG.log("Written header - %s", HexDump.dumpHexString(_headerOut.array()));
-            _writeData(channel, block.data());
+            Connection conn = _connections.get(id);
+            if(conn == null) {
+                // moved to another tunnel, still taking what was sent here before
+                conn = _shard.connection(id);
+            }
 
-            AutoLog.DEBUG.log("Written payload - %s", HexDump.dumpHexString(block.data().array()));
+            if(conn == null) {
+                AutoLog.WARN.log("Found non-existing connection %08x", id);
 
-            // 3. if payload and payload size not multiple of 8, respond padding bytes
-            length %= 8;
-            if(length > 0) {
-                int padding = (8 - length);
-                bytes += padding;
+                block.release();
+                write(new Block(id, BlockUtils.control(Block.CODE_ABORT)));
 
-                _writeData(channel, ByteBuffer.wrap(BlockUtils.PADDING, 0, padding));
-                AutoLog.DEBUG.log("Written padding - %s", HexDump.dumpHexString(BlockUtils.PADDING, 0, padding));
+                return;
             }
-        }
 
-        long end = System.currentTimeMillis();
-        if((end - start) > 0) {
-            AutoLog.INFO.log("!!!!!!!!%d bytes data written in %d milliseconds!!!!!!!!!", bytes, (end - start));
+            conn.respond(block);
         }
-    }
-
-    private void _writerMain() {
-        try {
-            AutoLog.INFO.log("Try starting a new tunnel by connecting to SSH server ...");
-            _connect();
-
-            AutoLog.INFO.log("Tunnel created, starting tunnel reader ...");
-            _reader.start();
-
-            OutputStream os = _channel.getOutputStream();
-            WritableByteChannel channel = Channels.newChannel(os);
-
-            while(!_stop) {
-                // if there are data, respond data, otherwise sleep and respond background data ...
-                _lock.lock();
-                try {
-                    if(_blocks.isEmpty()) {
-                        if(!_empty.await(500, TimeUnit.MILLISECONDS)) {
-                            // time out
-                            if(false) {
-                                // let's not flush for testing purpose ...
-                                _writeNoise(channel);
-                                os.flush();
-                            }
-                            continue;
-                        }
-                    }
-
-                    Block block = _blocks.remove();
-                    _writeBlock(channel, block);
-                    os.flush();
-                }
-                finally {
-                    _lock.unlock();
-                }
+        else {
+            try {
+                _shard.handleControl(this, id, block.control(), block.data());
             }
-
-            AutoLog.INFO.log("Tunnel stopped");
-        }
-        catch(InterruptedException ie) {
-            AutoLog.ERROR.exception(ie).log("Tunnel interrupted!");
-        }
-        catch(IOException ioe) {
-            AutoLog.ERROR.exception(ioe).log("Cannot connect to remote SSH server!");
-        }
-        finally {
-            if(_channel != null) {
-                IOUtils.closeQuietly(_channel);
-                _channel = null;
+            finally {
+                block.release();
             }
         }
     }
-
-    private static class DirectTCPIPChannel extends AbstractDirectChannel {
-        final LocalPortForwarder.Parameters parameters;
-
-        DirectTCPIPChannel(net.schmizz.sshj.connection.Connection conn, LocalPortForwarder.Parameters parameters) {
-            super(conn, "direct-tcpip");
-            this.parameters = parameters;
-        }
-
-        @Override
-        protected SSHPacket buildOpenReq() {
-            return (SSHPacket)((SSHPacket)((SSHPacket)((SSHPacket)super.buildOpenReq().putString(this.parameters.getRemoteHost())).putUInt32((long)this.parameters.getRemotePort())).putString(this.parameters.getLocalHost())).putUInt32((long)this.parameters.getLocalPort());
-        }
-    }
 }
@@ -3,12 +3,13 @@ package com.lob.tunner.client;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import com.lob.tunner.common.Config;
+import com.lob.tunner.common.EventLoops;
+import com.lob.tunner.handlers.InboundDataHandler;
 import com.lob.tunner.logger.AutoLog;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 // import java.util.logging.Level;
 // import java.util.logging.Logger;
@@ -18,17 +19,20 @@ import net.schmizz.sshj.userauth.password.Resource;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayList;
 
 /**
  * Create a listening port to accept client connections, read-in data and multiplexing the data on
  * one of the tunnels
  */
 public class TunnelClient {
-    public final static EventLoopGroup REMOTEWORKER =new NioEventLoopGroup(1);
-    public final static EventLoopGroup LOCALWORKER = new NioEventLoopGroup(1);
+    /**
+     * One event loop per shard, created once configuration is loaded
+     */
+    public static EventLoopGroup LOCALWORKER;
 
     private final static TunnelManager _tunnelManager = TunnelManager.getInstance();
-    private final static EventLoopGroup BOSS = new NioEventLoopGroup(1);
+    private static EventLoopGroup BOSS;
 
     public static String password;
     public static void main(String[] args){
@@ -59,41 +63,72 @@ public class TunnelClient {
 
         password = pass;
 
+        LOCALWORKER = EventLoops.newGroup(Config.getShards());
+        BOSS = EventLoops.newGroup(1);
+        AutoLog.INFO.log("Using %s transport", EventLoops.isEpoll() ? "epoll" : "nio");
+
         try {
-            _tunnelManager.start();
+            _tunnelManager.start(LOCALWORKER);
 
             /**
              * Handle client APP connection.
              * When client APP connecting, we create a Connection object to wrap the socket channel, which will
              * 1. read data from client, forward the data to one of the tunnel (create if not existing)
              * 2. read data from assigned tunnel, forward the data to client
+             *
+             * Accepted channels are registered on one of the shard event loops, either round robin by one
+             * listener, or by the kernel with one SO_REUSEPORT listener per shard.
              */
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(BOSS, LOCALWORKER)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
-                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 1000)
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel channel) {
-                            channel.pipeline().addLast(new ClientConnectionHandler(channel));
-                        }
-                    });
-
             String address = Config.getListenAddress();
             int port = Config.getListenPort();
 
-            ChannelFuture future = bootstrap.bind(address, port).sync();
+            ArrayList<Channel> listeners = new ArrayList<>();
+            if(Config.isReusePort() && EventLoops.isEpoll()) {
+                for(TunnelShard shard : _tunnelManager.shards()) {
+                    ServerBootstrap bootstrap = _bootstrap(shard.eventLoop(), shard.eventLoop())
+                            .option(EpollChannelOption.SO_REUSEPORT, true);
+
+                    listeners.add(bootstrap.bind(address, port).sync().channel());
+                }
+            }
+            else {
+                if(Config.isReusePort()) {
+                    AutoLog.WARN.log("SO_REUSEPORT needs native epoll, listening on one socket ...");
+                }
 
-            AutoLog.INFO.log("Starting at port " + port);
+                listeners.add(_bootstrap(BOSS, LOCALWORKER).bind(address, port).sync().channel());
+            }
 
-            future.channel().closeFuture().sync();
+            AutoLog.INFO.log("Starting at port %d with %d listeners", port, listeners.size());
+
+            for(Channel listener : listeners) {
+                listener.closeFuture().sync();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
             BOSS.shutdownGracefully();
             LOCALWORKER.shutdownGracefully();
-            REMOTEWORKER.shutdownGracefully();
         }
     }
+
+    private static ServerBootstrap _bootstrap(EventLoopGroup boss, EventLoopGroup workers) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(boss, workers)
+                .channel(EventLoops.serverChannel())
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 1000)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        if(Config.getAggregate() > 0) {
+                            channel.pipeline().addLast(new InboundDataHandler(Config.getAggregate(), Config.getAggregateDelay()));
+                        }
+
+                        channel.pipeline().addLast(new ClientConnectionHandler(channel));
+                    }
+                });
+
+        return bootstrap;
+    }
 }
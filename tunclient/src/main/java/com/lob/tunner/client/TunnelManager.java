@@ -1,16 +1,16 @@
 package com.lob.tunner.client;
 
-import com.lob.tunner.BlockUtils;
-import com.lob.tunner.common.Block;
-import com.lob.tunner.common.Config;
 import com.lob.tunner.logger.AutoLog;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Tunnel are using SSHJ, which cannot use netty, we'll have to rely on native java Sockets
@@ -19,53 +19,69 @@ import java.util.concurrent.atomic.AtomicLong;
  * 1. encode / decode client data
  * 2. I/O handling
  * 3. background handling like provide faked data, etc.
+ *
+ * Connections and tunnels are split into shards, one per local event loop (see TunnelShard), the manager
+ * only routes to the shard owning a connection.
  */
 public class TunnelManager {
     private TunnelManager() {
-        new TimeoutThread().start();
+        new StatsThread().start();
     }
 
-    public static AtomicLong TotalRead = new AtomicLong(0);
-    public static AtomicLong TotalWrite = new AtomicLong(0);
+    /**
+     * Updated by every shard, adders keep them from bouncing between cores
+     */
+    public static LongAdder TotalRead = new LongAdder();
+    public static LongAdder TotalWrite = new LongAdder();
 
     private static final TunnelManager _INST = new TunnelManager();
     public static TunnelManager getInstance() {
         return _INST;
     }
 
-    private final ConcurrentHashMap<Integer, Connection> _connections = new ConcurrentHashMap<>();
-    private final ArrayList<Tunnel> _tunnels = new ArrayList();
-
-    public void start() {
-        AutoLog.INFO.log("Starting Tunnel Manager ...");
-    }
+    private TunnelShard[] _shards = new TunnelShard[0];
 
     /**
-     * 1. assign the connection to one of the tunnel
-     * 2. If no tunnel available, let's create one tunnel
-     * 3. If tunnel's threshold met, let's create a new tunnel
-     * @param conn
+     * Create one shard per event loop of the local group
+     * @param loops - group running local connections
      */
-    public synchronized void accept(Connection conn, Channel channel) throws IOException {
-        Tunnel tunnel = _findTunnel();
-
-        if(tunnel == null) {
-            tunnel = _createTunnel();
+    public void start(EventLoopGroup loops) {
+        ArrayList<TunnelShard> shards = new ArrayList<>();
+        for(EventExecutor executor : loops) {
+            shards.add(new TunnelShard(shards.size(), (EventLoop)executor));
         }
 
-        if(tunnel == null) {
-            throw new IOException("Cannot find tunnel to multiplexing connection - " + conn.getID());
-        }
+        _shards = shards.toArray(new TunnelShard[shards.size()]);
+        AutoLog.INFO.log("Starting Tunnel Manager with %d shards ...", _shards.length);
+    }
 
-        AutoLog.INFO.log("Starting one new connection %08x (channel=%s) on tunnel %08x ...", conn.getID(), channel, tunnel.getID());
-        _connections.put(conn.getID(), conn);
-        tunnel.multiplex(conn);
-        conn.attach(tunnel);
+    public TunnelShard[] shards() {
+        return _shards;
+    }
 
-        // start the connection on this tunnel
-        tunnel.write(new Block(conn.getID(), BlockUtils.control(Block.CODE_START)));
+    /**
+     * Find the shard owning an event loop
+     * @param loop
+     * @return
+     */
+    public TunnelShard shard(EventLoop loop) {
+        for(TunnelShard shard : _shards) {
+            if(shard.eventLoop() == loop) {
+                return shard;
+            }
+        }
+
+        throw new IllegalStateException("No shard running on event loop - " + loop);
     }
 
+    /**
+     * Hand the connection to the shard of its event loop, see TunnelShard.accept()
+     * @param conn
+     * @param channel
+     */
+    public void accept(Connection conn, Channel channel) throws IOException {
+        shard(channel.eventLoop()).accept(conn, channel);
+    }
 
     /**
      * Close a connection
@@ -73,19 +89,7 @@ public class TunnelManager {
      * @param conn
      */
     public void close(Connection conn) {
-        int connId = conn.getID();
-
-        _connections.remove(connId);
-
-        Tunnel tunnel = conn.tunnel();
-
-        AutoLog.INFO.log("Shutting one connection %08x on tunnel %08x ...", conn.getID(), tunnel.getID());
-
-        // notify server ...
-        tunnel.write(new Block(connId, BlockUtils.control(Block.CODE_ABORT)));
-        tunnel.remove(connId);
-
-        conn.shutdown();
+        conn.tunnel().shard().close(conn);
     }
 
     /**
@@ -96,67 +100,13 @@ public class TunnelManager {
      * @param data
      */
     public void handleControl(Tunnel tunnel, int connId, short control, ByteBuffer data) {
-        AutoLog.INFO.log("Handling control %04x for connection %08x ...", control, connId);
-
-        Connection conn;
-        switch(control) {
-            case Block.CODE_ABORT:
-                tunnel.remove(connId);
-
-                conn = _connections.remove(connId);
-                if(conn == null) {
-                    AutoLog.ERROR.log("Closing non-existing connection %08x", connId);
-                }
-                else {
-                    conn.shutdown();
-                }
-
-                break;
-            case Block.CODE_ECHO:
-                // todo: random payload?
-                tunnel.write(new Block(connId, BlockUtils.control(Block.CODE_ECHO)));
-                break;
-            case Block.CODE_RESUME:
-                // shall not happen, only used at client side to resume data ...
-                break;
-            default:
-                break;
-        }
-    }
-
-    private final Tunnel _findTunnel() {
-        for(int idx = 0; idx < _tunnels.size(); idx ++) {
-            Tunnel tunnel = _tunnels.get(idx);
-            if(!tunnel.overloaded()) {
-                return tunnel;
-            }
-        }
-
-        return null;
+        tunnel.shard().handleControl(tunnel, connId, control, data);
     }
 
-    private final Tunnel _createTunnel() throws IOException {
-        Tunnel tunnel = new Tunnel();
-
-        tunnel.start(Config.getServerAddress(), Config.getServerPort(), Config.getForwardPort());
-        _tunnels.add(tunnel);
-
-        return tunnel;
-    }
-
-    private void _timeout() {
-        // for connections without active for more than 30 seconds, let's kill them ...
-        long now = System.currentTimeMillis();
-        long timeout = now - 30 * 1000;
-
-        _connections.values().forEach(conn -> {
-            if(conn.lastRead() < timeout && conn.lastWrite() < timeout) {
-                conn.timeout(now);
-            }
-        });
-    }
-
-    class TimeoutThread extends Thread {
+    /**
+     * Print statistics every 30 seconds, idle connections are timed out by Timeoutable
+     */
+    class StatsThread extends Thread {
         @Override
         public void run() {
             while(true) {
@@ -167,13 +117,21 @@ public class TunnelManager {
                     // ignore
                 }
 
-                _timeout();
+                int connections = 0;
+                int tunnels = 0;
+                for(TunnelShard shard : _shards) {
+                    connections += shard.connections();
+                    tunnels += shard.tunnels();
+                }
 
                 System.out.println(String.format(
                         "=====================================================================\n" +
                         " Total Connections=%d, Total Read=%d bytes, Total Write=%d bytes\n" +
+                        " Shards=%d, Tunnels=%d, Threads=%d (%s tunnel threads)\n" +
                         "=====================================================================",
-                        _connections.size(), TotalRead.getAndSet(0), TotalWrite.getAndSet(0)
+                        connections, TotalRead.sumThenReset(), TotalWrite.sumThenReset(),
+                        _shards.length, tunnels, ManagementFactory.getThreadMXBean().getThreadCount(),
+                        TunnelThreads.isVirtual() ? "virtual" : "platform"
                 ));
             }
         }
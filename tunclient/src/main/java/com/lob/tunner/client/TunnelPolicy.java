@@ -0,0 +1,107 @@
+package com.lob.tunner.client;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Picks the tunnel of a shard a new connection is multiplexed on, by the live stats of tunnels.
+ *
+ * Tunnels at the soft limit of connections ("--tunnelConnections") are only candidates if no more tunnels
+ * can be created, so the policy only decides among tunnels with room. Ties go to the tunnel with fewer
+ * connections, so idle tunnels are filled evenly.
+ *
+ * Policies ("--policy")
+ *   first - first tunnel with room, like tunnels were always filled
+ *   least-queued - fewest bytes queued to write, locally and at server side
+ *   throughput - lowest throughput (EWMA)
+ *   p2c - power of two choices, the lower throughput of two random tunnels, so connections started in a
+ *         burst don't all pile on the one tunnel looking idle until the next sample
+ *   rtt - lowest RTT measured by probes, tunnels not measured yet first
+ */
+public abstract class TunnelPolicy {
+    /**
+     * Pick a tunnel
+     * @param tunnels - candidates, not empty
+     * @return
+     */
+    abstract public Tunnel select(List<Tunnel> tunnels);
+
+    public static TunnelPolicy of(String name) {
+        switch(name) {
+            case "first":
+                return new First();
+            case "least-queued":
+                return new Least(tunnel -> tunnel.pending() + tunnel.stats().remotePending());
+            case "throughput":
+                return new Least(tunnel -> tunnel.stats().throughput());
+            case "p2c":
+                return new TwoChoices(tunnel -> tunnel.stats().throughput());
+            case "rtt":
+                return new Least(tunnel -> tunnel.stats().rtt());
+            default:
+                throw new IllegalArgumentException("Unknown tunnel policy - " + name);
+        }
+    }
+
+    /**
+     * Compare by load, then by connections
+     * @return < 0 if a is less loaded than b
+     */
+    private static int _compare(ToDoubleFunction<Tunnel> load, Tunnel a, Tunnel b) {
+        int diff = Double.compare(load.applyAsDouble(a), load.applyAsDouble(b));
+        return diff != 0 ? diff : Integer.compare(a.connections(), b.connections());
+    }
+
+    static class First extends TunnelPolicy {
+        @Override
+        public Tunnel select(List<Tunnel> tunnels) {
+            return tunnels.get(0);
+        }
+    }
+
+    static class Least extends TunnelPolicy {
+        private final ToDoubleFunction<Tunnel> _load;
+
+        Least(ToDoubleFunction<Tunnel> load) {
+            _load = load;
+        }
+
+        @Override
+        public Tunnel select(List<Tunnel> tunnels) {
+            Tunnel best = tunnels.get(0);
+            for(int idx = 1; idx < tunnels.size(); idx++) {
+                Tunnel tunnel = tunnels.get(idx);
+                if(_compare(_load, tunnel, best) < 0) {
+                    best = tunnel;
+                }
+            }
+
+            return best;
+        }
+    }
+
+    static class TwoChoices extends TunnelPolicy {
+        private final ToDoubleFunction<Tunnel> _load;
+
+        TwoChoices(ToDoubleFunction<Tunnel> load) {
+            _load = load;
+        }
+
+        @Override
+        public Tunnel select(List<Tunnel> tunnels) {
+            if(tunnels.size() == 1) {
+                return tunnels.get(0);
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(tunnels.size());
+            // another one, never the same
+            int second = (first + 1 + random.nextInt(tunnels.size() - 1)) % tunnels.size();
+
+            Tunnel a = tunnels.get(first);
+            Tunnel b = tunnels.get(second);
+            return _compare(_load, a, b) <= 0 ? a : b;
+        }
+    }
+}
@@ -0,0 +1,756 @@
+package com.lob.tunner.client;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.common.Block;
+import com.lob.tunner.common.ConcurrentIntMap;
+import com.lob.tunner.common.Config;
+import com.lob.tunner.logger.AutoLog;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One shard of the client, owning one local event loop, the tunnels created on it and the connections
+ * accepted on it. Shards share nothing, so accepting and routing never contend across cores.
+ *
+ * Connections are registered on the shard's event loop, accept() is always called there and the tunnel
+ * list is only touched there. Control blocks may come from transport threads, the connection table is
+ * concurrent for them but only shared with this shard's tunnels.
+ *
+ * Tunnels are kept as a pool, so no accepted connection waits on a tunnel handshake while any tunnel is up
+ * 1. "--minTunnels" are started together when the shard starts, and replaced once their link goes down
+ * 2. connections only go to tunnels ready, beyond the soft limit while a new tunnel is still connecting
+ * 3. the pool grows ahead of need, by one tunnel at a time, once tunnels are busy (by connections or by
+ *    bytes queued)
+ * 4. tunnels beyond the minimum drain once the pool has been mostly idle for "--tunnelIdle" seconds, they
+ *    take no more connections and retire once their last connection is gone
+ *
+ * Connections are classified by their traffic every probe. Those above "--elephant" KB/s (long bulk
+ * transfers) are moved (CODE_RESUME) to bulk tunnels if server takes FEATURE_RESUME, up to "--bulkTunnels" of them kept apart from the pool,
+ * one elephant per bulk tunnel as long as there are enough. So short connections on the pool don't queue
+ * behind them. With "--stripe" above 1, each elephant is then striped over up to that many bulk tunnels
+ * (CODE_STRIPE), one more every probe. Its data blocks go on whichever has the fewest bytes queued and are
+ * put back in sequence by ReorderBuffer, so one transfer gets the bandwidth and crypto of several tunnels.
+ *
+ * Once a tunnel fails (its link goes down, or nothing is heard on it for "--probeTimeout" seconds after a
+ * probe, once server is known to answer them), its connections are resumed (CODE_RESUME with the sequence
+ * received) on other tunnels, picked like for new connections. Both sides send again what the other hasn't
+ * acknowledged (ReplayBuffer), so no data is lost and no connection is reset. Connections that find no
+ * tunnel are tried again every probe. Servers not taking FEATURE_RESUME cannot resume, their connections
+ * are closed with the tunnel.
+ */
+public class TunnelShard {
+    private final int _index;
+    private final EventLoop _loop;
+
+    private final ConcurrentIntMap<Connection> _connections = new ConcurrentIntMap<>();
+
+    /**
+     * Only accessed in _loop
+     */
+    private final ArrayList<Tunnel> _tunnels = new ArrayList<>();
+    private final ArrayList<Tunnel> _candidates = new ArrayList<>();
+    private final ArrayList<Tunnel> _bulkTunnels = new ArrayList<>();
+    private final ArrayList<Connection> _elephants = new ArrayList<>();
+    private long _sampledAt = System.nanoTime();
+
+    private final TunnelPolicy _policy = TunnelPolicy.of(Config.getPolicy());
+
+    /**
+     * Seconds between probes / samples of tunnel stats
+     */
+    private static final int _PROBE_INTERVAL = 1;
+
+    /**
+     * Grow the pool when connections reach this share of the soft limits, or bytes queued per tunnel
+     * reach _GROW_QUEUED
+     */
+    private static final double _GROW_UTILIZATION = 0.75;
+    private static final long _GROW_QUEUED = 1024 * 1024;
+
+    /**
+     * Pool is idle below this share of the soft limits
+     */
+    private static final double _IDLE_UTILIZATION = 0.25;
+
+    /**
+     * Probes in a row the pool has been idle, only accessed in _loop
+     */
+    private int _idleProbes = 0;
+
+    public TunnelShard(int index, EventLoop loop) {
+        _index = index;
+        _loop = loop;
+
+        _loop.execute(this::_warm);
+        _loop.scheduleAtFixedRate(this::_probe, _PROBE_INTERVAL, _PROBE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public int index() {
+        return _index;
+    }
+
+    public EventLoop eventLoop() {
+        return _loop;
+    }
+
+    public int connections() {
+        return _connections.size();
+    }
+
+    public int tunnels() {
+        return _tunnels.size() + _bulkTunnels.size();
+    }
+
+    /**
+     * Find a connection of this shard, whichever tunnel it's on
+     * @param connId
+     * @return null if not existing
+     */
+    public Connection connection(int connId) {
+        return _connections.get(connId);
+    }
+
+    /**
+     * 1. assign the connection to one of the tunnels ready with room, picked by policy
+     * 2. If none, grow the pool in background and use a tunnel ready beyond its soft limit meanwhile
+     * 3. Only if no tunnel is ready at all, wait on one connecting (or start one)
+     * @param conn
+     * @param channel - registered on this shard's event loop
+     */
+    public void accept(Connection conn, Channel channel) throws IOException {
+        Tunnel tunnel = _findTunnel();
+
+        if(tunnel == null) {
+            _grow();
+            tunnel = _fallback();
+        }
+
+        if(tunnel == null) {
+            throw new IOException("Cannot find tunnel to multiplexing connection - " + conn.getID());
+        }
+
+        AutoLog.INFO.log(
+                "Starting one new connection %08x (channel=%s) on tunnel %08x of shard %d ...",
+                conn.getID(), channel, tunnel.getID(), _index
+        );
+        _connections.put(conn.getID(), conn);
+        tunnel.multiplex(conn);
+        conn.attach(tunnel);
+        conn.arm();
+
+        // start the connection on this tunnel
+        conn.start();
+    }
+
+    /**
+     * Close a connection
+     *
+     * @param conn
+     */
+    public void close(Connection conn) {
+        int connId = conn.getID();
+
+        _connections.remove(connId);
+
+        Tunnel tunnel = conn.tunnel();
+
+        AutoLog.INFO.log("Shutting one connection %08x on tunnel %08x ...", conn.getID(), tunnel.getID());
+
+        // notify server ...
+        tunnel.write(Block.abort(connId, conn.sent()));
+        tunnel.remove(connId);
+        conn.unstripe();
+
+        conn.shutdown();
+    }
+
+    /**
+     * Close a connection aborted by server, once all it sent is written, on _loop
+     * @param conn
+     */
+    public void aborted(Connection conn) {
+        if(_connections.remove(conn.getID()) == null) {
+            return;
+        }
+
+        AutoLog.INFO.log("Shutting one connection %08x aborted by server ...", conn.getID());
+        conn.tunnel().remove(conn.getID());
+        conn.unstripe();
+        conn.shutdown();
+    }
+
+    /**
+     *
+     * @param tunnel
+     * @param connId
+     * @param control
+     * @param data
+     */
+    public void handleControl(Tunnel tunnel, int connId, short control, ByteBuffer data) {
+        AutoLog.INFO.log("Handling control %04x for connection %08x ...", control, connId);
+
+        Connection conn;
+        switch(control) {
+            case Block.CODE_ABORT:
+                conn = _connections.get(connId);
+                if(conn == null) {
+                    tunnel.remove(connId);
+                    AutoLog.ERROR.log("Closing non-existing connection %08x", connId);
+                }
+                else {
+                    conn.aborted(Block.sequenceOf(data));
+                }
+
+                break;
+            case Block.CODE_HELLO:
+                tunnel.hello(Block.featuresOf(data));
+                break;
+            case Block.CODE_LOAD:
+                tunnel.stats().probed(Block.timestampOf(data), Block.connectionsOf(data), Block.pendingOf(data));
+                break;
+            case Block.CODE_ECHO:
+                // answer to a probe by a server not knowing timestamps (CODE_LOAD), not answered again,
+                // or both sides would echo forever
+                break;
+            case Block.CODE_CREDIT:
+                conn = _connections.get(connId);
+                if(conn != null) {
+                    conn.credit(Block.creditOf(data), Block.ackOf(data));
+                }
+
+                break;
+            case Block.CODE_RESUME:
+                // shall not happen, only used at client side to resume data ...
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * A tunnel failed, resume its connections on other tunnels. Could be called from any thread
+     * @param tunnel
+     */
+    public void failed(Tunnel tunnel) {
+        if(!_loop.inEventLoop()) {
+            _loop.execute(() -> failed(tunnel));
+            return;
+        }
+
+        tunnel.shutdown();
+
+        _resume(tunnel);
+        _warm();
+    }
+
+    /**
+     * Resume connections of a failed tunnel on others, they stay on it if no tunnel could be found
+     * @param failed
+     */
+    private void _resume(Tunnel failed) {
+        if(failed.connections() == 0) {
+            return;
+        }
+
+        ArrayList<Connection> conns = new ArrayList<>();
+        failed.forEach(conns::add);
+
+        AutoLog.INFO.log("Resuming %d connections of failed tunnel %08x of shard %d", conns.size(), failed.getID(), _index);
+
+        for(Connection conn : conns) {
+            if(!conn.resumable()) {
+                // server cannot take it on another tunnel, nothing was kept to replay either
+                AutoLog.WARN.log("Closing connection %08x of failed tunnel %08x, server cannot resume it", conn.getID(), failed.getID());
+                close(conn);
+                continue;
+            }
+
+            Tunnel to = conn.elephant() ? _readyBulkTunnel() : null;
+            try {
+                if(to == null) {
+                    to = _findTunnel();
+                }
+
+                if(to == null) {
+                    _grow();
+                    to = _fallback();
+                }
+            }
+            catch(IOException ioe) {
+                AutoLog.ERROR.exception(ioe).log("No tunnel of shard %d to resume connection %08x, try again later", _index, conn.getID());
+                return;
+            }
+
+            // elephants landing in the pool are classified again
+            conn.elephant(to.bulk());
+
+            // failed could be its own tunnel or one striped over, it's back on one tunnel either way
+            conn.unstripe();
+            conn.tunnel().remove(conn.getID());
+            failed.remove(conn.getID());
+
+            to.write(Block.resume(conn.getID(), conn.received(), conn.weight(), conn.acknowledged()));
+            to.multiplex(conn);
+            conn.attach(to);
+
+            conn.resumed();
+        }
+    }
+
+    /**
+     * Bulk tunnel ready with the fewest connections
+     * @return null if none
+     */
+    private Tunnel _readyBulkTunnel() {
+        Tunnel least = null;
+        for(int idx = 0; idx < _bulkTunnels.size(); idx ++) {
+            Tunnel tunnel = _bulkTunnels.get(idx);
+            if(tunnel.ready() && (least == null || tunnel.connections() < least.connections())) {
+                least = tunnel;
+            }
+        }
+
+        return least;
+    }
+
+    private final Tunnel _findTunnel() {
+        _candidates.clear();
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            Tunnel tunnel = _tunnels.get(idx);
+            if(tunnel.ready() && !tunnel.draining() && !tunnel.overloaded()) {
+                _candidates.add(tunnel);
+            }
+        }
+
+        return _candidates.isEmpty() ? null : _policy.select(_candidates);
+    }
+
+    /**
+     * No tunnel ready with room, take one ready beyond soft limit (draining or not), or one still connecting
+     * @return
+     * @throws IOException
+     */
+    private Tunnel _fallback() throws IOException {
+        _candidates.clear();
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            Tunnel tunnel = _tunnels.get(idx);
+            if(tunnel.ready()) {
+                _candidates.add(tunnel);
+            }
+        }
+
+        if(!_candidates.isEmpty()) {
+            Tunnel tunnel = _policy.select(_candidates);
+            AutoLog.WARN.log("No tunnel of shard %d with room, using tunnel %08x beyond its soft limit", _index, tunnel.getID());
+            return tunnel;
+        }
+
+        Tunnel best = null;
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            Tunnel tunnel = _tunnels.get(idx);
+            if(tunnel.connecting() && (best == null || tunnel.connections() < best.connections())) {
+                best = tunnel;
+            }
+        }
+
+        return best != null ? best : _createTunnel();
+    }
+
+    /**
+     * Start the minimum of tunnels, handshakes go on in parallel
+     */
+    private void _warm() {
+        for(int idx = _live(); idx < Config.getMinTunnels(); idx++) {
+            try {
+                _createTunnel();
+            }
+            catch(IOException ioe) {
+                AutoLog.ERROR.exception(ioe).log("Cannot start tunnel of shard %d", _index);
+            }
+        }
+    }
+
+    /**
+     * Tunnels up or coming up, draining or not
+     * @return
+     */
+    private int _live() {
+        int live = 0;
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            if(!_tunnels.get(idx).isClosed()) {
+                live++;
+            }
+        }
+
+        return live;
+    }
+
+    /**
+     * Add one tunnel to the pool unless one is already coming up or at "--tunnels", a draining tunnel is
+     * taken back first
+     */
+    private void _grow() {
+        Tunnel draining = null;
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            Tunnel tunnel = _tunnels.get(idx);
+            if(tunnel.connecting()) {
+                return;
+            }
+
+            if(tunnel.ready() && tunnel.draining()) {
+                draining = tunnel;
+            }
+        }
+
+        if(draining != null) {
+            AutoLog.INFO.log("Tunnel %08x of shard %d taken back from draining", draining.getID(), _index);
+            draining.draining(false);
+            return;
+        }
+
+        if(Config.getTunnels() > 0 && _live() >= Config.getTunnels()) {
+            return;
+        }
+
+        try {
+            Tunnel tunnel = _createTunnel();
+            AutoLog.INFO.log("Growing tunnels of shard %d with tunnel %08x", _index, tunnel.getID());
+        }
+        catch(IOException ioe) {
+            AutoLog.ERROR.exception(ioe).log("Cannot start tunnel of shard %d", _index);
+        }
+    }
+
+    /**
+     * Retire tunnels closed or drained, then grow or drain the pool by its load
+     */
+    private void _scale() {
+        int connections = 0;
+        long queued = 0;
+        int active = 0;
+
+        for(int idx = _tunnels.size() - 1; idx >= 0; idx --) {
+            Tunnel tunnel = _tunnels.get(idx);
+            if((tunnel.isClosed() || tunnel.draining()) && tunnel.connections() == 0) {
+                AutoLog.INFO.log("Retiring tunnel %08x of shard %d", tunnel.getID(), _index);
+                tunnel.shutdown();
+                _tunnels.remove(idx);
+                continue;
+            }
+
+            if(!tunnel.isClosed() && !tunnel.draining()) {
+                connections += tunnel.connections();
+                queued += tunnel.pending() + tunnel.stats().remotePending();
+                active++;
+            }
+        }
+
+        if(active < Config.getMinTunnels()) {
+            _idleProbes = 0;
+            _warm();
+            return;
+        }
+
+        if(active == 0) {
+            // no minimum, tunnels are started by connections accepted
+            return;
+        }
+
+        double utilization = (double)connections / (active * (long)Config.getTunnelConnections());
+        if(utilization >= _GROW_UTILIZATION || queued >= _GROW_QUEUED * active) {
+            _idleProbes = 0;
+            _grow();
+            return;
+        }
+
+        if(active <= Config.getMinTunnels() || utilization >= _IDLE_UTILIZATION) {
+            _idleProbes = 0;
+            return;
+        }
+
+        if(++_idleProbes * _PROBE_INTERVAL < Config.getTunnelIdle()) {
+            return;
+        }
+
+        // drain the least used tunnel, one at a time
+        Tunnel least = null;
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            Tunnel tunnel = _tunnels.get(idx);
+            if(!tunnel.isClosed() && !tunnel.draining() && (least == null || tunnel.connections() < least.connections())) {
+                least = tunnel;
+            }
+        }
+
+        AutoLog.INFO.log("Draining tunnel %08x of shard %d with %d connections", least.getID(), _index, least.connections());
+        least.draining(true);
+        _idleProbes = 0;
+    }
+
+    /**
+     * Move connections found bulk to bulk tunnels, retire bulk tunnels empty for "--tunnelIdle" seconds
+     */
+    private void _classify() {
+        for(int idx = _bulkTunnels.size() - 1; idx >= 0; idx --) {
+            Tunnel tunnel = _bulkTunnels.get(idx);
+            int empty = tunnel.emptyProbes();
+            if(empty > 0 && (tunnel.isClosed() || empty * _PROBE_INTERVAL >= Config.getTunnelIdle())) {
+                AutoLog.INFO.log("Retiring bulk tunnel %08x of shard %d", tunnel.getID(), _index);
+                tunnel.shutdown();
+                _bulkTunnels.remove(idx);
+            }
+        }
+
+        long now = System.nanoTime();
+        long nanos = now - _sampledAt;
+        _sampledAt = now;
+
+        if(Config.getElephant() <= 0 || nanos <= 0) {
+            return;
+        }
+
+        double threshold = Config.getElephant() * 1024.0;
+        _connections.forEach(conn -> {
+            if(conn.sample(nanos) >= threshold && !conn.elephant() && conn.acknowledged() && conn.resumable()) {
+                _elephants.add(conn);
+            }
+        });
+
+        for(Connection conn : _elephants) {
+            Tunnel bulk = _bulkTunnel();
+            if(bulk == null) {
+                // one coming up, try again next probe
+                break;
+            }
+
+            _migrate(conn, bulk);
+        }
+
+        _elephants.clear();
+
+        if(Config.getStripe() <= 1) {
+            return;
+        }
+
+        _connections.forEach(conn -> {
+            if(conn.elephant() && conn.tunnel().bulk() && conn.stripes() < Config.getStripe()) {
+                _elephants.add(conn);
+            }
+        });
+
+        for(Connection conn : _elephants) {
+            if(!_stripe(conn)) {
+                // one coming up, try again next probe
+                break;
+            }
+        }
+
+        _elephants.clear();
+    }
+
+    /**
+     * Most bulk tunnels, enough for elephants to have one each and to stripe over
+     * @return
+     */
+    private int _maxBulkTunnels() {
+        return Math.max(Config.getBulkTunnels(), Config.getStripe());
+    }
+
+    /**
+     * Stripe an elephant over one more bulk tunnel, the one with the fewest connections it's not on yet,
+     * start one more bulk tunnel if none
+     * @param conn
+     * @return false if none ready yet
+     */
+    private boolean _stripe(Connection conn) {
+        Tunnel least = null;
+        int live = 0;
+        for(int idx = 0; idx < _bulkTunnels.size(); idx ++) {
+            Tunnel tunnel = _bulkTunnels.get(idx);
+            if(tunnel.connecting()) {
+                return false;
+            }
+
+            if(tunnel.ready()) {
+                live++;
+                if(!conn.striped(tunnel) && (least == null || tunnel.connections() < least.connections())) {
+                    least = tunnel;
+                }
+            }
+        }
+
+        if(least == null) {
+            if(live < _maxBulkTunnels()) {
+                try {
+                    Tunnel tunnel = _createTunnel(true);
+                    AutoLog.INFO.log("Starting bulk tunnel %08x of shard %d to stripe over", tunnel.getID(), _index);
+                }
+                catch(IOException ioe) {
+                    AutoLog.ERROR.exception(ioe).log("Cannot start bulk tunnel of shard %d", _index);
+                }
+            }
+
+            return false;
+        }
+
+        AutoLog.INFO.log("Striping connection %08x over bulk tunnel %08x of shard %d too", conn.getID(), least.getID(), _index);
+
+        least.write(new Block(conn.getID(), BlockUtils.control(Block.CODE_STRIPE)));
+        least.multiplex(conn);
+        conn.stripe(least);
+
+        return true;
+    }
+
+    /**
+     * Bulk tunnel for one more elephant, an empty one if any, otherwise start one more unless at
+     * "--bulkTunnels", then share the least used
+     * @return null if one is coming up
+     */
+    private Tunnel _bulkTunnel() {
+        Tunnel least = null;
+        int live = 0;
+        for(int idx = 0; idx < _bulkTunnels.size(); idx ++) {
+            Tunnel tunnel = _bulkTunnels.get(idx);
+            if(tunnel.connecting()) {
+                return null;
+            }
+
+            if(tunnel.ready()) {
+                live++;
+                if(least == null || tunnel.connections() < least.connections()) {
+                    least = tunnel;
+                }
+            }
+        }
+
+        if(least != null && least.connections() == 0) {
+            return least;
+        }
+
+        if(live < _maxBulkTunnels()) {
+            try {
+                Tunnel tunnel = _createTunnel(true);
+                AutoLog.INFO.log("Starting bulk tunnel %08x of shard %d", tunnel.getID(), _index);
+            }
+            catch(IOException ioe) {
+                AutoLog.ERROR.exception(ioe).log("Cannot start bulk tunnel of shard %d", _index);
+            }
+
+            return null;
+        }
+
+        return least;
+    }
+
+    /**
+     * Move a connection to another tunnel of this shard, server is told on the new tunnel before anything
+     * else of the connection. Sequences go on, blocks still on the way over the old tunnel are put back in
+     * order by ReorderBuffer on both sides
+     * @param conn
+     * @param to
+     */
+    private void _migrate(Connection conn, Tunnel to) {
+        Tunnel from = conn.tunnel();
+        AutoLog.INFO.log(
+                "Moving elephant connection %08x from tunnel %08x to bulk tunnel %08x of shard %d",
+                conn.getID(), from.getID(), to.getID(), _index
+        );
+
+        conn.elephant(true);
+
+        to.write(new Block(conn.getID(), BlockUtils.control(Block.CODE_RESUME)));
+        to.multiplex(conn);
+        conn.attach(to);
+        from.remove(conn.getID());
+    }
+
+    /**
+     * Probe one tunnel
+     * @param tunnel
+     */
+    private void _probe(Tunnel tunnel) {
+        tunnel.stats().sample();
+
+        if(!tunnel.ready()) {
+            return;
+        }
+
+        long waiting = tunnel.stats().waiting();
+        if(waiting > TimeUnit.SECONDS.toNanos(Config.getProbeTimeout())) {
+            AutoLog.WARN.log("Tunnel %08x of shard %d not answering probes for %d millis", tunnel.getID(), _index, waiting / 1000000);
+            tunnel.closed();
+            return;
+        }
+
+        long timestamp = tunnel.stats().probe();
+        if(timestamp >= 0) {
+            tunnel.write(Block.echo(timestamp));
+        }
+
+        AutoLog.DEBUG.log("Tunnel %08x: %d connections, %d bytes pending, %s", tunnel.getID(), tunnel.connections(), tunnel.pending(), tunnel.stats());
+    }
+
+    /**
+     * Sample throughput of every tunnel and probe server for RTT / load, then scale the pool and classify
+     * connections, on _loop
+     */
+    private void _probe() {
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            _probe(_tunnels.get(idx));
+        }
+
+        for(int idx = 0; idx < _bulkTunnels.size(); idx ++) {
+            _probe(_bulkTunnels.get(idx));
+        }
+
+        // connections left on failed tunnels
+        for(int idx = 0; idx < _tunnels.size(); idx ++) {
+            if(_tunnels.get(idx).isClosed()) {
+                _resume(_tunnels.get(idx));
+            }
+        }
+
+        for(int idx = 0; idx < _bulkTunnels.size(); idx ++) {
+            if(_bulkTunnels.get(idx).isClosed()) {
+                _resume(_bulkTunnels.get(idx));
+            }
+        }
+
+        _scale();
+        _classify();
+    }
+
+    private final Tunnel _createTunnel() throws IOException {
+        return _createTunnel(false);
+    }
+
+    private final Tunnel _createTunnel(boolean bulk) throws IOException {
+        TunnelTransport transport;
+        if("tcp".equalsIgnoreCase(Config.getTransport())) {
+            transport = new TcpTransport();
+        }
+        else if("ssh-async".equalsIgnoreCase(Config.getTransport())) {
+            transport = new SshAsyncTransport();
+        }
+        else {
+            transport = new SshTransport();
+        }
+
+        Tunnel tunnel = new Tunnel(this, transport, bulk);
+
+        tunnel.start(Config.getServerAddress(), Config.getServerPort(), Config.getForwardPort());
+        if(bulk) {
+            _bulkTunnels.add(tunnel);
+        }
+        else {
+            _tunnels.add(tunnel);
+        }
+
+        return tunnel;
+    }
+}
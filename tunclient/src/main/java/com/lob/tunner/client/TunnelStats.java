@@ -0,0 +1,173 @@
+package com.lob.tunner.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live load of one tunnel, for TunnelPolicy to place new connections on
+ * 1. throughput, data bytes read and written, as EWMA of per second samples
+ * 2. RTT, smoothed like TCP does (7/8 old + 1/8 new) from probes answered by server
+ * 3. load reported by server in answer to probes, connections and bytes it has queued for us
+ *
+ * Bytes queued locally are asked from the transport at the time (see Tunnel.pending()).
+ *
+ * Probes and samples are taken on the event loop of the tunnel's shard, stats could be read from any thread.
+ */
+public class TunnelStats {
+    /**
+     * Weight of the latest sample of throughput
+     */
+    private static final double _ALPHA = 0.3;
+
+    /**
+     * Probe timestamps are relative to this, so they are never negative
+     */
+    private static final long _EPOCH = System.nanoTime();
+
+    private final LongAdder _bytes = new LongAdder();
+    private long _sampledAt = System.nanoTime();
+
+    private volatile double _throughput = 0;
+    private volatile long _rtt = -1;
+
+    private volatile int _remoteConnections = 0;
+    private volatile long _remotePending = 0;
+
+    /**
+     * Timestamp of the probe not answered yet, -1 if none
+     */
+    private volatile long _probe = -1;
+
+    /**
+     * Timestamp of the last block read from the tunnel
+     */
+    private volatile long _heard = -1;
+
+    /**
+     * Server answers probes (CODE_LOAD) or knows CODE_HELLO, so a probe unanswered means the tunnel is stuck.
+     * Servers not knowing probes never answer them
+     */
+    private volatile boolean _armed = false;
+
+    private static long _timestamp() {
+        return System.nanoTime() - _EPOCH;
+    }
+
+    /**
+     * Start a probe, one at a time so a stuck tunnel doesn't pile them up
+     * @return timestamp to probe with, -1 if last probe not answered yet
+     */
+    public long probe() {
+        if(_probe >= 0) {
+            return -1;
+        }
+
+        _probe = _timestamp();
+        return _probe;
+    }
+
+    /**
+     * A block was read from the tunnel, so it's alive whatever probe is outstanding
+     */
+    public void heard() {
+        _heard = _timestamp();
+    }
+
+    /**
+     * Server answered CODE_HELLO, so it answers probes too
+     */
+    public void arm() {
+        _armed = true;
+    }
+
+    /**
+     * Data read or written on the tunnel
+     * @param bytes
+     */
+    public void transferred(int bytes) {
+        _bytes.add(bytes);
+    }
+
+    /**
+     * Take a throughput sample, called periodically on shard's event loop
+     */
+    public void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - _sampledAt;
+        if(elapsed <= 0) {
+            return;
+        }
+
+        double rate = _bytes.sumThenReset() * (double)TimeUnit.SECONDS.toNanos(1) / elapsed;
+        _throughput = _ALPHA * rate + (1 - _ALPHA) * _throughput;
+        _sampledAt = now;
+    }
+
+    /**
+     * Server answered a probe
+     * @param timestamp - of the probe
+     * @param connections - connections on the tunnel at server side
+     * @param pending - bytes queued at server side
+     */
+    public void probed(long timestamp, int connections, int pending) {
+        _probe = -1;
+        _armed = true;
+
+        long rtt = _timestamp() - timestamp;
+        if(rtt >= 0) {
+            long srtt = _rtt;
+            _rtt = srtt < 0 ? rtt : srtt - (srtt >> 3) + (rtt >> 3);
+        }
+
+        _remoteConnections = connections;
+        _remotePending = pending;
+    }
+
+    /**
+     * How long the last probe has waited for its answer, or since the tunnel was last heard of if later
+     * @return nanos, -1 if none outstanding or server never answers probes
+     */
+    public long waiting() {
+        long probe = _probe;
+        if(probe < 0 || !_armed) {
+            return -1;
+        }
+
+        return _timestamp() - Math.max(probe, _heard);
+    }
+
+    /**
+     * Bytes per second, smoothed
+     * @return
+     */
+    public double throughput() {
+        return _throughput;
+    }
+
+    /**
+     * Smoothed RTT in nanos, or how long the last probe is waiting if longer
+     * @return -1 if not measured yet
+     */
+    public long rtt() {
+        long rtt = _rtt;
+        long probe = _probe;
+
+        return probe < 0 ? rtt : Math.max(rtt, _timestamp() - probe);
+    }
+
+    public int remoteConnections() {
+        return _remoteConnections;
+    }
+
+    public long remotePending() {
+        return _remotePending;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "throughput=%.0f B/s, rtt=%.1f ms, remote connections=%d, remote pending=%d bytes",
+                _throughput, rtt() / 1e6, _remoteConnections, _remotePending
+        );
+    }
+}
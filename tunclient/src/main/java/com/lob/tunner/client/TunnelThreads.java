@@ -0,0 +1,38 @@
+package com.lob.tunner.client;
+
+import com.lob.tunner.common.Config;
+import com.lob.tunner.logger.AutoLog;
+
+/**
+ * Threads running blocking tunnel I/O (SSHJ readers / writers).
+ *
+ * These are always platform threads here. On Java 21 the multi-release jar carries another version of this
+ * class (src/main/java21) running them on virtual threads if asked by "--threads virtual".
+ */
+public class TunnelThreads {
+    private TunnelThreads() {
+
+    }
+
+    private static boolean _warned = false;
+
+    /**
+     * Create a thread (not started) for a tunnel task
+     * @param name
+     * @param task
+     * @param pinning - task waits inside synchronized code, never on a virtual thread
+     * @return
+     */
+    public static Thread newThread(String name, Runnable task, boolean pinning) {
+        if(!_warned && "virtual".equalsIgnoreCase(Config.getThreads())) {
+            _warned = true;
+            AutoLog.WARN.log("Virtual threads need Java 21 and the multi-release jar, using platform threads ...");
+        }
+
+        return new Thread(task, name);
+    }
+
+    public static boolean isVirtual() {
+        return false;
+    }
+}
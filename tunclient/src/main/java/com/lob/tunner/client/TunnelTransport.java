@@ -0,0 +1,39 @@
+package com.lob.tunner.client;
+
+import com.lob.tunner.common.Block;
+
+import java.io.IOException;
+
+/**
+ * Transport carrying the blocks of one tunnel to the tunnel server.
+ *
+ * A transport delivers every block it reads to Tunnel.received(), which then owns the block. It calls
+ * Tunnel.connected() once the link is up and Tunnel.closed() once the link is down (or failed to come up).
+ */
+public interface TunnelTransport {
+    /**
+     * Start connecting to the server, shall not block on establishing the link. Blocks written before the
+     * link is up are queued.
+     *
+     * @param tunnel - tunnel to deliver read blocks to
+     * @param target - server address
+     * @param port - server port of the link (e.g. SSH port)
+     * @param forwardPort - port tunnel server listens on
+     * @throws IOException
+     */
+    void start(Tunnel tunnel, String target, int port, int forwardPort) throws IOException;
+
+    /**
+     * Queue a block to write, the transport takes over the block. Could be called from any thread
+     * @param block
+     */
+    void write(Block block);
+
+    /**
+     * Bytes of data queued, not yet written to the link. Could be called from any thread
+     * @return
+     */
+    long pending();
+
+    void shutdown();
+}
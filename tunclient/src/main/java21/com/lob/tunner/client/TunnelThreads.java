@@ -0,0 +1,35 @@
+package com.lob.tunner.client;
+
+import com.lob.tunner.common.Config;
+
+/**
+ * Java 21 version of TunnelThreads, runs tunnel I/O on virtual threads with "--threads virtual".
+ *
+ * A virtual thread blocked on a lock / condition or socket doesn't hold an OS thread. But waiting inside
+ * synchronized code (Object.wait(), e.g. SSHJ ChannelInputStream.read) pins its carrier, and carriers are
+ * capped (jdk.virtualThreadScheduler.maxPoolSize, 256 by default), so such tasks stay on platform threads.
+ */
+public class TunnelThreads {
+    private TunnelThreads() {
+
+    }
+
+    /**
+     * Create a thread (not started) for a tunnel task
+     * @param name
+     * @param task
+     * @param pinning - task waits inside synchronized code
+     * @return
+     */
+    public static Thread newThread(String name, Runnable task, boolean pinning) {
+        if(isVirtual() && !pinning) {
+            return Thread.ofVirtual().name(name).unstarted(task);
+        }
+
+        return Thread.ofPlatform().name(name).unstarted(task);
+    }
+
+    public static boolean isVirtual() {
+        return "virtual".equalsIgnoreCase(Config.getThreads());
+    }
+}
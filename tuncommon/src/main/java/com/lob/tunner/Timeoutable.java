@@ -1,13 +1,69 @@
 package com.lob.tunner;
 
+import com.lob.tunner.common.Config;
 import com.lob.tunner.logger.AutoLog;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Something timed out when idle (neither read nor written) for a while, like a connection.
+ *
+ * Idle timeouts are kept on one hashed timing wheel. Activity only stamps a coarse clock (updated every
+ * tick of the wheel, so no clock read per block), and nothing is re-scheduled on it. When the timeout fires
+ * it checks the stamps and is re-armed for the rest of the idle time if there was activity meanwhile.
+ * So timeouts are precise to a tick or two, and cost nothing while connections are busy.
+ */
 abstract public class Timeoutable {
-    private long _lastWrite = System.currentTimeMillis();
-    private long _lastRead = System.currentTimeMillis();
+    private static final long _TICK = 250;
+    private static final int _TICKS_PER_WHEEL = 512;
+
+    private static final HashedWheelTimer _TIMER = new HashedWheelTimer(
+            new DefaultThreadFactory("idle-timer", true), _TICK, TimeUnit.MILLISECONDS, _TICKS_PER_WHEEL
+    );
+
+    private static volatile long _NOW = System.currentTimeMillis();
+
+    static {
+        _TIMER.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                _NOW = System.currentTimeMillis();
+                _TIMER.newTimeout(this, _TICK, TimeUnit.MILLISECONDS);
+            }
+        }, _TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Coarse clock, millis updated once every tick
+     * @return
+     */
+    public static long now() {
+        return _NOW;
+    }
+
+    /**
+     * Activity stamps are written on every block by I/O threads and read by the timer thread, lazySet keeps
+     * the writes as cheap as plain ones
+     */
+    private static final AtomicLongFieldUpdater<Timeoutable> _LAST_WRITE =
+            AtomicLongFieldUpdater.newUpdater(Timeoutable.class, "_lastWrite");
+    private static final AtomicLongFieldUpdater<Timeoutable> _LAST_READ =
+            AtomicLongFieldUpdater.newUpdater(Timeoutable.class, "_lastRead");
+
+    private volatile long _lastWrite = _NOW;
+    private volatile long _lastRead = _NOW;
+
+    private long _idleTimeout = Config.getIdleTimeout() * 1000L;
+    private volatile Timeout _timeout = null;
+    private volatile boolean _disarmed = false;
 
     public void updateRead() {
-        _lastRead = System.currentTimeMillis();
+        _LAST_READ.lazySet(this, _NOW);
     }
 
     public long lastRead() {
@@ -15,14 +71,70 @@ abstract public class Timeoutable {
     }
 
     public void updateWrite() {
-        _lastWrite = System.currentTimeMillis();
+        _LAST_WRITE.lazySet(this, _NOW);
     }
 
     public long lastWrite() {
         return _lastWrite;
     }
 
+    /**
+     * Set idle timeout before arming, default to "--idleTimeout"
+     * @param millis - 0 to never time out
+     */
+    public void idleTimeout(long millis) {
+        _idleTimeout = millis;
+    }
 
+    public long idleTimeout() {
+        return _idleTimeout;
+    }
+
+    /**
+     * Start watching for idle timeout
+     */
+    public void arm() {
+        if(_idleTimeout > 0 && !_disarmed) {
+            _timeout = _TIMER.newTimeout(this::_expired, _idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop watching, once closed
+     */
+    public void disarm() {
+        _disarmed = true;
+
+        Timeout timeout = _timeout;
+        if(timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void _expired(Timeout timeout) {
+        if(_disarmed) {
+            return;
+        }
+
+        long now = _NOW;
+        long idle = now - Math.max(_lastRead, _lastWrite);
+        if(idle < _idleTimeout) {
+            // active since armed, wait for the rest
+            _timeout = _TIMER.newTimeout(this::_expired, _idleTimeout - idle, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        try {
+            timeout(now);
+        }
+        catch(Exception e) {
+            AutoLog.ERROR.exception(e).log("Cannot time out %s", this);
+        }
+    }
 
+    /**
+     * Idle for longer than idle timeout, called on the timer thread
+     * @param now
+     */
     abstract public void timeout(long now);
 }
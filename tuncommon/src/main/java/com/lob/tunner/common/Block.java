@@ -1,23 +1,56 @@
 package com.lob.tunner.common;
 
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.BufferUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
+
 import java.nio.ByteBuffer;
 
 /**
  * Block is a piece of data with 8 bytes header
+ *
+ * Payload is kept in a (usually pooled) ByteBuf and the block is reference counted on top of it. Whoever
+ * finally consumes a block (writes it out to a socket / tunnel) is responsible to release it. Writing the
+ * content() to a netty channel transfers the ownership to netty, so no extra release is needed then.
  */
-public class Block {
+public class Block implements ReferenceCounted {
     /**
      * highest two bits of first byte, Type of block, could be
      *   01xx xxxx xxxx xxxx  - data
      *   10xx xxxx xxxx xxxx - control
+     *   11xx xxxx xxxx xxxx - data with the whole 32 bits sequence in 4 bytes right after the header (padding
+     *                         then covers sequence and payload). Only sent once the peer takes it (CODE_HELLO)
      */
     public final static short BLOCK_DATA = (short)0x4000;
     public final static short BLOCK_CONTROL = (short)0x8000;
+    public final static short BLOCK_EXTENDED = (short)0xC000;
+
+    public final static short CODE_ECHO = 0; // with random 8*x bytes payload, or 8 bytes timestamp as load probe
+    public final static short CODE_START = 1; // start a connection, optional 4 bytes payload of weight
+    public final static short CODE_RESUME = 2; // connection moved to the tunnel this comes on, 12 bytes payload if to replay (see Block.resume)
+    public final static short CODE_CREDIT = 3; // grant flow control credit, 8 bytes payload (see Block.credit)
+    public final static short CODE_LOAD = 4; // server load answering a probe, 16 bytes payload (see Block.load)
+    public final static short CODE_STRIPE = 5; // connection also striped over the tunnel this comes on
+    public final static short CODE_HELLO = 6; // features offered by client first thing on a tunnel / taken by server, 4 bytes payload
+    public final static short CODE_FRAMING = 7; // frames after this one are in the framing version of 4 bytes payload
+    public final static short CODE_ABORT = (short)0x00FF; // optional 4 bytes payload of sequence after the last block sent
+
+    /**
+     * Features in CODE_HELLO
+     */
+    public final static int FEATURE_SEQ32 = 1; // BLOCK_EXTENDED, so sequences don't wrap every 16K blocks
+    public final static int FEATURE_COMPACT = 2; // compact framing (see CompactEncoder), each side switches with CODE_FRAMING
+    public final static int FEATURE_DEFLATE = 4; // data blocks deflated in the compact framing, flagged per record
+    public final static int FEATURE_CREDIT = 8; // data sends limited by CODE_CREDIT (see FlowControl), otherwise unlimited
+    public final static int FEATURE_RESUME = 16; // connections moved between tunnels with CODE_RESUME / CODE_STRIPE
 
-    public final static short CODE_ECHO = 0; // with random 8*x bytes payload
-    public final static short CODE_START = 1; // start a connection
-    public final static short CODE_RESUME = 2;
-    public final static short CODE_ABORT = (short)0x00FF;
+    /**
+     * Framing versions in CODE_FRAMING, tunnels always start with FRAMING_BLOCK
+     */
+    public final static int FRAMING_BLOCK = 1;
+    public final static int FRAMING_COMPACT = 2;
 
     /**
      * If _type is CONTROl, the following 14 bits will be control code
@@ -37,7 +70,13 @@ public class Block {
      */
     private final int _conn;
 
-    private final ByteBuffer _data;
+    /**
+     * Whole sequence of a data block, only the lowest 14 bits are in _typeSeq. Blocks decoded off the wire
+     * only have those unless BLOCK_EXTENDED
+     */
+    private final int _seq;
+
+    private final ByteBuf _data;
 
     /**
      * Create a control block for a connection
@@ -48,24 +87,330 @@ public class Block {
     public Block(int conn, short seqType) {
         this._conn = conn;
         this._typeSeq = seqType;
+        this._seq = seqType & BlockUtils.MAX_SEQ;
         this._length = 0;
         this._data = null;
     }
 
+    /**
+     * Create a block on a heap buffer, the buffer is wrapped (not copied)
+     *
+     * @param conn
+     * @param seqType
+     * @param len
+     * @param data
+     */
     public Block(int conn, short seqType, int len, ByteBuffer data) {
         this._conn = conn;
         this._typeSeq = seqType;
+        this._seq = seqType & BlockUtils.MAX_SEQ;
         this._length = len;
+        this._data = data == null ? null : Unpooled.wrappedBuffer(data);
+    }
+
+    /**
+     * Create a block taking over the ownership of data, normally a retained slice of what was read from
+     * a channel. Length is the readable bytes of data.
+     *
+     * @param conn
+     * @param seqType
+     * @param data
+     */
+    public Block(int conn, short seqType, ByteBuf data) {
+        this(conn, seqType, seqType & BlockUtils.MAX_SEQ, data);
+    }
+
+    /**
+     * Create a block taking over the ownership of data, with the whole sequence
+     *
+     * @param conn
+     * @param seqType
+     * @param seq
+     * @param data - null for no payload
+     */
+    public Block(int conn, short seqType, int seq, ByteBuf data) {
+        this._conn = conn;
+        this._typeSeq = seqType;
+        this._seq = seq;
+        this._length = data == null ? 0 : data.readableBytes();
         this._data = data;
     }
 
+    /**
+     * Deep copy of a block
+     * @param b
+     */
     public Block(Block b) {
         this._conn = b._conn;
         this._typeSeq = b._typeSeq;
+        this._seq = b._seq;
         this._length = b._length;
-        this._data = ByteBuffer.allocate(b._data.limit());
-        this._data.put(b._data);
-        this._data.rewind();
+        this._data = b._data == null ? null : b._data.copy();
+    }
+
+    /**
+     * Create a data block taking over the ownership of data
+     * @param conn
+     * @param seq - whole sequence, sent in 14 bits unless the tunnel extends it
+     * @param data
+     * @return
+     */
+    public static Block data(int conn, int seq, ByteBuf data) {
+        return new Block(conn, BlockUtils.sequence((short)seq), seq, data);
+    }
+
+    /**
+     * Create a CODE_HELLO block
+     * @param features - FEATURE_xxx
+     * @return
+     */
+    public static Block hello(int features) {
+        return new Block(0, BlockUtils.control(CODE_HELLO), Unpooled.buffer(4).writeInt(features));
+    }
+
+    /**
+     * Features in a CODE_HELLO block
+     * @param data
+     * @return
+     */
+    public static int featuresOf(ByteBuffer data) {
+        return data == null || data.remaining() < 4 ? 0 : data.getInt(data.position());
+    }
+
+    /**
+     * Create a CODE_FRAMING block, the writer switches to the version right after writing it
+     * @param version - FRAMING_xxx
+     * @param features - FEATURE_xxx taken the writer uses in the framing, e.g. FEATURE_DEFLATE
+     * @return
+     */
+    public static Block framing(int version, int features) {
+        return new Block(0, BlockUtils.control(CODE_FRAMING), Unpooled.buffer(8).writeInt(version).writeInt(features));
+    }
+
+    /**
+     * Features the writer uses after a CODE_FRAMING block
+     * @param block
+     * @return
+     */
+    public static int framingFeaturesOf(Block block) {
+        return block.length() < 8 ? 0 : block.content().getInt(block.content().readerIndex() + 4);
+    }
+
+    /**
+     * Framing version of frames following a block, if the block switches it
+     * @param block
+     * @return 0 if not a CODE_FRAMING block
+     */
+    public static int framingOf(Block block) {
+        if(block.type() != BLOCK_CONTROL || block.control() != CODE_FRAMING || block.length() < 4) {
+            return 0;
+        }
+
+        return block.content().getInt(block.content().readerIndex());
+    }
+
+    /**
+     * Create a CODE_START block for a connection to be scheduled by weight
+     * @param conn
+     * @param weight
+     * @return
+     */
+    public static Block start(int conn, int weight) {
+        return new Block(conn, BlockUtils.control(CODE_START), Unpooled.buffer(4).writeInt(weight));
+    }
+
+    /**
+     * Weight in a CODE_START block, 1 if not given
+     * @param data - payload of the block, could be null
+     * @return
+     */
+    public static int weightOf(ByteBuffer data) {
+        return data == null || data.remaining() < 4 ? 1 : data.getInt(data.position());
+    }
+
+    /**
+     * Create a CODE_ABORT block telling the last data block sent, so the peer closes only once it has all of
+     * them (blocks may still be on the way over another tunnel)
+     * @param conn
+     * @param next - sequence after the last data block sent
+     * @return
+     */
+    public static Block abort(int conn, int next) {
+        return new Block(conn, BlockUtils.control(CODE_ABORT), Unpooled.buffer(4).writeInt(next));
+    }
+
+    /**
+     * Sequence after the last data block sent (CODE_ABORT) or received (CODE_RESUME)
+     * @param data - payload of the block, could be null
+     * @return -1 if not given
+     */
+    public static int sequenceOf(ByteBuffer data) {
+        return data == null || data.remaining() < 4 ? -1 : data.getInt(data.position());
+    }
+
+    /**
+     * Create a CODE_CREDIT block granting credit to send on a connection, and acknowledging data received
+     * @param conn
+     * @param granted - credit granted since started beyond the initial window, in total (see FlowControl)
+     * @param ack - sequence after the last data block received in order, -1 if none
+     * @return
+     */
+    public static Block credit(int conn, int granted, int ack) {
+        return new Block(conn, BlockUtils.control(CODE_CREDIT), Unpooled.buffer(8).writeInt(granted).writeInt(ack));
+    }
+
+    /**
+     * Credit granted in total by a CODE_CREDIT block
+     * @param data - payload of the block
+     * @return
+     */
+    public static int creditOf(ByteBuffer data) {
+        return data.getInt(data.position());
+    }
+
+    /**
+     * Sequence acknowledged by a CODE_CREDIT block
+     * @param data - payload of the block
+     * @return -1 if none
+     */
+    public static int ackOf(ByteBuffer data) {
+        return data.remaining() < 8 ? -1 : data.getInt(data.position() + 4);
+    }
+
+    /**
+     * Flags in a CODE_RESUME block
+     */
+    public final static int RESUME_UNACKNOWLEDGED = 1; // never heard from the peer, which may not have got CODE_START
+
+    /**
+     * Create a CODE_RESUME block moving a connection after its tunnel failed, the peer replays what it sent
+     * from next. Only if flagged RESUME_UNACKNOWLEDGED, a peer not knowing the connection starts it (it never
+     * got CODE_START), otherwise it's gone there already (its CODE_ABORT lost with the tunnel) and is aborted
+     * @param conn
+     * @param next - sequence after the last data block received in order
+     * @param weight
+     * @param acknowledged - heard from the peer on the connection
+     * @return
+     */
+    public static Block resume(int conn, int next, int weight, boolean acknowledged) {
+        return new Block(
+                conn, BlockUtils.control(CODE_RESUME),
+                Unpooled.buffer(12).writeInt(next).writeInt(weight).writeInt(acknowledged ? 0 : RESUME_UNACKNOWLEDGED)
+        );
+    }
+
+    /**
+     * Weight in a CODE_RESUME block, 1 if not given
+     * @param data - payload of the block, could be null
+     * @return
+     */
+    public static int resumeWeightOf(ByteBuffer data) {
+        return data == null || data.remaining() < 8 ? 1 : data.getInt(data.position() + 4);
+    }
+
+    /**
+     * Flags (RESUME_xxx) in a CODE_RESUME block
+     * @param data - payload of the block, could be null
+     * @return 0 if not given
+     */
+    public static int resumeFlagsOf(ByteBuffer data) {
+        return data == null || data.remaining() < 12 ? 0 : data.getInt(data.position() + 8);
+    }
+
+    /**
+     * Create a CODE_ECHO block probing the load of the tunnel
+     * @param timestamp - echoed back in CODE_LOAD
+     * @return
+     */
+    public static Block echo(long timestamp) {
+        return new Block(0, BlockUtils.control(CODE_ECHO), Unpooled.buffer(8).writeLong(timestamp));
+    }
+
+    /**
+     * Timestamp of a probe, in CODE_ECHO or CODE_LOAD block
+     * @param data - payload of the block, could be null
+     * @return -1 if not a probe
+     */
+    public static long timestampOf(ByteBuffer data) {
+        return data == null || data.remaining() < 8 ? -1 : data.getLong(data.position());
+    }
+
+    /**
+     * Create a CODE_LOAD block answering a probe with the load of the tunnel at server side
+     * @param timestamp - of the probe
+     * @param connections - connections on the tunnel
+     * @param pending - bytes queued to write back on the tunnel
+     * @return
+     */
+    public static Block load(long timestamp, int connections, long pending) {
+        return new Block(0, BlockUtils.control(CODE_LOAD), Unpooled.buffer(16)
+                .writeLong(timestamp)
+                .writeInt(connections)
+                .writeInt((int)Math.min(pending, Integer.MAX_VALUE))
+        );
+    }
+
+    /**
+     * Connections in a CODE_LOAD block
+     * @param data
+     * @return
+     */
+    public static int connectionsOf(ByteBuffer data) {
+        return data.getInt(data.position() + 8);
+    }
+
+    /**
+     * Bytes pending in a CODE_LOAD block
+     * @param data
+     * @return
+     */
+    public static int pendingOf(ByteBuffer data) {
+        return data.getInt(data.position() + 12);
+    }
+
+    /**
+     * Another block on the same payload, with its own indexes and a reference of its own. So a block kept
+     * to be sent again is not affected by sending it
+     * @return
+     */
+    public Block retainedDuplicate() {
+        return new Block(_conn, _typeSeq, _seq, _data == null ? null : _data.retainedDuplicate());
+    }
+
+    /**
+     * The data block as BLOCK_EXTENDED, taking over the payload. Blocks of other types are returned as is
+     * @return
+     */
+    public Block extend() {
+        if(type() != BLOCK_DATA || extended()) {
+            return this;
+        }
+
+        return new Block(_conn, (short)(BLOCK_EXTENDED | (_seq & BlockUtils.MAX_SEQ)), _seq, _data);
+    }
+
+    /**
+     * Data block with the whole sequence on wire
+     * @return
+     */
+    public final boolean extended() {
+        return (_typeSeq & BLOCK_EXTENDED) == BLOCK_EXTENDED;
+    }
+
+    /**
+     * Bytes between header and payload on wire, the sequence of BLOCK_EXTENDED
+     * @return
+     */
+    public final int extension() {
+        return extended() ? 4 : 0;
+    }
+
+    /**
+     * Bytes of the block on wire, header, extension, payload and padding
+     * @return
+     */
+    public final int frameLength() {
+        return 8 + BufferUtils.round(extension() + _length);
     }
 
     public final short getTypeSeq() {
@@ -80,24 +425,37 @@ public class Block {
         return _length;
     }
 
+    /**
+     * NIO view of the payload (shares content, no copy), null for blocks without payload
+     * @return
+     */
     public final ByteBuffer data() {
+        return _data == null ? null : _data.nioBuffer();
+    }
+
+    /**
+     * Payload of the block, null for blocks without payload
+     * @return
+     */
+    public final ByteBuf content() {
         return _data;
     }
 
     /**
-     * Highest two bits of _typeSeq
+     * Highest two bits of _typeSeq, BLOCK_DATA for BLOCK_EXTENDED as well
      * @return
      */
     public final short type() {
-        return (short)(_typeSeq & 0xC000);
+        short type = (short)(_typeSeq & 0xC000);
+        return type == BLOCK_EXTENDED ? BLOCK_DATA : type;
     }
 
     /**
-     * Lowest 14 bits if data block
+     * Sequence if data block, only the lowest 14 bits if decoded from a block not extended (see ReorderBuffer)
      * @return
      */
-    public final short sequence() {
-        return (short)(_typeSeq & 0x3FFF);
+    public final int sequence() {
+        return _seq;
     }
 
     /**
@@ -108,18 +466,50 @@ public class Block {
         return (short)(_typeSeq & 0xFF);
     }
 
-    public boolean read(ByteBuffer data) {
-        if(_length == 0) {
-            return true;
+    @Override
+    public int refCnt() {
+        return _data == null ? 1 : _data.refCnt();
+    }
+
+    @Override
+    public Block retain() {
+        if(_data != null) {
+            _data.retain();
         }
+        return this;
+    }
 
-        while(_data.hasRemaining() && data.hasRemaining()) {
-            _data.put(data.get());
+    @Override
+    public Block retain(int increment) {
+        if(_data != null) {
+            _data.retain(increment);
         }
+        return this;
+    }
 
-        // ready for processing!!!
-        _data.rewind();
+    @Override
+    public Block touch() {
+        if(_data != null) {
+            _data.touch();
+        }
+        return this;
+    }
+
+    @Override
+    public Block touch(Object hint) {
+        if(_data != null) {
+            _data.touch(hint);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return _data == null || _data.release();
+    }
 
-        return true;
+    @Override
+    public boolean release(int decrement) {
+        return _data == null || _data.release(decrement);
     }
 }
@@ -0,0 +1,49 @@
+package com.lob.tunner.common;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Piece of the payload of a data block, passed on as it comes off the wire (cut-through) rather than once the
+ * whole block is there. Fragments of a block come in order, one right after the other on the tunnel, the last
+ * one ends at whole().
+ *
+ * Sequence accounting (ReorderBuffer) only moves on with the last fragment.
+ */
+public class BlockFragment extends Block {
+    private final int _offset;
+    private final int _whole;
+
+    /**
+     * @param conn
+     * @param seqType - of the block
+     * @param seq - of the block
+     * @param data - piece of the payload, taken over
+     * @param offset - of the piece in the payload
+     * @param whole - length of the whole payload
+     */
+    public BlockFragment(int conn, short seqType, int seq, ByteBuf data, int offset, int whole) {
+        super(conn, seqType, seq, data);
+        _offset = offset;
+        _whole = whole;
+    }
+
+    /**
+     * Offset of the fragment in the payload of its block
+     * @return
+     */
+    public int offset() {
+        return _offset;
+    }
+
+    /**
+     * Length of the whole payload of its block
+     * @return
+     */
+    public int whole() {
+        return _whole;
+    }
+
+    public boolean last() {
+        return _offset + length() == _whole;
+    }
+}
@@ -0,0 +1,130 @@
+package com.lob.tunner.common;
+
+import com.lob.tunner.handlers.BlockDecoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read blocks from a blocking stream.
+ *
+ * Data is read in big chunks into a pooled buffer and as many blocks as available are parsed out of it.
+ * Block payloads are retained slices of the chunk, so there's no allocation or copy per block. Only a
+ * partial frame left at the end of a chunk is carried over to the next one.
+ *
+ * Data could also be pushed in by write() (e.g. from an asynchronous channel) and blocks taken by next().
+ *
+ * One reader per tunnel, its decoder follows the peer switching framing (see BlockDecoder). With cut-through
+ * (Config.isCutThrough()) big data blocks come as BlockFragments as their payload is read.
+ */
+public class BlockReader {
+    public static final int CHUNK_SIZE = 128 * 1024;
+
+    /**
+     * Don't bother reading into a chunk with less room than this, move on to a new chunk
+     */
+    private static final int _MIN_READ = 8 * 1024;
+
+    private final InputStream _is;
+    private final BlockDecoder _decoder = new BlockDecoder(Config.isCutThrough());
+    private ByteBuf _buffer = null;
+
+    public BlockReader(InputStream is) {
+        _is = is;
+    }
+
+    /**
+     * Reader fed by write()
+     */
+    public BlockReader() {
+        this(null);
+    }
+
+    /**
+     * Read next block, block until a whole block is available
+     * @return
+     * @throws IOException
+     */
+    public Block read() throws IOException {
+        for(;;) {
+            Block block = next();
+            if(block != null) {
+                return block;
+            }
+
+            _fill();
+        }
+    }
+
+    /**
+     * Next block from data already buffered, null if there's no complete block
+     * @return
+     */
+    public Block next() {
+        return _buffer == null ? null : _decoder.next(_buffer);
+    }
+
+    /**
+     * Buffer data read by caller, take blocks by next() afterwards
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void write(byte[] data, int offset, int length) {
+        while(length > 0) {
+            _prepare();
+
+            int bytes = Math.min(length, _buffer.writableBytes());
+            _buffer.writeBytes(data, offset, bytes);
+
+            offset += bytes;
+            length -= bytes;
+        }
+    }
+
+    /**
+     * Release the chunk in use, blocks already read are not affected
+     */
+    public void close() {
+        _decoder.close();
+
+        if(_buffer != null) {
+            _buffer.release();
+            _buffer = null;
+        }
+    }
+
+    private void _fill() throws IOException {
+        _prepare();
+
+        if(_buffer.writeBytes(_is, _buffer.writableBytes()) < 0) {
+            throw new EOFException("Tunnel stream closed");
+        }
+    }
+
+    /**
+     * Make sure there's a chunk with room to read into
+     */
+    private void _prepare() {
+        if(_buffer == null) {
+            _buffer = PooledByteBufAllocator.DEFAULT.heapBuffer(CHUNK_SIZE, CHUNK_SIZE);
+        }
+        else if(_buffer.writableBytes() < _MIN_READ) {
+            if(!_buffer.isReadable() && _buffer.refCnt() == 1) {
+                // no block is still using the chunk, reuse it
+                _buffer.clear();
+            }
+            else {
+                // a partial frame (at most one max block) left, carry it over
+                ByteBuf chunk = PooledByteBufAllocator.DEFAULT.heapBuffer(CHUNK_SIZE, CHUNK_SIZE);
+                chunk.writeBytes(_buffer);
+
+                _buffer.release();
+                _buffer = chunk;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.lob.tunner.common;
+
+import io.netty.util.collection.IntObjectHashMap;
+
+import java.util.ArrayDeque;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Order in which blocks queued on a tunnel are written out, so a bulk transfer cannot make the small
+ * requests of other connections wait behind megabytes.
+ *
+ * 1. control blocks go first (strict priority), except an ABORT of a connection with data still queued,
+ *    which stays behind that data
+ * 2. data blocks are queued per connection, connections take turns by deficit round robin, each turn
+ *    a connection may send QUANTUM * weight bytes (its deficit carries over if the next block is larger)
+ *
+ * Not thread safe, only used by the single thread writing a tunnel.
+ */
+public class BlockScheduler {
+    public static final int QUANTUM = 16 * 1024;
+    public static final int MAX_WEIGHT = 16;
+
+    private final ArrayDeque<Block> _control = new ArrayDeque<>();
+
+    private final IntObjectHashMap<Flow> _flows = new IntObjectHashMap<>();
+    private final ArrayDeque<Flow> _active = new ArrayDeque<>();
+
+    private final IntUnaryOperator _weights;
+    private int _size = 0;
+
+    /**
+     * Every connection with weight 1
+     */
+    public BlockScheduler() {
+        this(connection -> 1);
+    }
+
+    /**
+     * @param weights - weight of connection by ID, looked up when it gets blocks queued
+     */
+    public BlockScheduler(IntUnaryOperator weights) {
+        _weights = weights;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Queue a block, the scheduler takes over the block
+     * @param block
+     */
+    public void add(Block block) {
+        _size++;
+
+        Flow flow = _flows.get(block.connection());
+        if(block.type() != Block.BLOCK_DATA && (flow == null || block.control() != Block.CODE_ABORT)) {
+            _control.add(block);
+            return;
+        }
+
+        if(flow == null) {
+            int weight = Math.max(1, Math.min(MAX_WEIGHT, _weights.applyAsInt(block.connection())));
+            flow = new Flow(block.connection(), weight);
+
+            _flows.put(flow.connection, flow);
+            _active.add(flow);
+        }
+
+        flow.blocks.add(block);
+    }
+
+    /**
+     * Take the next block to write out
+     * @return null if nothing queued
+     */
+    public Block next() {
+        Block block = _control.poll();
+        if(block != null) {
+            _size--;
+            return block;
+        }
+
+        while(!_active.isEmpty()) {
+            Flow flow = _active.peek();
+            if(!flow.visited) {
+                flow.deficit += QUANTUM * flow.weight;
+                flow.visited = true;
+            }
+
+            block = flow.blocks.peek();
+            if(block.length() <= flow.deficit) {
+                flow.deficit -= block.length();
+                flow.blocks.poll();
+
+                if(flow.blocks.isEmpty()) {
+                    // idle connections keep no deficit
+                    _active.poll();
+                    _flows.remove(flow.connection);
+                }
+
+                _size--;
+                return block;
+            }
+
+            // turn is over
+            _active.poll();
+            flow.visited = false;
+            _active.add(flow);
+        }
+
+        return null;
+    }
+
+    /**
+     * Release everything queued
+     * @return bytes of the blocks released
+     */
+    public long drop() {
+        long bytes = 0;
+        Block block;
+        while((block = next()) != null) {
+            bytes += block.length();
+            block.release();
+        }
+
+        return bytes;
+    }
+
+    private static class Flow {
+        final int connection;
+        final int weight;
+        final ArrayDeque<Block> blocks = new ArrayDeque<>();
+
+        int deficit = 0;
+        boolean visited = false;
+
+        Flow(int connection, int weight) {
+            this.connection = connection;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.lob.tunner.common;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent map from int (connection ID) to value, for the per block lookups of connection tables.
+ *
+ * Keys are kept unboxed in open addressing (linear probing) tables, one slot is a key in an int[] plus a
+ * value reference, instead of a node and an Integer per entry as in ConcurrentHashMap.
+ *
+ * Reads never lock. Updates lock the stripe of the key, a map with one stripe is meant for tables mostly
+ * updated by one thread (a tunnel, a shard), more stripes for tables updated from many event loops.
+ *
+ * How reads stay consistent without locks:
+ * 1. a slot's key is written before its value is (volatile) set, readers read the value first, then key
+ * 2. a removed slot keeps its key with a tombstone value and is only ever reused by the same key, so a
+ *    key read after a value always belongs to that value
+ * 3. tombstones are dropped by rehashing into a new table, which is published when complete
+ *
+ * @param <V>
+ */
+public class ConcurrentIntMap<V> {
+    private static final Object _TOMBSTONE = new Object();
+    private static final int _MIN_CAPACITY = 16;
+
+    private final Stripe<V>[] _stripes;
+    private final int _mask;
+
+    /**
+     * Create a map with one stripe
+     */
+    public ConcurrentIntMap() {
+        this(1);
+    }
+
+    /**
+     * Create a map
+     * @param stripes - number of independently locked stripes, rounded up to power of 2
+     */
+    public ConcurrentIntMap(int stripes) {
+        int count = 1;
+        while(count < stripes) {
+            count <<= 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        Stripe<V>[] created = (Stripe<V>[])new Stripe<?>[count];
+        for(int idx = 0; idx < count; idx++) {
+            created[idx] = new Stripe<>();
+        }
+
+        _stripes = created;
+
+        _mask = count - 1;
+    }
+
+    /**
+     * Spread sequential IDs over the table, low bits pick the slot and high bits the stripe
+     * @param key
+     * @return
+     */
+    private static int _hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Stripe<V> _stripe(int hash) {
+        return _stripes[(hash >>> 24) & _mask];
+    }
+
+    public V get(int key) {
+        int hash = _hash(key);
+        return _stripe(hash).get(key, hash);
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Map key to value
+     * @param key
+     * @param value - not null
+     * @return previous value of key, or null
+     */
+    public V put(int key, V value) {
+        if(value == null) {
+            throw new NullPointerException("Null value for key " + key);
+        }
+
+        int hash = _hash(key);
+        return _stripe(hash).put(key, hash, value);
+    }
+
+    /**
+     * Remove key
+     * @param key
+     * @return value removed, or null
+     */
+    public V remove(int key) {
+        int hash = _hash(key);
+        return _stripe(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for(Stripe<V> stripe : _stripes) {
+            size += stripe._size;
+        }
+
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for(Stripe<V> stripe : _stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * Visit values of a snapshot of tables, weakly consistent like ConcurrentHashMap iterators
+     * @param action
+     */
+    public void forEach(Consumer<? super V> action) {
+        for(Stripe<V> stripe : _stripes) {
+            stripe.forEach(action);
+        }
+    }
+
+    private static class Table {
+        final int[] keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        /**
+         * Slots used (live or tombstone), guarded by stripe
+         */
+        int used = 0;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        int length() {
+            return mask + 1;
+        }
+    }
+
+    private static class Stripe<V> {
+        private volatile Table _table = new Table(_MIN_CAPACITY);
+        private volatile int _size = 0;
+
+        @SuppressWarnings("unchecked")
+        V get(int key, int hash) {
+            Table table = _table;
+
+            for(int idx = hash & table.mask; ; idx = (idx + 1) & table.mask) {
+                Object value = table.values.get(idx);
+                if(value == null) {
+                    return null;
+                }
+
+                if(table.keys[idx] == key) {
+                    return value == _TOMBSTONE ? null : (V)value;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(int key, int hash, V value) {
+            Table table = _table;
+
+            int idx = hash & table.mask;
+            for(; ; idx = (idx + 1) & table.mask) {
+                Object current = table.values.get(idx);
+                if(current == null) {
+                    break;
+                }
+
+                if(table.keys[idx] == key) {
+                    table.values.set(idx, value);
+                    if(current == _TOMBSTONE) {
+                        _size++;
+                        return null;
+                    }
+
+                    return (V)current;
+                }
+            }
+
+            // keep at most half of the slots used so probing stays short
+            if((table.used + 1) * 2 > table.length()) {
+                table = _rehash(table, _size + 1);
+                idx = hash & table.mask;
+                while(table.values.get(idx) != null) {
+                    idx = (idx + 1) & table.mask;
+                }
+            }
+
+            table.keys[idx] = key;
+            table.values.set(idx, value);
+            table.used++;
+            _size++;
+
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(int key, int hash) {
+            Table table = _table;
+
+            for(int idx = hash & table.mask; ; idx = (idx + 1) & table.mask) {
+                Object value = table.values.get(idx);
+                if(value == null) {
+                    return null;
+                }
+
+                if(table.keys[idx] == key) {
+                    if(value == _TOMBSTONE) {
+                        return null;
+                    }
+
+                    table.values.set(idx, _TOMBSTONE);
+                    _size--;
+
+                    return (V)value;
+                }
+            }
+        }
+
+        synchronized void clear() {
+            _table = new Table(_MIN_CAPACITY);
+            _size = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        void forEach(Consumer<? super V> action) {
+            Table table = _table;
+
+            for(int idx = 0; idx < table.length(); idx++) {
+                Object value = table.values.get(idx);
+                if(value != null && value != _TOMBSTONE) {
+                    action.accept((V)value);
+                }
+            }
+        }
+
+        /**
+         * Copy live entries to a new table sized for them (growing or shrinking), and publish it
+         * @param table
+         * @param size - live entries including the one to be added
+         * @return
+         */
+        private Table _rehash(Table table, int size) {
+            // less than half used after rehash
+            int capacity = _MIN_CAPACITY;
+            while(capacity <= size * 2) {
+                capacity <<= 1;
+            }
+
+            Table rehashed = new Table(capacity);
+            for(int idx = 0; idx < table.length(); idx++) {
+                Object value = table.values.get(idx);
+                if(value == null || value == _TOMBSTONE) {
+                    continue;
+                }
+
+                int key = table.keys[idx];
+                int slot = _hash(key) & rehashed.mask;
+                while(rehashed.values.get(slot) != null) {
+                    slot = (slot + 1) & rehashed.mask;
+                }
+
+                rehashed.keys[slot] = key;
+                rehashed.values.lazySet(slot, value);
+                rehashed.used++;
+            }
+
+            _table = rehashed;
+            return rehashed;
+        }
+    }
+}
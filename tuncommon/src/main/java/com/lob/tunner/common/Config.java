@@ -1,6 +1,7 @@
 package com.lob.tunner.common;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -21,6 +22,24 @@ public class Config {
         parser.addArgument("-l", "--listen").type(Integer.class).setDefault(8080)
                 .help("Default local port to listen on, default to 8080");
 
+        parser.addArgument("--nio").action(Arguments.storeTrue())
+                .help("Use NIO even if native epoll is available");
+
+        parser.addArgument("--idleTimeout").type(Integer.class).setDefault(30)
+                .help("Seconds before closing connections neither read nor written, 0 to never close, default to 30");
+
+        parser.addArgument("--window").type(Integer.class).setDefault(256)
+                .help("KB of data the peer may send on a connection before it's drained here, at least 256, default to 256");
+
+        parser.addArgument("--cutThrough").action(Arguments.storeTrue())
+                .help("Forward payload of big blocks from tunnel as it arrives, rather than once the whole block is read");
+
+        parser.addArgument("--aggregate").type(Integer.class).setDefault(64)
+                .help("KB of data read from a connection to put in blocks at once, 0 to put each read in blocks of its own, default to 64");
+
+        parser.addArgument("--aggregateDelay").type(Integer.class).setDefault(0)
+                .help("Micros to wait for more data after a read from a connection, if less than --aggregate read, default to 0");
+
         if(isClient) {
             parser.addArgument("-u", "--user")
                     .help("User name to connect to remote server");
@@ -37,6 +56,53 @@ public class Config {
             parser.addArgument("-f", "--forwardPort").type(Integer.class).setDefault(8080)
                     .help("Remote server port to tunnel to, default to 8080");
 
+            parser.addArgument("-t", "--transport").choices("ssh", "ssh-async", "tcp").setDefault("ssh")
+                    .help("Tunnel transport, 'ssh' to tunnel through SSH server, 'ssh-async' to tunnel through SSH server with non-blocking IO, 'tcp' to connect tunnel server directly on forward port, default to ssh");
+
+            parser.addArgument("--threads").choices("platform", "virtual").setDefault("platform")
+                    .help("Threads running blocking tunnel I/O, 'virtual' needs Java 21 and the multi-release jar, default to platform");
+
+            parser.addArgument("--weight").type(Integer.class).setDefault(1)
+                    .help("Share of tunnels taken by connections from this listener against others, 1 to 16, default to 1");
+
+            parser.addArgument("--policy").choices("first", "least-queued", "throughput", "p2c", "rtt").setDefault("least-queued")
+                    .help("How to pick the tunnel for a new connection, 'first' tunnel with room, 'least-queued' bytes, lowest 'throughput', 'p2c' power of two choices on throughput, lowest 'rtt', default to least-queued");
+
+            parser.addArgument("--tunnelConnections").type(Integer.class).setDefault(10)
+                    .help("Soft limit of connections per tunnel, more tunnels are created beyond it, default to 10");
+
+            parser.addArgument("--tunnels").type(Integer.class).setDefault(0)
+                    .help("Max number of tunnels per shard, connections go beyond the soft limit then, default to 0 (no max)");
+
+            parser.addArgument("--minTunnels").type(Integer.class).setDefault(1)
+                    .help("Number of tunnels per shard started up front and kept up, default to 1");
+
+            parser.addArgument("--elephant").type(Integer.class).setDefault(1024)
+                    .help("KB/s above which a connection is moved to a bulk tunnel (only if server supports it), 0 to never move, default to 1024");
+
+            parser.addArgument("--bulkTunnels").type(Integer.class).setDefault(2)
+                    .help("Max number of bulk tunnels per shard, elephants share them beyond, default to 2");
+
+            parser.addArgument("--tunnelIdle").type(Integer.class).setDefault(60)
+                    .help("Seconds tunnels must be mostly idle before one beyond the minimum is drained and retired, default to 60");
+
+            parser.addArgument("--stripe").type(Integer.class).setDefault(1)
+                    .help("Number of bulk tunnels each elephant connection is striped over, default to 1 (no striping)");
+
+            parser.addArgument("--probeTimeout").type(Integer.class).setDefault(5)
+                    .help("Seconds a probe may go unanswered before its tunnel is taken as failed and connections resumed on others, default to 5");
+
+            parser.addArgument("--shards").type(Integer.class).setDefault(0)
+                    .help("Number of shards, each with its own event loop, tunnels and connections, default to 0 (one per core)");
+
+            parser.addArgument("--reusePort").action(Arguments.storeTrue())
+                    .help("Listen with one SO_REUSEPORT socket per shard, only with native epoll");
+
+            parser.addArgument("--compress").action(Arguments.storeTrue())
+                    .help("Deflate data blocks on tunnels both ways if server takes it, payloads looking compressed already are sent as is. "
+                            + "Off by default: like any compression under encryption, how well a connection compresses may tell a "
+                            + "secret it carries to whoever also controls data on it (CRIME). Connections never share a dictionary");
+
             parser.addArgument("server").nargs(1).required(true)
                     .help("Remote server address connect to for tunneling");
         }
@@ -49,6 +115,9 @@ public class Config {
 
             parser.addArgument("-f", "--forwardPort").type(Integer.class).setDefault(8888)
                     .help("Remote proxy port to forward tunneling connection to, default to 8888");
+
+            parser.addArgument("-w", "--workers").type(Integer.class).setDefault(0)
+                    .help("Number of event loops handling tunnels and their proxy connections, default to 0 (one per core)");
         }
 
         Namespace ns = null;
@@ -61,6 +130,12 @@ public class Config {
 
         _listenAddress = ns.getString("interface");
         _listenPort = ns.getInt("listen");
+        _nio = ns.getBoolean("nio");
+        _idleTimeout = ns.getInt("idleTimeout");
+        _window = ns.getInt("window");
+        _cutThrough = ns.getBoolean("cutThrough");
+        _aggregate = ns.getInt("aggregate");
+        _aggregateDelay = ns.getInt("aggregateDelay");
 
         if(isClient) {
             _serverAddress = ns.getList("server").get(0).toString();
@@ -70,11 +145,27 @@ public class Config {
             _serverUser = ns.getString("user");
             _serverKey = ns.getString("key");
             _serverPass = ns.getString("password");
+            _transport = ns.getString("transport");
+            _threads = ns.getString("threads");
+            _shards = ns.getInt("shards");
+            _weight = ns.getInt("weight");
+            _policy = ns.getString("policy");
+            _tunnelConnections = ns.getInt("tunnelConnections");
+            _tunnels = ns.getInt("tunnels");
+            _minTunnels = ns.getInt("minTunnels");
+            _tunnelIdle = ns.getInt("tunnelIdle");
+            _elephant = ns.getInt("elephant");
+            _bulkTunnels = ns.getInt("bulkTunnels");
+            _probeTimeout = ns.getInt("probeTimeout");
+            _stripe = ns.getInt("stripe");
+            _reusePort = ns.getBoolean("reusePort");
+            _compress = ns.getBoolean("compress");
         }
         else {
             _mode = ns.getString("mode");
             _proxyAddress = ns.getString("server");
             _proxyPort = ns.getInt("forwardPort");
+            _workers = ns.getInt("workers");
         }
     }
 
@@ -108,6 +199,101 @@ public class Config {
         return _forwardPort;
     }
 
+    private static String _transport = "ssh";
+    public static String getTransport() {
+        return _transport;
+    }
+
+    private static String _threads = "platform";
+    public static String getThreads() {
+        return _threads;
+    }
+
+    private static int _weight = 1;
+    public static int getWeight() {
+        return _weight;
+    }
+
+    private static String _policy = "least-queued";
+    public static String getPolicy() {
+        return _policy;
+    }
+
+    private static int _tunnelConnections = 10;
+    public static int getTunnelConnections() {
+        return _tunnelConnections;
+    }
+
+    private static int _tunnels = 0;
+    public static int getTunnels() {
+        return _tunnels;
+    }
+
+    private static int _minTunnels = 1;
+    public static int getMinTunnels() {
+        return _tunnels > 0 ? Math.min(_minTunnels, _tunnels) : _minTunnels;
+    }
+
+    private static int _tunnelIdle = 60;
+    public static int getTunnelIdle() {
+        return _tunnelIdle;
+    }
+
+    private static int _elephant = 1024;
+
+    /**
+     * Traffic above which a connection is moved to a bulk tunnel
+     * @return KB/s
+     */
+    public static int getElephant() {
+        return _elephant;
+    }
+
+    private static int _bulkTunnels = 2;
+    public static int getBulkTunnels() {
+        return _bulkTunnels;
+    }
+
+    private static int _stripe = 1;
+
+    /**
+     * Bulk tunnels each elephant is striped over, 1 for no striping
+     * @return
+     */
+    public static int getStripe() {
+        return _stripe;
+    }
+
+    private static int _probeTimeout = 5;
+
+    /**
+     * Seconds a probe may go unanswered before its tunnel is taken as failed
+     * @return
+     */
+    public static int getProbeTimeout() {
+        return _probeTimeout;
+    }
+
+    private static int _shards = 0;
+    public static int getShards() {
+        return _shards;
+    }
+
+    private static boolean _reusePort = false;
+    public static boolean isReusePort() {
+        return _reusePort;
+    }
+
+    private static boolean _compress = false;
+
+    /**
+     * Offer FEATURE_DEFLATE on tunnels
+     * @return
+     */
+    public static boolean isCompress() {
+        return _compress;
+    }
+
     private static String _listenAddress = "127.0.0.1";
     public static String getListenAddress() {
         return _listenAddress;
@@ -128,6 +314,60 @@ public class Config {
         return _proxyPort;
     }
 
+    private static int _workers = 0;
+    public static int getWorkers() {
+        return _workers;
+    }
+
+    private static boolean _nio = false;
+    public static boolean isNio() {
+        return _nio;
+    }
+
+    private static int _idleTimeout = 30;
+    public static int getIdleTimeout() {
+        return _idleTimeout;
+    }
+
+    private static int _window = 256;
+
+    /**
+     * Flow control window per connection
+     * @return bytes
+     */
+    public static int getWindow() {
+        return _window * 1024;
+    }
+
+    private static boolean _cutThrough = false;
+
+    /**
+     * Pass on payload of big data blocks in fragments as read from tunnel
+     * @return
+     */
+    public static boolean isCutThrough() {
+        return _cutThrough;
+    }
+
+    private static int _aggregate = 64;
+    private static int _aggregateDelay = 0;
+
+    /**
+     * Data read from a connection aggregated before put in blocks (see InboundDataHandler)
+     * @return bytes, 0 if not aggregated
+     */
+    public static int getAggregate() {
+        return _aggregate * 1024;
+    }
+
+    /**
+     * Time to hold data read from a connection for more
+     * @return micros
+     */
+    public static int getAggregateDelay() {
+        return _aggregateDelay;
+    }
+
     private static String _mode = "prod";
     public static boolean isTestMode() {
         return "test".equalsIgnoreCase(_mode);
@@ -0,0 +1,49 @@
+package com.lob.tunner.common;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Event loop groups and matching channel classes. Native epoll is used on Linux if the native library
+ * loads (unless disabled by "--nio"), NIO otherwise.
+ *
+ * Channels must be registered on a group of the same kind, so always create both from here.
+ */
+public class EventLoops {
+    private EventLoops() {
+
+    }
+
+    public static boolean isEpoll() {
+        return !Config.isNio() && Epoll.isAvailable();
+    }
+
+    /**
+     * Create an event loop group
+     * @param threads - number of event loops, 0 for one per core
+     * @return
+     */
+    public static EventLoopGroup newGroup(int threads) {
+        if(threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        return isEpoll() ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public static Class<? extends ServerSocketChannel> serverChannel() {
+        return isEpoll() ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends SocketChannel> socketChannel() {
+        return isEpoll() ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+}
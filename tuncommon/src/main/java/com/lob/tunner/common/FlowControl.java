@@ -0,0 +1,161 @@
+package com.lob.tunner.common;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Credit based flow control of one multiplexed connection, so a slow consumer only stalls its own
+ * connection instead of the whole tunnel.
+ *
+ * Each side may send data blocks of a connection while it holds credit. Both sides start with
+ * INITIAL_WINDOW of credit when the connection is started, the receiver grants more with CODE_CREDIT as
+ * data is drained to its socket (and right at start if its window is larger). Once out of credit, the
+ * sender queues what it already read and stops reading its socket until credit comes back.
+ *
+ * CODE_CREDIT carries the credit granted in total (wrapping around), so credit lost with a failed tunnel
+ * or arriving late over another one is made up by the next grant.
+ *
+ * Peers not knowing CODE_CREDIT never grant, so sends are only limited once the peer is known to take it
+ * (FEATURE_CREDIT, see limit()). Until then credit is accounted without blocking, so the limit is exact
+ * from the moment it's turned on.
+ *
+ * Not thread safe, only used on the event loop of the connection.
+ */
+public class FlowControl {
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    private final int _window;
+    private final int _threshold;
+
+    private long _credit = INITIAL_WINDOW;
+    private boolean _limited = false;
+    private int _drained = 0;
+
+    /**
+     * Credit granted to peer / by peer in total
+     */
+    private int _granted = 0;
+    private int _received = 0;
+    private final ArrayDeque<Block> _pending = new ArrayDeque<>();
+
+    /**
+     * @param window - bytes the peer may send before hearing back from us, at least INITIAL_WINDOW
+     */
+    public FlowControl(int window) {
+        _window = Math.max(window, INITIAL_WINDOW);
+        // grant in batches, not per block
+        _threshold = _window / 4;
+    }
+
+    /**
+     * Limit sends by credit from now on, peer takes FEATURE_CREDIT
+     */
+    public void limit() {
+        _limited = true;
+    }
+
+    /**
+     * Sends limited by credit, so peer grants it
+     * @return
+     */
+    public boolean limited() {
+        return _limited;
+    }
+
+    /**
+     * Credit to grant at start on top of INITIAL_WINDOW
+     * @return
+     */
+    public int initialGrant() {
+        return _window - INITIAL_WINDOW;
+    }
+
+    /**
+     * Grant credit to peer
+     * @param bytes - 0 to grant nothing more, just repeat
+     * @return credit granted in total, for CODE_CREDIT
+     */
+    public int grant(int bytes) {
+        _granted += bytes;
+        return _granted;
+    }
+
+    /**
+     * Out of credit or with blocks waiting, stop reading
+     * @return
+     */
+    public boolean blocked() {
+        return _limited && (_credit <= 0 || !_pending.isEmpty());
+    }
+
+    /**
+     * Send a data block if holding credit (or not limited), queue it otherwise. The last block sent may take credit below 0,
+     * so blocks larger than the credit left don't wait forever
+     * @param block
+     * @param out
+     * @return false if blocked now
+     */
+    public boolean send(Block block, Consumer<Block> out) {
+        if(blocked()) {
+            _pending.add(block);
+            return false;
+        }
+
+        _credit -= block.length();
+        out.accept(block);
+
+        return !blocked();
+    }
+
+    /**
+     * Credit granted by peer, send what's queued
+     * @param granted - in total
+     * @param out
+     * @return false if still blocked
+     */
+    public boolean credit(int granted, Consumer<Block> out) {
+        int bytes = granted - _received;
+        if(bytes <= 0) {
+            // repeated or overtaken
+            return !blocked();
+        }
+
+        _received = granted;
+        _credit += bytes;
+
+        while(_credit > 0 && !_pending.isEmpty()) {
+            Block block = _pending.poll();
+            _credit -= block.length();
+            out.accept(block);
+        }
+
+        return !blocked();
+    }
+
+    /**
+     * Bytes of data received from peer drained to our socket
+     * @param bytes
+     * @return bytes to grant back to peer, 0 if not worth a control block yet
+     */
+    public int drained(int bytes) {
+        _drained += bytes;
+        if(_drained < _threshold) {
+            return 0;
+        }
+
+        int grant = _drained;
+        _drained = 0;
+
+        return grant;
+    }
+
+    /**
+     * Release blocks never sent
+     */
+    public void drop() {
+        Block block;
+        while((block = _pending.poll()) != null) {
+            block.release();
+        }
+    }
+}
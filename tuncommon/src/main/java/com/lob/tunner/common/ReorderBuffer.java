@@ -0,0 +1,263 @@
+package com.lob.tunner.common;
+
+import com.lob.tunner.BlockUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.collection.IntObjectHashMap;
+
+import java.util.function.Consumer;
+
+/**
+ * Puts data blocks of one connection back in sequence.
+ *
+ * On one tunnel blocks always arrive in order. Once a connection is moved to another tunnel (CODE_RESUME),
+ * blocks sent on the new tunnel may overtake those still on their way over the old one, they are held here
+ * until the gap is filled. Blocks behind are duplicates of what was received already (replayed after a
+ * tunnel failed), and dropped.
+ *
+ * Sequences are 32 bits. Blocks extended on wire (BLOCK_EXTENDED) carry all of them, so up to _WINDOW blocks
+ * could be in flight. Other blocks only carry the lowest 14 bits, they are taken as the sequence closest to
+ * the next expected, so those must stay within half the 14 bits space (8K blocks) of it.
+ *
+ * Blocks cut through (BlockFragment) are passed on fragment by fragment when they are the next expected, the
+ * sequence only moves on with the last fragment. Bytes of the next block passed on already are remembered,
+ * so when the tunnel fails mid block and the block is replayed whole (or again in fragments) on another one,
+ * only the rest of it is passed on. Fragments of blocks ahead are put together, and held once whole.
+ *
+ * Not thread safe, only used on the event loop of the connection.
+ */
+public class ReorderBuffer {
+    private static final int _WINDOW = 1 << 30;
+    private static final int _SHORT_WINDOW = (BlockUtils.MAX_SEQ + 1) / 2;
+
+    private int _next = 0;
+
+    /**
+     * Blocks ahead of _next by sequence, only created once blocks come out of order
+     */
+    private IntObjectHashMap<Block> _ahead = null;
+
+    /**
+     * Bytes of the payload of block _next passed on already
+     */
+    private int _cutOffset = 0;
+
+    /**
+     * Payloads of blocks ahead of _next, put together from fragments
+     */
+    private IntObjectHashMap<CompositeByteBuf> _partial = null;
+
+    /**
+     * Next sequence expected
+     * @return
+     */
+    public int next() {
+        return _next;
+    }
+
+    /**
+     * Whole sequence of a block
+     * @param block
+     * @return
+     */
+    private int _sequence(Block block) {
+        if(block.extended()) {
+            return block.sequence();
+        }
+
+        int distance = (block.sequence() - _next) & BlockUtils.MAX_SEQ;
+        return distance < _SHORT_WINDOW ? _next + distance : _next + distance - (BlockUtils.MAX_SEQ + 1);
+    }
+
+    /**
+     * Take a block, pass it and whatever held right behind it to out, in sequence
+     * @param block - the buffer takes over the block
+     * @param out
+     * @return false if the block is a duplicate, dropped
+     */
+    public boolean add(Block block, Consumer<Block> out) {
+        int seq = _sequence(block);
+        if(block instanceof BlockFragment) {
+            return _add((BlockFragment)block, seq, out);
+        }
+
+        if(seq != _next) {
+            int distance = seq - _next;
+            if(distance < 0 || distance >= _WINDOW || (_ahead != null && _ahead.containsKey(seq))) {
+                block.release();
+                return false;
+            }
+
+            if(_ahead == null) {
+                _ahead = new IntObjectHashMap<>();
+            }
+
+            _ahead.put(seq, block);
+            _release(_partial, seq);
+            return true;
+        }
+
+        if(_cutOffset > 0) {
+            // partly passed on before in fragments, the rest only
+            block = _rest(block, _cutOffset);
+            _cutOffset = 0;
+        }
+
+        _release(_partial, seq);
+        _next = seq + 1;
+        out.accept(block);
+        _drain(out);
+
+        return true;
+    }
+
+    /**
+     * Take a fragment of a block, passed on right away if the block is next
+     */
+    private boolean _add(BlockFragment fragment, int seq, Consumer<Block> out) {
+        int distance = seq - _next;
+        if(distance < 0 || distance >= _WINDOW || (_ahead != null && _ahead.containsKey(seq))) {
+            fragment.release();
+            return false;
+        }
+
+        if(distance > 0) {
+            return _assemble(fragment, seq, out);
+        }
+
+        CompositeByteBuf partial = _partial == null ? null : _partial.remove(seq);
+        if(partial != null) {
+            // put together while ahead, pass on what we have first
+            if(partial.readableBytes() > _cutOffset) {
+                out.accept(new Block(fragment.connection(), fragment.getTypeSeq(), seq, partial.skipBytes(_cutOffset)));
+                _cutOffset = partial.writerIndex();
+            }
+            else {
+                partial.release();
+            }
+        }
+
+        int end = fragment.offset() + fragment.length();
+        if(end <= _cutOffset || fragment.offset() > _cutOffset) {
+            // nothing new, or a gap (fragments lost with a tunnel) filled once the block is replayed
+            fragment.release();
+        }
+        else {
+            out.accept(_rest(fragment, _cutOffset - fragment.offset()));
+            _cutOffset = end;
+        }
+
+        if(_cutOffset == fragment.whole()) {
+            _cutOffset = 0;
+            _next = seq + 1;
+            _drain(out);
+        }
+
+        return true;
+    }
+
+    /**
+     * Put a fragment of a block ahead together with those before it, held as a block once whole
+     */
+    private boolean _assemble(BlockFragment fragment, int seq, Consumer<Block> out) {
+        if(_partial == null) {
+            _partial = new IntObjectHashMap<>();
+        }
+
+        CompositeByteBuf partial = _partial.get(seq);
+        if(partial == null) {
+            partial = PooledByteBufAllocator.DEFAULT.compositeBuffer(Integer.MAX_VALUE);
+            _partial.put(seq, partial);
+        }
+
+        int have = partial.writerIndex();
+        int end = fragment.offset() + fragment.length();
+        if(fragment.offset() > have || end <= have) {
+            // gap (some fragments lost with a tunnel) or nothing new, the block comes again whole
+            fragment.release();
+            return true;
+        }
+
+        ByteBuf content = fragment.content();
+        partial.addComponent(true, content.retainedSlice(content.readerIndex() + have - fragment.offset(), end - have));
+        fragment.release();
+
+        if(end == fragment.whole()) {
+            _partial.remove(seq);
+            return add(new Block(fragment.connection(), fragment.getTypeSeq(), seq, partial), out);
+        }
+
+        return true;
+    }
+
+    /**
+     * Pass on blocks held right behind _next
+     */
+    private void _drain(Consumer<Block> out) {
+        while(_ahead != null && !_ahead.isEmpty()) {
+            Block next = _ahead.remove(_next);
+            if(next == null) {
+                break;
+            }
+
+            _release(_partial, _next);
+            _next++;
+            out.accept(next);
+        }
+    }
+
+    /**
+     * Block with the first bytes of its payload skipped
+     */
+    private static Block _rest(Block block, int skip) {
+        if(skip <= 0) {
+            return block;
+        }
+
+        Block rest = new Block(block.connection(), block.getTypeSeq(), block.sequence(), block.content().retainedSlice(
+                block.content().readerIndex() + skip, block.length() - skip
+        ));
+        block.release();
+
+        return rest;
+    }
+
+    private static void _release(IntObjectHashMap<CompositeByteBuf> partial, int seq) {
+        if(partial != null && !partial.isEmpty()) {
+            CompositeByteBuf buf = partial.remove(seq);
+            if(buf != null) {
+                buf.release();
+            }
+        }
+    }
+
+    /**
+     * Blocks held waiting for a gap
+     * @return
+     */
+    public int held() {
+        return _ahead == null ? 0 : _ahead.size();
+    }
+
+    /**
+     * Release blocks held
+     */
+    public void drop() {
+        if(_ahead != null) {
+            for(Block block : _ahead.values()) {
+                block.release();
+            }
+
+            _ahead.clear();
+        }
+
+        if(_partial != null) {
+            for(CompositeByteBuf buf : _partial.values()) {
+                buf.release();
+            }
+
+            _partial.clear();
+        }
+    }
+}
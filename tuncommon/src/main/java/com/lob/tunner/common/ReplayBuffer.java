@@ -0,0 +1,81 @@
+package com.lob.tunner.common;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Data blocks of one connection sent but not acknowledged yet, to send again over another tunnel if the
+ * tunnel they went on fails.
+ *
+ * The peer acknowledges with CODE_CREDIT, by the sequence after the last block it received in order. Credit
+ * is only granted as data is drained, so what is kept here is bounded by the flow control window (plus the
+ * grant threshold). Blocks are kept as retained duplicates, sharing the payload of what was sent.
+ *
+ * Only used once the peer takes FEATURE_RESUME, peers not knowing it never acknowledge.
+ *
+ * Not thread safe, only used on the event loop of the connection.
+ */
+public class ReplayBuffer {
+    private final ArrayDeque<Block> _blocks = new ArrayDeque<>();
+    private int _bytes = 0;
+
+    /**
+     * Keep a data block about to be sent
+     * @param block
+     * @return the block, to send
+     */
+    public Block sent(Block block) {
+        _blocks.add(block.retainedDuplicate());
+        _bytes += block.length();
+
+        return block;
+    }
+
+    /**
+     * Release blocks acknowledged
+     * @param next - sequence after the last block the peer has
+     */
+    public void ack(int next) {
+        Block block;
+        while((block = _blocks.peek()) != null) {
+            if(next - block.sequence() <= 0) {
+                // not acknowledged
+                break;
+            }
+
+            _blocks.poll();
+            _bytes -= block.length();
+            block.release();
+        }
+    }
+
+    /**
+     * Send everything kept again, still kept until acknowledged
+     * @param out
+     */
+    public void replay(Consumer<Block> out) {
+        for(Block block : _blocks) {
+            out.accept(block.retainedDuplicate());
+        }
+    }
+
+    public int size() {
+        return _blocks.size();
+    }
+
+    public int bytes() {
+        return _bytes;
+    }
+
+    /**
+     * Release everything kept
+     */
+    public void drop() {
+        Block block;
+        while((block = _blocks.poll()) != null) {
+            block.release();
+        }
+
+        _bytes = 0;
+    }
+}
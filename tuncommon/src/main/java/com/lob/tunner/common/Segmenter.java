@@ -0,0 +1,111 @@
+package com.lob.tunner.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long the data blocks cut from a socket read may be, by how many connections share the tunnel.
+ *
+ * A block goes on wire as a whole, so a 64K block keeps every other connection on the tunnel waiting for
+ * its whole serialization time (50 ms on a 10 Mbps link). A connection having the tunnel to itself loses
+ * nothing with big blocks and saves headers, once others send too, blocks are cut to the packet of the link
+ * (e.g. max packet of the SSH channel), and smaller the more connections there are, down to MIN_SEGMENT.
+ *
+ * Connections sending are counted per _PERIOD, taking the larger of the current and last period so the
+ * count doesn't drop to 0 at each period start. Counting is approximate (races at period start are
+ * ignored), it's only a hint.
+ *
+ * One segmenter per tunnel, could be used from any thread.
+ */
+public class Segmenter {
+    /**
+     * Packet assumed if the link doesn't tell, OpenSSH's default max packet of channels
+     */
+    public static final int DEFAULT_PACKET = 32 * 1024;
+    public static final int MIN_SEGMENT = 4 * 1024;
+
+    private static final long _PERIOD = 50_000_000L;
+
+    /**
+     * Room for the block header in a packet, in either framing
+     */
+    private static final int _HEADER = 32;
+
+    /**
+     * Sending activity of a connection, owned by the connection
+     */
+    public static class Sender {
+        private long _period = -1;
+    }
+
+    private final int _max;
+    private volatile int _packet;
+
+    private final AtomicLong _period = new AtomicLong();
+    private final AtomicInteger _current = new AtomicInteger();
+    private volatile int _last = 0;
+
+    /**
+     * @param max - longest block, when alone on the tunnel
+     */
+    public Segmenter(int max) {
+        _max = max;
+        packet(DEFAULT_PACKET);
+    }
+
+    /**
+     * Set the packet of the link once known
+     * @param packet - most bytes the link carries in one packet
+     */
+    public void packet(int packet) {
+        _packet = Math.max(MIN_SEGMENT, Math.min(_max, (packet - _HEADER) & ~7));
+    }
+
+    /**
+     * Connections sending in the last period or so
+     * @return
+     */
+    public int active() {
+        return Math.max(_last, _current.get());
+    }
+
+    /**
+     * Longest block to cut from what a connection just read, counting the connection as sending
+     * @param sender - of the connection
+     * @return
+     */
+    public int segment(Sender sender) {
+        return segment(sender, System.nanoTime());
+    }
+
+    /**
+     * Longest block at a given time, for simulation
+     * @param sender
+     * @param nanos - now, as by System.nanoTime()
+     * @return
+     */
+    int segment(Sender sender, long nanos) {
+        long period = nanos / _PERIOD;
+        if(sender._period != period) {
+            sender._period = period;
+
+            long current = _period.get();
+            if(current != period && _period.compareAndSet(current, period)) {
+                _last = current == period - 1 ? _current.getAndSet(0) : 0;
+                if(current != period - 1) {
+                    _current.set(0);
+                }
+            }
+
+            _current.incrementAndGet();
+        }
+
+        int active = active();
+        if(active <= 1) {
+            return _max;
+        }
+
+        // two connections take a packet each turn, more share about two packets
+        return Math.max(MIN_SEGMENT, Math.min(_packet, (_packet * 2 / active) & ~1023));
+    }
+}
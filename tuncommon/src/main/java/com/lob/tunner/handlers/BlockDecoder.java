@@ -0,0 +1,189 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.BufferUtils;
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Decode the tunnel byte stream into Blocks. Each block on wire is
+ *   1. 8 bytes header (typeSeq, length, connection ID)
+ *   2. 4 bytes sequence if BLOCK_EXTENDED
+ *   3. payload of length bytes
+ *   4. 0xFF padding to make the frame 8-byte aligned
+ *
+ * A block is only decoded when the whole frame is available, and its payload is a retained slice of the
+ * read buffer, so decoding copies nothing (cumulating reads may, see the constructor). Downstream handlers own
+ * the blocks and shall release them.
+ *
+ * Once the peer switches to the compact framing (CODE_FRAMING), the rest of the stream is decoded by a
+ * CompactDecoder. The CODE_FRAMING block itself is passed on like any other.
+ *
+ * With cut-through, a data block of CutThrough.MIN_LENGTH or more whose frame isn't all there yet is passed
+ * on in BlockFragments as its payload comes, rather than waiting for the whole frame.
+ */
+public class BlockDecoder extends ByteToMessageDecoder {
+    public static final int HEADER_LENGTH = 8;
+
+    private final boolean _cutThrough;
+    private CompactDecoder _compact = null;
+
+    /**
+     * Block cut through, payload not all passed on yet
+     */
+    private CutThrough _cut = null;
+
+    public BlockDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param cutThrough - pass on big data blocks in fragments
+     */
+    public BlockDecoder(boolean cutThrough) {
+        _cutThrough = cutThrough;
+
+        // While payload slices of a read are still held downstream, a partial frame left in it is copied into
+        // a new cumulation by either cumulator (netty copies once the cumulation is shared). From then on the
+        // cumulation is ours alone, composing adds the following reads of a big block as they are, where
+        // merging would copy each of them.
+        setCumulator(COMPOSITE_CUMULATOR);
+    }
+
+    /**
+     * Decode one block from the buffer, return null if there is no complete block yet (nothing is
+     * consumed in that case)
+     *
+     * @param in
+     * @return
+     */
+    public static Block decodeBlock(ByteBuf in) {
+        while(in.readableBytes() >= HEADER_LENGTH) {
+            int idx = in.readerIndex();
+            short typeSeq = in.getShort(idx);
+            int len = in.getUnsignedShort(idx + 2);
+            int conn = in.getInt(idx + 4);
+
+            boolean extended = (typeSeq & Block.BLOCK_EXTENDED) == Block.BLOCK_EXTENDED;
+            if(len == 0 && !extended) {
+                in.skipBytes(HEADER_LENGTH);
+
+                if(typeSeq == 0 && conn == 0) {
+                    // all 0 header!!! Ignore
+                    continue;
+                }
+
+                return new Block(conn, typeSeq);
+            }
+
+            int extension = extended ? 4 : 0;
+            int frame = HEADER_LENGTH + BufferUtils.round(extension + len);
+            if(in.readableBytes() < frame) {
+                return null; // wait more data
+            }
+
+            in.skipBytes(HEADER_LENGTH);
+            int seq = extended ? in.readInt() : typeSeq & BlockUtils.MAX_SEQ;
+            ByteBuf payload = len == 0 ? null : in.readRetainedSlice(len);
+            in.skipBytes(frame - HEADER_LENGTH - extension - len);
+
+            return new Block(conn, typeSeq, seq, payload);
+        }
+
+        return null;
+    }
+
+    /**
+     * Decode one block from the stream in the framing the peer is using, return null if there is no complete
+     * block yet
+     *
+     * @param in
+     * @return
+     */
+    public Block next(ByteBuf in) {
+        if(_compact != null) {
+            return _compact.decode(in);
+        }
+
+        if(_cut != null) {
+            Block fragment = _cut.next(in);
+            if(!_cut.done()) {
+                return fragment;
+            }
+
+            _cut = null;
+            if(fragment != null) {
+                return fragment;
+            }
+        }
+
+        if(_cutThrough && _cut(in)) {
+            return _cut.next(in);
+        }
+
+        Block block = decodeBlock(in);
+        if(block != null && CompactEncoder.switches(block)) {
+            _compact = new CompactDecoder(_cutThrough);
+        }
+
+        return block;
+    }
+
+    /**
+     * Start cutting through the next block if it's a big data block not all there yet, its header is
+     * consumed then
+     */
+    private boolean _cut(ByteBuf in) {
+        if(in.readableBytes() < HEADER_LENGTH + 4) {
+            return false;
+        }
+
+        int idx = in.readerIndex();
+        short typeSeq = in.getShort(idx);
+        int len = in.getUnsignedShort(idx + 2);
+        boolean extended = (typeSeq & Block.BLOCK_EXTENDED) == Block.BLOCK_EXTENDED;
+        if(!extended && (typeSeq & Block.BLOCK_EXTENDED) != Block.BLOCK_DATA || len < CutThrough.MIN_LENGTH) {
+            return false;
+        }
+
+        int extension = extended ? 4 : 0;
+        int frame = HEADER_LENGTH + BufferUtils.round(extension + len);
+        if(in.readableBytes() >= frame) {
+            return false;
+        }
+
+        int conn = in.getInt(idx + 4);
+        in.skipBytes(HEADER_LENGTH);
+        int seq = extended ? in.readInt() : typeSeq & BlockUtils.MAX_SEQ;
+        _cut = new CutThrough(conn, typeSeq, seq, len, frame - HEADER_LENGTH - extension - len);
+
+        return true;
+    }
+
+    /**
+     * Free what the compact framing holds, only needed when used outside a pipeline
+     */
+    public void close() {
+        if(_compact != null) {
+            _compact.close();
+            _compact = null;
+        }
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        close();
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        Block block;
+        while((block = next(in)) != null) {
+            out.add(block);
+        }
+    }
+}
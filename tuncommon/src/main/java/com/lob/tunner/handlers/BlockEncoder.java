@@ -0,0 +1,60 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Encode a Block to its wire format. Header, payload and padding are composed into one buffer without
+ * copying the payload, so the whole frame goes out in one gathering write.
+ */
+@ChannelHandler.Sharable
+public class BlockEncoder extends MessageToMessageEncoder<Block> {
+    private static final ByteBuf _PADDING = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(BlockUtils.PADDING));
+
+    /**
+     * Write 8 bytes header of block to the buffer, and the sequence after it if BLOCK_EXTENDED
+     * @param block
+     * @param out
+     * @return
+     */
+    public static ByteBuf encodeHeader(Block block, ByteBuf out) {
+        out.writeShort(block.getTypeSeq());
+        out.writeShort(block.length() & 0xFFFF);
+        out.writeInt(block.connection());
+
+        if(block.extended()) {
+            out.writeInt(block.sequence());
+        }
+
+        return out;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Block block, List<Object> out) throws Exception {
+        ByteBuf header = encodeHeader(block, ctx.alloc().buffer(BlockDecoder.HEADER_LENGTH + block.extension()));
+
+        int length = block.length();
+        int padding = block.frameLength() - header.readableBytes() - length;
+        if(length == 0) {
+            out.add(padding == 0 ? header : Unpooled.wrappedBuffer(header, _PADDING.slice(0, padding)));
+            return;
+        }
+
+
+        // the block is released after encoding, so keep the payload for the frame
+        ByteBuf payload = block.content().retain();
+        if(padding == 0) {
+            out.add(Unpooled.wrappedBuffer(header, payload));
+        }
+        else {
+            out.add(Unpooled.wrappedBuffer(header, payload, _PADDING.slice(0, padding)));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.common.Block;
+import com.lob.tunner.common.BlockScheduler;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Outbound block queue of a tunnel channel.
+ *
+ * Blocks can be written from any thread without locking, they are queued in a MPSC queue and drained on
+ * the channel's own event loop. Flushes are coalesced, we flush once per drain or whenever FLUSH_THRESHOLD
+ * bytes have been written, so many blocks go out with one gathering write.
+ *
+ * Blocks are only written to the channel while it's writable, the rest wait in a BlockScheduler which
+ * decides the order, so the backlog is never FIFO in netty's outbound buffer. The channel pipeline shall
+ * have a BlockEncoder and call writable() when the channel becomes writable again.
+ *
+ * Once a CODE_FRAMING block switching to the compact framing is written, blocks after it are encoded here
+ * by a CompactEncoder, small ones packed into superframes, and go through the BlockEncoder as is.
+ */
+public class BlockWriter implements Runnable {
+    public static final int FLUSH_THRESHOLD = 256 * 1024;
+
+    private final Channel _channel;
+    private final Queue<Block> _queue = PlatformDependent.newMpscQueue();
+    private final AtomicBoolean _scheduled = new AtomicBoolean(false);
+    private volatile boolean _closed = false;
+
+    /**
+     * Bytes of blocks queued, not yet written to the channel
+     */
+    private final AtomicLong _pending = new AtomicLong(0);
+
+    /**
+     * Only accessed in channel's event loop
+     */
+    private final BlockScheduler _scheduler;
+
+    /**
+     * Only accessed in channel's event loop, null until switched to the compact framing
+     */
+    private CompactEncoder _compact = null;
+    private final ArrayList<ByteBuf> _frames = new ArrayList<>();
+
+    public BlockWriter(Channel channel) {
+        this(channel, connection -> 1);
+    }
+
+    /**
+     * @param channel
+     * @param weights - scheduling weight of connection by ID
+     */
+    public BlockWriter(Channel channel, IntUnaryOperator weights) {
+        _channel = channel;
+        _scheduler = new BlockScheduler(weights);
+    }
+
+    /**
+     * Queue a block to write, the writer takes over the block
+     * @param block
+     */
+    public void write(Block block) {
+        _pending.addAndGet(block.length());
+        _queue.offer(block);
+        _schedule();
+    }
+
+    /**
+     * Bytes queued and not yet written to the channel, could be called from any thread
+     * @return
+     */
+    public long pending() {
+        return _pending.get();
+    }
+
+    /**
+     * Whether the channel was closed, blocks written from now on are released right away
+     * @return
+     */
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Channel writable again, continue with blocks scheduled
+     */
+    public void writable() {
+        _schedule();
+    }
+
+    /**
+     * Channel closed, release everything queued and whatever written afterwards
+     */
+    public void close() {
+        _closed = true;
+        _schedule();
+    }
+
+    private void _schedule() {
+        if(_scheduled.compareAndSet(false, true)) {
+            _channel.eventLoop().execute(this);
+        }
+    }
+
+    /**
+     * Drain the queue, always run on channel's event loop
+     */
+    @Override
+    public void run() {
+        int bytes = 0;
+        long written = 0;
+
+        for(;;) {
+            Block block;
+            while((block = _queue.poll()) != null) {
+                _scheduler.add(block);
+            }
+
+            if(_closed) {
+                // never written, no longer pending either
+                _pending.addAndGet(-_scheduler.drop());
+
+                if(_compact != null) {
+                    _compact.close();
+                    _compact = null;
+                }
+            }
+
+            while(_channel.isWritable() && (block = _scheduler.next()) != null) {
+                written += block.length();
+                bytes += BlockDecoder.HEADER_LENGTH + block.length();
+                _write(block);
+
+                if(bytes >= FLUSH_THRESHOLD) {
+                    _flush();
+                    bytes = 0;
+                }
+            }
+
+            _scheduled.set(false);
+
+            // a writer may have queued after our last poll but seen us still scheduled
+            if(_queue.isEmpty() || !_scheduled.compareAndSet(false, true)) {
+                break;
+            }
+        }
+
+        if(bytes > 0) {
+            _flush();
+        }
+
+        if(written > 0) {
+            _pending.addAndGet(-written);
+        }
+    }
+
+    private void _write(Block block) {
+        if(_compact != null) {
+            try {
+                _compact.write(block, _frames);
+                _writeFrames();
+            }
+            finally {
+                block.release();
+            }
+            return;
+        }
+
+        boolean switching = CompactEncoder.switches(block);
+        int features = switching ? Block.framingFeaturesOf(block) : 0;
+        _channel.write(block, _channel.voidPromise());
+
+        if(switching) {
+            _compact = new CompactEncoder(_channel.alloc(), features);
+        }
+    }
+
+    private void _flush() {
+        if(_compact != null) {
+            _compact.flush(_frames);
+            _writeFrames();
+        }
+
+        _channel.flush();
+    }
+
+    private void _writeFrames() {
+        for(ByteBuf frame : _frames) {
+            _channel.write(frame, _channel.voidPromise());
+        }
+
+        _frames.clear();
+    }
+}
@@ -0,0 +1,282 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decode blocks in the compact framing (v2), see CompactEncoder for the format. One decoder per tunnel
+ * direction, holding the streams bound so far.
+ *
+ * Blocks are decoded record by record, so a block never waits for the rest of its superframe. Data blocks
+ * always come with their whole sequence, they are decoded as BLOCK_EXTENDED. Deflated payloads are inflated
+ * into buffers of their own, the rest are retained slices of the input.
+ *
+ * With cut-through, a data block of CutThrough.MIN_LENGTH or more (not deflated) whose payload isn't all
+ * there yet is passed on in BlockFragments as its payload comes.
+ */
+public class CompactDecoder {
+    private final int[] _conns = new int[CompactEncoder.STREAMS];
+    private final int[] _nexts = new int[CompactEncoder.STREAMS];
+
+    /**
+     * Bytes of the current superframe not decoded yet
+     */
+    private int _remaining = 0;
+
+    private final boolean _cutThrough;
+
+    /**
+     * Block cut through, payload not all passed on yet
+     */
+    private CutThrough _cut = null;
+
+    /**
+     * Created on the first deflated record
+     */
+    private Inflater _inflater = null;
+    private byte[] _inflateIn = null;
+
+    /**
+     * Connection of the last payload inflated, the encoder starts its stream over on another one
+     */
+    private int _inflated = 0;
+
+    public CompactDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param cutThrough - pass on big data blocks in fragments
+     */
+    public CompactDecoder(boolean cutThrough) {
+        _cutThrough = cutThrough;
+    }
+
+    /**
+     * Decode one block from the buffer, return null if there is no complete record yet (nothing of the record
+     * is consumed in that case, but the header of a record cut through)
+     *
+     * @param in
+     * @return
+     */
+    public Block decode(ByteBuf in) {
+        if(_cut != null) {
+            int start = in.readerIndex();
+            Block fragment = _cut.next(in);
+            _remaining -= in.readerIndex() - start;
+
+            if(_cut.done()) {
+                _cut = null;
+            }
+
+            if(fragment != null || _cut != null) {
+                return fragment;
+            }
+        }
+
+        for(;;) {
+            int start = in.readerIndex();
+
+            if(_remaining == 0) {
+                long length = _readVarint(in);
+                if(length < 0) {
+                    in.readerIndex(start);
+                    return null;
+                }
+
+                _remaining = (int)length;
+                continue;
+            }
+
+            Block block = _record(in);
+            if(block == null && _cut == null) {
+                in.readerIndex(start);
+                return null;
+            }
+
+            _remaining -= in.readerIndex() - start;
+            if(_remaining < 0) {
+                if(block != null) {
+                    block.release();
+                }
+                throw new CorruptedFrameException("Record beyond its superframe");
+            }
+
+            return block;
+        }
+    }
+
+    private Block _record(ByteBuf in) {
+        if(!in.isReadable()) {
+            return null;
+        }
+
+        int flags = in.readUnsignedByte();
+        long stream = _readVarint(in);
+        if(stream < 0) {
+            return null;
+        }
+
+        if(stream >= CompactEncoder.STREAMS) {
+            throw new CorruptedFrameException("Stream out of range - " + stream);
+        }
+
+        int id = (int)stream;
+        int conn = _conns[id];
+        if((flags & CompactEncoder.FLAG_BIND) != 0) {
+            if(in.readableBytes() < 4) {
+                return null;
+            }
+
+            conn = in.readInt();
+        }
+
+        boolean control = (flags & CompactEncoder.FLAG_CONTROL) != 0;
+        int code = flags & CompactEncoder.CODE_MASK;
+        int seq = _nexts[id];
+
+        if(control) {
+            if(code == CompactEncoder.CODE_MASK) {
+                long value = _readVarint(in);
+                if(value < 0) {
+                    return null;
+                }
+
+                code = (int)value;
+            }
+        }
+        else if((flags & CompactEncoder.FLAG_SEQUENCE) != 0) {
+            long value = _readVarint(in);
+            if(value < 0) {
+                return null;
+            }
+
+            seq = (int)value;
+        }
+
+        long length = _readVarint(in);
+        if(length < 0) {
+            return null;
+        }
+
+        long inflated = 0;
+        if(!control && (flags & CompactEncoder.FLAG_DEFLATED) != 0) {
+            inflated = _readVarint(in);
+            if(inflated < 0) {
+                return null;
+            }
+
+            if(inflated > Block.MAX_LENGTH) {
+                throw new CorruptedFrameException("Block inflated too long - " + inflated);
+            }
+        }
+
+        if(in.readableBytes() < length) {
+            if(_cutThrough && !control && inflated == 0 && length >= CutThrough.MIN_LENGTH) {
+                // header taken, payload passed on as it comes
+                _conns[id] = conn;
+                _nexts[id] = seq + 1;
+                _cut = new CutThrough(conn, (short)(Block.BLOCK_EXTENDED | (seq & BlockUtils.MAX_SEQ)), seq, (int)length, 0);
+
+                return _cut.next(in);
+            }
+
+            return null;
+        }
+
+        // whole record is there
+        ByteBuf payload;
+        if(inflated > 0) {
+            payload = _inflate(conn, in, (int)length, (int)inflated);
+        }
+        else {
+            payload = length == 0 ? null : in.readRetainedSlice((int)length);
+        }
+        _conns[id] = conn;
+
+        if(control) {
+            return new Block(conn, BlockUtils.control((short)code), code, payload);
+        }
+
+        _nexts[id] = seq + 1;
+        return new Block(conn, (short)(Block.BLOCK_EXTENDED | (seq & BlockUtils.MAX_SEQ)), seq, payload);
+    }
+
+    /**
+     * Inflate a payload deflated, sync flushed by the encoder so it comes out whole
+     */
+    private ByteBuf _inflate(int conn, ByteBuf in, int length, int inflated) {
+        if(_inflater == null) {
+            _inflater = new Inflater(true);
+            _inflateIn = new byte[Block.MAX_LENGTH + 1024];
+        }
+
+        if(conn != _inflated) {
+            _inflater.reset();
+            _inflated = conn;
+        }
+
+        if(length > _inflateIn.length) {
+            throw new CorruptedFrameException("Block deflated too long - " + length);
+        }
+
+        in.readBytes(_inflateIn, 0, length);
+        _inflater.setInput(_inflateIn, 0, length);
+
+        // room for one more byte, so the inflater goes on through the empty block closing the sync flush
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.heapBuffer(inflated + 1, inflated + 1);
+        try {
+            int bytes = _inflater.inflate(payload.array(), payload.arrayOffset(), inflated + 1);
+            if(bytes != inflated || _inflater.getRemaining() > 0) {
+                throw new CorruptedFrameException("Block inflated to " + bytes + " bytes instead of " + inflated);
+            }
+        }
+        catch(DataFormatException dfe) {
+            payload.release();
+            throw new CorruptedFrameException(dfe);
+        }
+        catch(CorruptedFrameException cfe) {
+            payload.release();
+            throw cfe;
+        }
+
+        return payload.writerIndex(inflated);
+    }
+
+    /**
+     * Free the inflater
+     */
+    public void close() {
+        if(_inflater != null) {
+            _inflater.end();
+        }
+    }
+
+    /**
+     * Read an unsigned varint of up to 32 bits
+     * @param in
+     * @return -1 if not complete yet
+     */
+    private static long _readVarint(ByteBuf in) {
+        long value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            if(!in.isReadable()) {
+                return -1;
+            }
+
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new CorruptedFrameException("Varint too long");
+    }
+}
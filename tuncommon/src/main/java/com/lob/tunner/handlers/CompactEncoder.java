@@ -0,0 +1,412 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.collection.IntObjectHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Encode blocks in the compact framing (v2), used on a tunnel once both sides take FEATURE_COMPACT and the
+ * writer switched with CODE_FRAMING. One encoder per tunnel direction, blocks are taken in the order they
+ * go on wire.
+ *
+ * The stream is made of superframes
+ *   1. varint length of the records following
+ *   2. records, one per block, data and control alike
+ *
+ * Each record is
+ *   1. 1 byte flags
+ *        1xxx xxxx  control block, 0xxx xxxx data block
+ *        x1xx xxxx  stream bound, 4 bytes connection ID follow the stream
+ *        xx1x xxxx  data block with sequence, otherwise it's the one after the last data block on the stream
+ *        xxx1 xxxx  data block deflated
+ *        xxxc cccc  control code, 11111 if the code follows as varint
+ *   2. varint stream
+ *   3. 4 bytes connection ID if bound
+ *   4. varint sequence of data block if flagged, or varint control code if not in flags
+ *   5. varint length
+ *   6. varint length inflated if deflated
+ *   7. payload, no padding
+ *
+ * Varints are unsigned LEB128, 7 bits a byte with lowest first, high bit set on all but the last byte.
+ *
+ * Streams are short IDs of connections on the tunnel, the encoder binds them as connections show up. Once
+ * all STREAMS are bound they are reused round robin, a connection losing its stream is bound again on its
+ * next block. The decoder learns bindings from records only, so both sides stay in step with no message of
+ * their own.
+ *
+ * Small blocks are copied and packed into superframes of up to SUPERFRAME_LENGTH, flushed by the writer
+ * once nothing more is to go out. Blocks over COPY_LENGTH go in superframes of their own, payload not
+ * copied.
+ *
+ * With FEATURE_DEFLATE, data payloads are deflated (fastest level) as one stream per tunnel direction, sync
+ * flushed at each block. The stream is reset whenever a deflated payload is of another connection than the
+ * last one, on both sides alike, so the dictionary is only shared by blocks of one connection. Otherwise what
+ * one connection sends could be guessed from how well another connection's payloads compress next to it (as
+ * with CRIME on TLS). Within a connection that still holds, so compressing stays opt-in. Whether a payload is
+ * worth it is guessed before deflating it (the stream can't take back what it was given), by the entropy of
+ * bytes sampled from it, so compressed or encrypted data (TLS, images, archives) goes as is. A stream whose
+ * payloads hardly shrink anyway is left alone for its next _BACKOFF blocks.
+ */
+public class CompactEncoder {
+    public static final int SUPERFRAME_LENGTH = 16 * 1024;
+    public static final int COPY_LENGTH = 2 * 1024;
+
+    /**
+     * Longest record before payload, flags, stream, connection ID, sequence and length
+     */
+    public static final int MAX_RECORD_HEADER = 1 + 2 + 4 + 5 + 3 + 3;
+
+    static final int STREAMS = 4096;
+
+    static final int FLAG_CONTROL = 0x80;
+    static final int FLAG_BIND = 0x40;
+    static final int FLAG_SEQUENCE = 0x20;
+    static final int FLAG_DEFLATED = 0x10;
+    static final int CODE_MASK = 0x1F;
+
+    /**
+     * Superframe length of packed records is written right before them, in up to 3 bytes
+     */
+    private static final int _RESERVED = 3;
+
+    /**
+     * Payloads shorter are never deflated
+     */
+    private static final int _MIN_DEFLATE = 64;
+
+    /**
+     * Bytes sampled for entropy, and entropy (relative to the most the sample could have) above which a payload
+     * is taken as compressed already
+     */
+    private static final int _SAMPLE = 256;
+    private static final double _MAX_ENTROPY = 0.8;
+
+    /**
+     * Blocks of a stream sent as is after one deflated to more than 90%
+     */
+    private static final int _BACKOFF = 32;
+
+    private static final double[] _LOG2 = new double[_SAMPLE + 1];
+    static {
+        for(int idx = 1; idx <= _SAMPLE; idx++) {
+            _LOG2[idx] = Math.log(idx) / Math.log(2);
+        }
+    }
+
+    private static class Stream {
+        final int id;
+        int conn;
+        int next;
+        int backoff = 0;
+        boolean bind = true;
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+
+    private final ByteBufAllocator _alloc;
+    private final IntObjectHashMap<Stream> _streams = new IntObjectHashMap<>();
+    private final Stream[] _ids = new Stream[STREAMS];
+    private int _clock = 0;
+
+    /**
+     * Records packed, not flushed yet
+     */
+    private ByteBuf _records = null;
+
+    /**
+     * Null unless FEATURE_DEFLATE
+     */
+    private final Deflater _deflater;
+    private byte[] _deflateIn;
+    private byte[] _deflateOut;
+    private final int[] _histogram = new int[256];
+
+    /**
+     * Connection of the last payload deflated
+     */
+    private int _deflated = 0;
+
+    /**
+     * @param alloc
+     * @param features - FEATURE_xxx taken in the CODE_FRAMING switching to the compact framing
+     */
+    public CompactEncoder(ByteBufAllocator alloc, int features) {
+        _alloc = alloc;
+
+        if((features & Block.FEATURE_DEFLATE) != 0) {
+            _deflater = new Deflater(Deflater.BEST_SPEED, true);
+            _deflateIn = new byte[Block.MAX_LENGTH];
+            _deflateOut = new byte[Block.MAX_LENGTH + 1024];
+        }
+        else {
+            _deflater = null;
+        }
+    }
+
+    /**
+     * Does the block switch the framing to compact after it
+     * @param block
+     * @return
+     */
+    public static boolean switches(Block block) {
+        return Block.framingOf(block) == Block.FRAMING_COMPACT;
+    }
+
+    public static void writeVarint(ByteBuf out, int value) {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    public static int varintLength(int value) {
+        int bytes = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Encode a block, superframes done are added to out. The block is not released, the payload is retained
+     * if a superframe takes it without copying
+     * @param block
+     * @param out
+     */
+    public void write(Block block, List<ByteBuf> out) {
+        Stream stream = _stream(block.connection());
+        ByteBuf payload = block.content();
+        int length = block.length();
+        int inflated = 0;
+
+        if(_deflater != null && block.type() == Block.BLOCK_DATA && _deflating(stream, payload)) {
+            inflated = length;
+            length = _deflate(block.connection(), payload);
+            payload = Unpooled.wrappedBuffer(_deflateOut, 0, length);
+
+            if(length * 10 > inflated * 9) {
+                stream.backoff = _BACKOFF;
+            }
+        }
+
+        if(length > COPY_LENGTH) {
+            flush(out);
+
+            ByteBuf header = _alloc.buffer(_RESERVED + MAX_RECORD_HEADER + (inflated > 0 ? length : 0));
+            header.writerIndex(_RESERVED);
+            _header(block, stream, length, inflated, header);
+            _frame(header, header.readableBytes() - _RESERVED + length);
+
+            if(inflated > 0) {
+                // deflated into our own buffer, copied
+                out.add(header.writeBytes(payload));
+            }
+            else {
+                out.add(Unpooled.wrappedBuffer(header, payload.retain()));
+            }
+            return;
+        }
+
+        if(_records != null && _records.readableBytes() - _RESERVED + MAX_RECORD_HEADER + length > SUPERFRAME_LENGTH) {
+            flush(out);
+        }
+
+        if(_records == null) {
+            _records = _alloc.buffer(_RESERVED + SUPERFRAME_LENGTH);
+            _records.writerIndex(_RESERVED);
+        }
+
+        _header(block, stream, length, inflated, _records);
+        if(length > 0) {
+            _records.writeBytes(payload, payload.readerIndex(), length);
+        }
+    }
+
+    /**
+     * Close the superframe of records packed, if any
+     * @param out
+     */
+    public void flush(List<ByteBuf> out) {
+        if(_records != null) {
+            _frame(_records, _records.readableBytes() - _RESERVED);
+            out.add(_records);
+            _records = null;
+        }
+    }
+
+    /**
+     * Write superframe length into the room reserved before the records
+     */
+    private static void _frame(ByteBuf buf, int length) {
+        int start = _RESERVED - varintLength(length);
+        int end = buf.writerIndex();
+
+        buf.writerIndex(start);
+        writeVarint(buf, length);
+        buf.setIndex(start, end);
+    }
+
+    /**
+     * Free the deflater, superframes not flushed yet are dropped
+     */
+    public void close() {
+        if(_records != null) {
+            _records.release();
+            _records = null;
+        }
+
+        if(_deflater != null) {
+            _deflater.end();
+        }
+    }
+
+    /**
+     * Is a payload worth deflating
+     */
+    private boolean _deflating(Stream stream, ByteBuf payload) {
+        if(payload == null || payload.readableBytes() < _MIN_DEFLATE) {
+            return false;
+        }
+
+        if(stream.backoff > 0) {
+            stream.backoff--;
+            return false;
+        }
+
+        return entropy(payload, _histogram) <= _MAX_ENTROPY;
+    }
+
+    /**
+     * Entropy of bytes sampled evenly from a payload, relative to the most the sample could have
+     * @param payload
+     * @param histogram - 256 counters to use
+     * @return 0 (one byte value only) to 1 (every byte sampled different)
+     */
+    static double entropy(ByteBuf payload, int[] histogram) {
+        int length = payload.readableBytes();
+        int samples = Math.min(length, _SAMPLE);
+        int stride = length / samples;
+
+        Arrays.fill(histogram, 0);
+        for(int idx = 0, offset = payload.readerIndex(); idx < samples; idx++, offset += stride) {
+            histogram[payload.getByte(offset) & 0xFF]++;
+        }
+
+        // H = log2(n) - sum(c * log2(c)) / n
+        double sum = 0;
+        for(int count : histogram) {
+            sum += count * _LOG2[count];
+        }
+
+        return (_LOG2[samples] - sum / samples) / _LOG2[samples];
+    }
+
+    /**
+     * Deflate a payload into _deflateOut, sync flushed so the peer inflates it all right away. The stream
+     * starts over if the last payload deflated was of another connection
+     * @return length deflated
+     */
+    private int _deflate(int conn, ByteBuf payload) {
+        if(conn != _deflated) {
+            _deflater.reset();
+            _deflated = conn;
+        }
+
+        int length = payload.readableBytes();
+        payload.getBytes(payload.readerIndex(), _deflateIn, 0, length);
+        _deflater.setInput(_deflateIn, 0, length);
+
+        int deflated = _deflater.deflate(_deflateOut, 0, _deflateOut.length, Deflater.SYNC_FLUSH);
+        while(deflated == _deflateOut.length) {
+            // not all flushed, hardly happens as sync flush only expands by a few bytes
+            _deflateOut = Arrays.copyOf(_deflateOut, _deflateOut.length * 2);
+            deflated += _deflater.deflate(_deflateOut, deflated, _deflateOut.length - deflated, Deflater.SYNC_FLUSH);
+        }
+
+        return deflated;
+    }
+
+    private void _header(Block block, Stream stream, int length, int inflated, ByteBuf out) {
+        boolean control = block.type() == Block.BLOCK_CONTROL;
+        int code = block.control() & 0xFF;
+
+        int flags;
+        if(control) {
+            flags = FLAG_CONTROL | Math.min(code, CODE_MASK);
+        }
+        else {
+            flags = stream.bind || block.sequence() != stream.next ? FLAG_SEQUENCE : 0;
+            if(inflated > 0) {
+                flags |= FLAG_DEFLATED;
+            }
+        }
+
+        if(stream.bind) {
+            flags |= FLAG_BIND;
+        }
+
+        out.writeByte(flags);
+        writeVarint(out, stream.id);
+
+        if(stream.bind) {
+            out.writeInt(block.connection());
+            stream.bind = false;
+        }
+
+        if(control) {
+            if(code >= CODE_MASK) {
+                writeVarint(out, code);
+            }
+        }
+        else {
+            if((flags & FLAG_SEQUENCE) != 0) {
+                writeVarint(out, block.sequence());
+            }
+
+            stream.next = block.sequence() + 1;
+        }
+
+        writeVarint(out, length);
+        if(inflated > 0) {
+            writeVarint(out, inflated);
+        }
+    }
+
+    /**
+     * Stream of a connection, bound (again) if it has none
+     */
+    private Stream _stream(int conn) {
+        Stream stream = _streams.get(conn);
+        if(stream != null) {
+            return stream;
+        }
+
+        if(_streams.size() < STREAMS) {
+            stream = new Stream(_streams.size());
+            _ids[stream.id] = stream;
+        }
+        else {
+            stream = _ids[_clock];
+            _clock = (_clock + 1) % STREAMS;
+            _streams.remove(stream.conn);
+        }
+
+        stream.conn = conn;
+        stream.bind = true;
+        _streams.put(conn, stream);
+
+        return stream;
+    }
+}
@@ -0,0 +1,75 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.common.BlockFragment;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A data block whose header is decoded, its payload passed on in fragments as bytes come in. Only blocks of
+ * MIN_LENGTH or more are cut through, the gain is a whole block of latency on slow links, less blocks are
+ * not worth a fragment each.
+ */
+class CutThrough {
+    static final int MIN_LENGTH = 8 * 1024;
+
+    /**
+     * Fragments are at least this long, but the last one
+     */
+    private static final int _MIN_FRAGMENT = 1024;
+
+    private final int _conn;
+    private final short _typeSeq;
+    private final int _seq;
+    private final int _length;
+    private int _padding;
+    private int _offset = 0;
+
+    /**
+     * @param conn
+     * @param typeSeq
+     * @param seq
+     * @param length - of the payload
+     * @param padding - bytes after the payload to skip
+     */
+    CutThrough(int conn, short typeSeq, int seq, int length, int padding) {
+        _conn = conn;
+        _typeSeq = typeSeq;
+        _seq = seq;
+        _length = length;
+        _padding = padding;
+    }
+
+    /**
+     * Next fragment, the padding is skipped once the payload is all taken
+     * @param in
+     * @return null if not enough of the payload yet
+     */
+    BlockFragment next(ByteBuf in) {
+        BlockFragment fragment = null;
+
+        int rest = _length - _offset;
+        if(rest > 0) {
+            int bytes = Math.min(rest, in.readableBytes());
+            if(bytes < rest && bytes < _MIN_FRAGMENT) {
+                return null;
+            }
+
+            fragment = new BlockFragment(_conn, _typeSeq, _seq, in.readRetainedSlice(bytes), _offset, _length);
+            _offset += bytes;
+        }
+
+        if(_offset == _length && _padding > 0 && in.readableBytes() >= _padding) {
+            in.skipBytes(_padding);
+            _padding = 0;
+        }
+
+        return fragment;
+    }
+
+    /**
+     * Payload and padding all taken
+     * @return
+     */
+    boolean done() {
+        return _offset == _length && _padding == 0;
+    }
+}
@@ -1,7 +1,48 @@
 package com.lob.tunner.handlers;
 
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
 /**
- * Forward data from given channel to target Connection
+ * Forward data from given channel to target Connection, cut into payloads of data blocks.
+ *
+ * Payloads are retained slices of what was read (aggregated by InboundDataHandler if installed before), no
+ * copy here. Subclasses tell how long a payload may be and send it.
  */
-public class DataForwardHandler {
+public abstract class DataForwardHandler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ByteBuf buf = (ByteBuf)msg;
+
+        try {
+            int segment = segment();
+            while(buf.isReadable()) {
+                // we need to split to smaller packets, smaller still if others share the tunnel
+                int bytes = buf.readableBytes();
+                if(bytes > segment) {
+                    bytes = segment == Block.MAX_LENGTH ? Block.MAX_NO_PADDING_LENGTH : segment;
+                }
+
+                forward(buf.readRetainedSlice(bytes));
+            }
+        }
+        finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Longest payload to cut from what was just read
+     * @return
+     */
+    protected abstract int segment();
+
+    /**
+     * Send a payload to the tunnel
+     * @param data - taken over
+     */
+    protected abstract void forward(ByteBuf data);
 }
@@ -1,35 +1,79 @@
 package com.lob.tunner.handlers;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
 
 /**
- * Read data on channel and
+ * Aggregate data read on a channel, so the handler after it makes fewer, fuller blocks rather than one per
+ * socket read.
+ *
+ * Buffers read are added to a composite buffer as they are (no copy), which is passed on
+ * 1. once it holds the byte budget, right away
+ * 2. at the end of the read cycle (channelReadComplete) if there's no delay
+ * 3. otherwise delay after the read cycle it started in, unless 1. happens first, so reads of the next
+ *    cycles could still be added (like Nagle's algorithm, only for what comes in)
+ *
+ * One handler per channel, only used on its event loop.
  */
 public class InboundDataHandler extends ChannelInboundHandlerAdapter {
-    private final ByteBuf _data = PooledByteBufAllocator.DEFAULT.buffer();
+    /**
+     * More components and the composite buffer would consolidate them (copy)
+     */
+    private static final int _MAX_COMPONENTS = 1024;
+
+    private final int _budget;
+    private final long _delay;
+
+    private CompositeByteBuf _data = null;
+    private ScheduledFuture<?> _timer = null;
+
+    /**
+     * @param budget - bytes to pass on once aggregated
+     * @param delay - micros to hold less than budget after a read cycle, 0 to pass on at the end of each
+     */
+    public InboundDataHandler(int budget, long delay) {
+        _budget = budget;
+        _delay = delay;
+    }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if(msg instanceof ByteBuf){
-            ByteBuf buf=(ByteBuf)msg;
-            _data.writeBytes(buf);
+        if(!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        ByteBuf buf = (ByteBuf)msg;
+        if(!buf.isReadable()) {
+            buf.release();
+            return;
         }
 
-        ReferenceCountUtil.release(msg);
+        if(_data == null) {
+            _data = ctx.alloc().compositeBuffer(_MAX_COMPONENTS);
+        }
+
+        _data.addComponent(true, buf);
+        if(_data.readableBytes() >= _budget || _data.numComponents() == _MAX_COMPONENTS) {
+            _flush(ctx);
+        }
     }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-        if(_data.writerIndex()!=0){
-            ByteBuf data = PooledByteBufAllocator.DEFAULT.buffer();
-            data.writeBytes(_data);
-            _data.clear();
-
-            ctx.fireChannelRead(data);
+        if(_data != null) {
+            if(_delay <= 0) {
+                _flush(ctx);
+            }
+            else if(_timer == null) {
+                _timer = ctx.executor().schedule(() -> _flush(ctx), _delay, TimeUnit.MICROSECONDS);
+            }
         }
 
         super.channelReadComplete(ctx);
@@ -37,8 +81,35 @@ public class InboundDataHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        ReferenceCountUtil.release(_data);
+        // what was read goes before the close
+        _flush(ctx);
         super.channelInactive(ctx);
     }
-}
 
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        _cancel();
+        ReferenceCountUtil.release(_data);
+        _data = null;
+    }
+
+    /**
+     * Pass on what is aggregated, if anything
+     */
+    private void _flush(ChannelHandlerContext ctx) {
+        _cancel();
+
+        if(_data != null) {
+            ByteBuf data = _data;
+            _data = null;
+            ctx.fireChannelRead(data);
+        }
+    }
+
+    private void _cancel() {
+        if(_timer != null) {
+            _timer.cancel(false);
+            _timer = null;
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package com.lob.tunner.logger;
 
-import com.sun.org.apache.bcel.internal.generic.ILOAD;
-import org.omg.CORBA.NO_IMPLEMENT;
-
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -0,0 +1,110 @@
+package com.lob.tunner.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Queueing delay of small requests on a tunnel saturated by bulk transfers, FIFO against BlockScheduler.
+ *
+ * Simulated by TunnelSimulation. Each bulk connection keeps a full flow control window of 64K blocks queued
+ * (credit comes back as soon as its blocks are drained), the interactive connection queues a 200 bytes
+ * request every 10 millis.
+ */
+public class BlockSchedulerBenchmark {
+    private static final int _BULK_BLOCK = Block.MAX_NO_PADDING_LENGTH;
+
+    interface Queue {
+        void add(Block block);
+        Block next();
+    }
+
+    static class Fifo implements Queue {
+        private final ArrayDeque<Block> _blocks = new ArrayDeque<>();
+
+        @Override
+        public void add(Block block) {
+            _blocks.add(block);
+        }
+
+        @Override
+        public Block next() {
+            return _blocks.poll();
+        }
+    }
+
+    static class Scheduled implements Queue {
+        private final BlockScheduler _scheduler = new BlockScheduler();
+
+        @Override
+        public void add(Block block) {
+            _scheduler.add(block);
+        }
+
+        @Override
+        public Block next() {
+            return _scheduler.next();
+        }
+    }
+
+    /**
+     * @return waiting time of each small request in micros, sorted
+     */
+    private static ArrayList<Long> _run(Queue queue, int bulks) {
+        TunnelSimulation simulation = new TunnelSimulation(0) {
+            @Override
+            void add(Block block) {
+                queue.add(block);
+            }
+
+            @Override
+            Block next() {
+                return queue.next();
+            }
+
+            @Override
+            void drained(Block block) {
+                // credit back, the bulk connection queues another block
+                queue.add(block(block.connection(), _BULK_BLOCK));
+            }
+        };
+
+        int blocksPerWindow = FlowControl.INITIAL_WINDOW / _BULK_BLOCK;
+        for(int conn = 0; conn < bulks; conn++) {
+            for(int idx = 0; idx < blocksPerWindow; idx++) {
+                queue.add(TunnelSimulation.block(TunnelSimulation.BULK_ID + conn, _BULK_BLOCK));
+            }
+        }
+
+        return simulation.run();
+    }
+
+    private static void _report(String name, int bulks, ArrayList<Long> waits) {
+        System.out.println(String.format("%-10s %d bulk: %s", name, bulks, TunnelSimulation.percentiles(waits)));
+    }
+
+    /**
+     * Testing purpose
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        for(int bulks : new int[]{ 1, 2, 8 }) {
+            _report("FIFO", bulks, _run(new Fifo(), bulks));
+            _report("Scheduler", bulks, _run(new Scheduled(), bulks));
+        }
+
+        /**
+         * Performance result (simulated, deterministic):
+         *
+         * FIFO       1 bulk: p50   28.2 ms, p99   31.2 ms, max   31.3 ms
+         * Scheduler  1 bulk: p50    3.1 ms, p99    6.2 ms, max    6.3 ms
+         * FIFO       2 bulk: p50   53.2 ms, p99   56.3 ms, max   56.4 ms
+         * Scheduler  2 bulk: p50    6.3 ms, p99   12.4 ms, max   12.5 ms
+         * FIFO       8 bulk: p50  203.5 ms, p99  206.6 ms, max  206.6 ms
+         * Scheduler  8 bulk: p50   24.4 ms, p99   49.5 ms, max   50.0 ms
+         *
+         * With FIFO a request waits for every bulk window queued ahead of it, with the scheduler for at most
+         * one 64K block per bulk connection.
+         */
+    }
+}
@@ -0,0 +1,169 @@
+package com.lob.tunner.common;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ConcurrentIntMap against ConcurrentHashMap<Integer, V> as connection table, for
+ * 1. lookups of live connections (what every block does)
+ * 2. churn, connections started and aborted while the table stays the same size
+ * 3. heap retained per entry
+ */
+public class ConcurrentIntMapBenchmark {
+    private static final int _CONNECTIONS = 50 * 1000;
+    private static final int _LOOKUPS = 20 * 1000 * 1000;
+    private static final int _STRIDE = 7919;
+
+    private static int[] _ids(int count, long seed) {
+        Random random = new Random(seed);
+        int[] ids = new int[count];
+        for(int idx = 0; idx < count; idx++) {
+            ids[idx] = random.nextInt();
+        }
+
+        return ids;
+    }
+
+    private static long _lookupChm(ConcurrentHashMap<Integer, Object> map, int[] ids) {
+        long found = 0;
+        int position = 0;
+        for(int idx = 0; idx < _LOOKUPS; idx++) {
+            if(map.get(ids[position]) != null) {
+                found++;
+            }
+
+            // stride over the IDs so lookups don't just walk the table in order
+            position += _STRIDE;
+            if(position >= ids.length) {
+                position -= ids.length;
+            }
+        }
+
+        return found;
+    }
+
+    private static long _lookupInt(ConcurrentIntMap<Object> map, int[] ids) {
+        long found = 0;
+        int position = 0;
+        for(int idx = 0; idx < _LOOKUPS; idx++) {
+            if(map.get(ids[position]) != null) {
+                found++;
+            }
+
+            // stride over the IDs so lookups don't just walk the table in order
+            position += _STRIDE;
+            if(position >= ids.length) {
+                position -= ids.length;
+            }
+        }
+
+        return found;
+    }
+
+    private static void _churnChm(ConcurrentHashMap<Integer, Object> map, int[] ids, int[] fresh, Object value) {
+        for(int idx = 0; idx < fresh.length; idx++) {
+            map.remove(ids[idx]);
+            map.put(fresh[idx], value);
+        }
+
+        // back to the original content
+        for(int idx = 0; idx < fresh.length; idx++) {
+            map.remove(fresh[idx]);
+            map.put(ids[idx], value);
+        }
+    }
+
+    private static void _churnInt(ConcurrentIntMap<Object> map, int[] ids, int[] fresh, Object value) {
+        for(int idx = 0; idx < fresh.length; idx++) {
+            map.remove(ids[idx]);
+            map.put(fresh[idx], value);
+        }
+
+        for(int idx = 0; idx < fresh.length; idx++) {
+            map.remove(fresh[idx]);
+            map.put(ids[idx], value);
+        }
+    }
+
+    private static long _used() {
+        for(int i = 0; i < 5; i++) {
+            System.gc();
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void _report(String name, long ops, long nanos) {
+        System.out.println(String.format("%-24s %8.1f M ops/s", name, ops / (nanos / 1e9) / 1e6));
+    }
+
+    /**
+     * Testing purpose
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        int[] ids = _ids(_CONNECTIONS, 1);
+        int[] fresh = _ids(_CONNECTIONS, 2);
+        Object value = new Object();
+
+        long base = _used();
+        ConcurrentHashMap<Integer, Object> chm = new ConcurrentHashMap<>();
+        for(int id : ids) {
+            chm.put(id, value);
+        }
+        long chmBytes = _used() - base;
+
+        base = _used();
+        ConcurrentIntMap<Object> intMap = new ConcurrentIntMap<>();
+        for(int id : ids) {
+            intMap.put(id, value);
+        }
+        long intBytes = _used() - base;
+
+        System.out.println(String.format(
+                "Heap for %d entries: CHM %d bytes (%d / entry), ConcurrentIntMap %d bytes (%d / entry)",
+                _CONNECTIONS, chmBytes, chmBytes / _CONNECTIONS, intBytes, intBytes / _CONNECTIONS
+        ));
+
+        // warm up
+        for(int i = 0; i < 5; i++) {
+            _lookupChm(chm, ids);
+            _lookupInt(intMap, ids);
+            _churnChm(chm, ids, fresh, value);
+            _churnInt(intMap, ids, fresh, value);
+        }
+
+        for(int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            _lookupChm(chm, ids);
+            _report("CHM get", _LOOKUPS, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            _lookupInt(intMap, ids);
+            _report("ConcurrentIntMap get", _LOOKUPS, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            _churnChm(chm, ids, fresh, value);
+            _report("CHM remove+put", 2L * fresh.length, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            _churnInt(intMap, ids, fresh, value);
+            _report("ConcurrentIntMap remove+put", 2L * fresh.length, System.nanoTime() - start);
+        }
+
+        /**
+         * Performance result (JDK 8, x86_64, 1 vCPU, one of 3 runs, others within about 30%):
+         *
+         * Heap for 50000 entries: CHM 2399320 bytes (47 / entry), ConcurrentIntMap 1052416 bytes (21 / entry)
+         * CHM get                      56.9 M ops/s
+         * ConcurrentIntMap get         79.8 M ops/s
+         * CHM remove+put               11.0 M ops/s
+         * ConcurrentIntMap remove+put      4.4 M ops/s
+         *
+         * Lookups are 35% - 45% faster in every run. Churn is slower as tombstones are purged by rehashing,
+         * still far beyond the rate connections are started / aborted.
+         */
+    }
+}
@@ -0,0 +1,144 @@
+package com.lob.tunner.common;
+
+import com.lob.tunner.BlockUtils;
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderBufferTest {
+    private final ReorderBuffer _buffer = new ReorderBuffer();
+    private final List<Integer> _passed = new ArrayList<>();
+
+    private static Block _block(int seq) {
+        return Block.data(1, seq, Unpooled.buffer(4).writeInt(seq));
+    }
+
+    /**
+     * Block as decoded from the block framing, with the lowest 14 bits of its sequence only
+     */
+    private static Block _short(int seq) {
+        return new Block(1, BlockUtils.sequence((short)seq), Unpooled.buffer(4).writeInt(seq));
+    }
+
+    private boolean _add(Block block) {
+        return _buffer.add(block, b -> {
+            int seq = b.content().getInt(b.content().readerIndex());
+            assertEquals(b.sequence(), b.extended() ? seq : seq & BlockUtils.MAX_SEQ);
+            _passed.add(seq);
+            b.release();
+        });
+    }
+
+    @After
+    public void drop() {
+        _buffer.drop();
+    }
+
+    @Test
+    public void passesBlocksInOrderRightAway() {
+        for(int seq = 0; seq < 3; seq++) {
+            assertTrue(_add(_block(seq)));
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2), _passed);
+        assertEquals(3, _buffer.next());
+        assertEquals(0, _buffer.held());
+    }
+
+    @Test
+    public void holdsBlocksAheadUntilGapFilled() {
+        assertTrue(_add(_block(0)));
+        assertTrue(_add(_block(3)));
+        assertTrue(_add(_block(2)));
+
+        assertEquals(Arrays.asList(0), _passed);
+        assertEquals(2, _buffer.held());
+
+        assertTrue(_add(_block(1)));
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), _passed);
+        assertEquals(4, _buffer.next());
+        assertEquals(0, _buffer.held());
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        Block behind = _block(0);
+        Block ahead = _block(2);
+
+        _add(_block(0));
+        _add(_block(2));
+
+        assertFalse(_add(behind));
+        assertFalse(_add(ahead));
+        assertEquals(0, behind.refCnt());
+        assertEquals(0, ahead.refCnt());
+
+        _add(_block(1));
+        assertEquals(Arrays.asList(0, 1, 2), _passed);
+    }
+
+    @Test
+    public void releasesBlocksHeldOnDrop() {
+        Block ahead = _block(5);
+        _add(ahead);
+
+        _buffer.drop();
+
+        assertEquals(0, ahead.refCnt());
+        assertEquals(0, _buffer.held());
+    }
+
+    @Test
+    public void takesShortSequencesAcrossWraps() {
+        int total = 3 * (BlockUtils.MAX_SEQ + 1) + 100;
+
+        // every pair swapped, as if the second of each went over another tunnel
+        for(int seq = 0; seq < total; seq += 2) {
+            assertTrue(_add(_short(seq + 1)));
+            assertTrue(_add(_short(seq)));
+        }
+
+        assertEquals(total, _buffer.next());
+        assertEquals(total, _passed.size());
+        for(int idx = 0; idx < total; idx++) {
+            assertEquals(idx, (int)_passed.get(idx));
+        }
+    }
+
+    @Test
+    public void dropsShortDuplicatesAfterWrap() {
+        int total = BlockUtils.MAX_SEQ + 11;
+        for(int seq = 0; seq < total; seq++) {
+            _add(_short(seq));
+        }
+
+        // replayed after a tunnel failed, its 14 bits taken as just behind next
+        Block replayed = _short(total - 10);
+        assertFalse(_add(replayed));
+        assertEquals(0, replayed.refCnt());
+        assertEquals(total, _buffer.next());
+    }
+
+    @Test
+    public void holdsExtendedBlocksBeyondShortWindow() {
+        int ahead = BlockUtils.MAX_SEQ + 100;
+
+        assertTrue(_add(_block(ahead).extend()));
+        for(int seq = 0; seq < ahead; seq++) {
+            assertTrue(_add(_block(seq).extend()));
+        }
+
+        assertEquals(ahead + 1, _buffer.next());
+        assertEquals(ahead, (int)_passed.get(ahead));
+        assertEquals(0, _buffer.held());
+    }
+}
@@ -0,0 +1,85 @@
+package com.lob.tunner.common;
+
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ReplayBufferTest {
+    private static Block _block(int seq, int length) {
+        return Block.data(1, seq, Unpooled.buffer(length).writeZero(length));
+    }
+
+    @Test
+    public void keepsBlocksSentUntilAcknowledged() {
+        ReplayBuffer replay = new ReplayBuffer();
+        Block[] blocks = { _block(0, 10), _block(1, 20), _block(2, 30) };
+
+        for(Block block : blocks) {
+            assertSame(block, replay.sent(block));
+            // written out and released by the tunnel
+            block.release();
+        }
+
+        assertEquals(3, replay.size());
+        assertEquals(60, replay.bytes());
+
+        replay.ack(2);
+
+        assertEquals(1, replay.size());
+        assertEquals(30, replay.bytes());
+        assertEquals(0, blocks[0].refCnt());
+        assertEquals(0, blocks[1].refCnt());
+        assertEquals(1, blocks[2].refCnt());
+
+        replay.drop();
+
+        assertEquals(0, replay.size());
+        assertEquals(0, blocks[2].refCnt());
+    }
+
+    @Test
+    public void replaysBlocksNotAcknowledged() {
+        ReplayBuffer replay = new ReplayBuffer();
+        for(int seq = 0; seq < 4; seq++) {
+            replay.sent(_block(seq, 8)).release();
+        }
+
+        replay.ack(1);
+
+        List<Integer> replayed = new ArrayList<>();
+        replay.replay(block -> {
+            replayed.add(block.sequence());
+            block.release();
+        });
+
+        assertEquals(Arrays.asList(1, 2, 3), replayed);
+
+        // still kept until acknowledged
+        assertEquals(3, replay.size());
+
+        replay.ack(4);
+        assertEquals(0, replay.size());
+        assertEquals(0, replay.bytes());
+    }
+
+    @Test
+    public void ignoresAcknowledgmentsGoingBack() {
+        ReplayBuffer replay = new ReplayBuffer();
+        for(int seq = 0; seq < 3; seq++) {
+            replay.sent(_block(seq, 8)).release();
+        }
+
+        replay.ack(2);
+        replay.ack(1);
+
+        assertEquals(1, replay.size());
+
+        replay.drop();
+    }
+}
@@ -0,0 +1,145 @@
+package com.lob.tunner.common;
+
+import com.lob.tunner.BlockUtils;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+
+/**
+ * Simulated tunnel for benchmarks of queueing delay, draining RATE bytes per second. An interactive
+ * connection queues a SMALL_BLOCK bytes request every SMALL_INTERVAL_MICROS, behind whatever bulk
+ * connections (from BULK_ID on) queue, the time each request waits until written out is taken.
+ *
+ * Subclasses queue the blocks and pick the next one to write out, and keep bulk connections fed.
+ */
+abstract class TunnelSimulation {
+    static final long RATE = 10L * 1024 * 1024;
+    static final int SMALL_BLOCK = 200;
+    static final int SMALL_INTERVAL_MICROS = 10 * 1000;
+    static final int REQUESTS = 2000;
+
+    static final int SMALL_ID = 1;
+    static final int BULK_ID = 100;
+
+    private static final byte[] _PAYLOAD = new byte[Block.MAX_LENGTH];
+
+    /**
+     * Bytes of header counted per block written out
+     */
+    private final int _header;
+
+    private long _blocks = 0;
+    private long _bytes = 0;
+
+    /**
+     * @param header - bytes counted per block on top of its payload
+     */
+    TunnelSimulation(int header) {
+        _header = header;
+    }
+
+    static Block block(int conn, int length) {
+        // payload wrapped, not copied
+        return new Block(conn, BlockUtils.sequence((short)0), Unpooled.wrappedBuffer(_PAYLOAD, 0, length));
+    }
+
+    /**
+     * Queue a block to write out
+     * @param block
+     */
+    abstract void add(Block block);
+
+    /**
+     * Next block to write out
+     * @return null if none queued
+     */
+    abstract Block next();
+
+    /**
+     * Bulk connections queue what they could by now
+     * @param now - micros
+     */
+    void refill(long now) {
+    }
+
+    /**
+     * A small request is about to be queued
+     * @param now - micros
+     */
+    void requested(long now) {
+    }
+
+    /**
+     * A block of a bulk connection was written out
+     * @param block
+     */
+    abstract void drained(Block block);
+
+    /**
+     * @return waiting time of each small request in micros, sorted
+     */
+    ArrayList<Long> run() {
+        IdentityHashMap<Block, Long> queued = new IdentityHashMap<>();
+        ArrayList<Long> waits = new ArrayList<>();
+        long now = 0;
+        long nextRequest = 0;
+
+        while(waits.size() < REQUESTS) {
+            refill(now);
+
+            while(nextRequest <= now) {
+                requested(nextRequest);
+
+                Block block = block(SMALL_ID, SMALL_BLOCK);
+                queued.put(block, nextRequest);
+                add(block);
+
+                nextRequest += SMALL_INTERVAL_MICROS;
+            }
+
+            Block block = next();
+            if(block == null) {
+                now = nextRequest;
+                continue;
+            }
+
+            now += (block.length() + _header) * 1000000L / RATE;
+            _blocks++;
+            _bytes += block.length();
+
+            if(block.connection() == SMALL_ID) {
+                waits.add(now - queued.remove(block));
+            }
+            else {
+                drained(block);
+            }
+        }
+
+        Collections.sort(waits);
+        return waits;
+    }
+
+    /**
+     * Header bytes written out over payload bytes
+     * @return
+     */
+    double overhead() {
+        return _blocks * _header / (double)_bytes;
+    }
+
+    /**
+     * p50, p99 and max of waits sorted
+     * @param waits - micros
+     * @return
+     */
+    static String percentiles(ArrayList<Long> waits) {
+        return String.format(
+                "p50 %6.1f ms, p99 %6.1f ms, max %6.1f ms",
+                waits.get(waits.size() / 2) / 1000.0,
+                waits.get(waits.size() * 99 / 100) / 1000.0,
+                waits.get(waits.size() - 1) / 1000.0
+        );
+    }
+}
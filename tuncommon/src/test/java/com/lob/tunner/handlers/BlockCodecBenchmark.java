@@ -0,0 +1,196 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decode throughput of BlockDecoder against the byte-by-byte FSM the server tunnel used to have.
+ *
+ * The same pre-encoded stream is fed in 64K chunks (what a socket read typically gives) to both.
+ */
+public class BlockCodecBenchmark {
+    private static final int[] _SIZES = { 40, 200, 1460, 8000, 16384, Block.MAX_NO_PADDING_LENGTH, Block.MAX_LENGTH };
+    private static final int _CHUNK = 64 * 1024;
+
+    private static ByteBuf _stream(int blocks) {
+        ByteBuf stream = PooledByteBufAllocator.DEFAULT.directBuffer();
+        EmbeddedChannel channel = new EmbeddedChannel(new BlockEncoder());
+
+        for(int idx = 0; idx < blocks; idx++) {
+            int len = _SIZES[idx % _SIZES.length];
+            ByteBuf payload = PooledByteBufAllocator.DEFAULT.buffer(len);
+            payload.writerIndex(len);
+
+            channel.writeOutbound(new Block(idx, BlockUtils.sequence((short)idx), payload));
+
+            ByteBuf frame = channel.readOutbound();
+            stream.writeBytes(frame);
+            frame.release();
+        }
+
+        channel.finish();
+        return stream;
+    }
+
+    private static long _decoder(ByteBuf stream) {
+        EmbeddedChannel channel = new EmbeddedChannel(new BlockDecoder());
+        long blocks = 0;
+
+        for(int offset = 0; offset < stream.writerIndex(); offset += _CHUNK) {
+            int len = Math.min(_CHUNK, stream.writerIndex() - offset);
+            channel.writeInbound(stream.retainedSlice(offset, len));
+
+            Block block;
+            while((block = channel.readInbound()) != null) {
+                blocks++;
+                block.release();
+            }
+        }
+
+        channel.finish();
+        return blocks;
+    }
+
+    private static long _legacy(ByteBuf stream) {
+        LegacyReader reader = new LegacyReader();
+
+        for(int offset = 0; offset < stream.writerIndex(); offset += _CHUNK) {
+            int len = Math.min(_CHUNK, stream.writerIndex() - offset);
+            ByteBuf chunk = stream.retainedSlice(offset, len);
+            reader.read(chunk);
+            chunk.release();
+        }
+
+        return reader.blocks;
+    }
+
+    private static void _report(String name, ByteBuf stream, long blocks, long nanos) {
+        double secs = nanos / 1e9;
+        System.out.println(String.format(
+                "%-8s %8d blocks, %6.1f MB/s, %8.0f blocks/s",
+                name, blocks, stream.writerIndex() / secs / (1024 * 1024), blocks / secs
+        ));
+    }
+
+    /**
+     * Testing purpose
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        ByteBuf stream = _stream(7 * 1000);
+        System.out.println(String.format("Stream of %d bytes", stream.writerIndex()));
+
+        // warm up
+        for(int i = 0; i < 10; i++) {
+            _legacy(stream);
+            _decoder(stream);
+        }
+
+        for(int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            long blocks = _legacy(stream);
+            _report("FSM", stream, blocks, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            blocks = _decoder(stream);
+            _report("Decoder", stream, blocks, System.nanoTime() - start);
+        }
+
+        stream.release();
+
+        /**
+         * Performance result (JDK 8, x86_64, 7000 blocks / 150MB per run, decoder payloads are not copied):
+         *
+         * FSM          7000 blocks,  397.2 MB/s,    18547 blocks/s
+         * Decoder      7000 blocks, 7273.6 MB/s,   339603 blocks/s
+         */
+    }
+
+    /**
+     * The FSM formerly in server Tunnel.read(), without the debug hex dumps
+     */
+    private static class LegacyReader {
+        private static final int _RS_HEADER = 1;
+        private static final int _RS_PAYLOAD = 2;
+        private static final int _RS_PADDING = 3;
+
+        private ByteBuffer _data = ByteBuffer.allocate(1024);
+        private final ByteBuffer _padding = ByteBuffer.allocate(8);
+        private final ByteBuffer _header = ByteBuffer.allocate(8);
+        private int _readState = _RS_HEADER;
+
+        long blocks = 0;
+
+        private boolean _read(ByteBuf data, ByteBuffer buffer) {
+            while (buffer.hasRemaining() && data.isReadable()) {
+                buffer.put(data.readByte());
+            }
+
+            return buffer.hasRemaining();
+        }
+
+        void read(ByteBuf data) {
+            while(data.isReadable()) {
+                if (_readState == _RS_HEADER) {
+                    if( _read(data, _header)) {
+                        return;
+                    }
+
+                    _header.rewind();
+                    _header.getShort();
+                    int len = (_header.getShort() & 0x0FFFF);
+                    _header.getInt();
+
+                    if (len > 0) {
+                        while(len > _data.capacity()) {
+                            _data = ByteBuffer.allocate(_data.capacity() << 1);
+                        }
+
+                        _data.rewind();
+                        _data.limit(len);
+
+                        _readState = _RS_PAYLOAD;
+                    }
+                    else {
+                        _handleBlock();
+                    }
+                }
+                else if(_readState == _RS_PAYLOAD) {
+                    if(_read(data, _data)) {
+                        return;
+                    }
+
+                    int padding = _data.limit() % 8;
+                    if(padding > 0) {
+                        _padding.rewind();
+                        _padding.limit(8 - padding);
+
+                        _readState = _RS_PADDING;
+                    }
+                    else {
+                        _handleBlock();
+                    }
+                }
+                else if(_readState == _RS_PADDING) {
+                    if(_read(data, _padding)) {
+                        return;
+                    }
+
+                    _handleBlock();
+                }
+            }
+        }
+
+        private void _handleBlock() {
+            _header.clear();
+            _readState = _RS_HEADER;
+            blocks++;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.common.Block;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BlockWriterTest {
+    private static Block _block(int seq, int length) {
+        return Block.data(1, seq, Unpooled.buffer(length).writeZero(length));
+    }
+
+    @Test
+    public void writesBlocksQueued() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        BlockWriter writer = new BlockWriter(channel);
+
+        writer.write(_block(0, 10));
+        writer.write(_block(1, 20));
+        assertEquals(30, writer.pending());
+
+        channel.runPendingTasks();
+        assertEquals(0, writer.pending());
+
+        for(int seq = 0; seq < 2; seq++) {
+            Block block = channel.readOutbound();
+            assertEquals(seq, block.sequence());
+            block.release();
+        }
+
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void dropsBlocksOnceClosed() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        BlockWriter writer = new BlockWriter(channel);
+
+        writer.write(_block(0, 10));
+        writer.close();
+        writer.write(_block(1, 20));
+
+        channel.runPendingTasks();
+        assertEquals(0, writer.pending());
+        assertNull(channel.readOutbound());
+
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,165 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.ArrayList;
+
+/**
+ * Wire bytes of the block framing against the compact framing for small payloads, and decode throughput of
+ * both.
+ *
+ * Interactive traffic is simulated as _CONNECTIONS connections taking turns to send a block, data blocks
+ * extended (FEATURE_SEQ32 taken) in the block framing. Compact superframes are flushed every burst blocks,
+ * 1 being a lone keystroke going out on its own.
+ */
+public class CompactCodecBenchmark {
+    private static final int[] _PAYLOADS = { 20, 50, 100, 200, 1460 };
+    private static final int[] _BURSTS = { 1, 16 };
+    private static final int _CONNECTIONS = 16;
+    private static final int _BLOCKS = 16 * 1024;
+    private static final int _CHUNK = 64 * 1024;
+
+    private static Block _block(int idx, int len) {
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.buffer(len);
+        payload.writerIndex(len);
+
+        return Block.data(1000 + idx % _CONNECTIONS, idx / _CONNECTIONS, payload).extend();
+    }
+
+    private static void _encode(Block block, ByteBuf out) {
+        int start = out.writerIndex();
+        BlockEncoder.encodeHeader(block, out).writeBytes(block.content(), block.content().readerIndex(), block.length());
+        out.writeZero(block.frameLength() - (out.writerIndex() - start));
+    }
+
+    /**
+     * Encode the same blocks in both framings
+     * @param blocks - stream of the block framing
+     * @param compact - stream of the compact framing, starting with CODE_FRAMING in the block framing
+     */
+    private static void _encode(int len, int burst, ByteBuf blocks, ByteBuf compact) {
+        CompactEncoder encoder = new CompactEncoder(PooledByteBufAllocator.DEFAULT, 0);
+        ArrayList<ByteBuf> frames = new ArrayList<>();
+
+        Block framing = Block.framing(Block.FRAMING_COMPACT, 0);
+        _encode(framing, compact);
+        framing.release();
+
+        for(int idx = 0; idx < _BLOCKS; idx++) {
+            Block block = _block(idx, len);
+            _encode(block, blocks);
+
+            encoder.write(block, frames);
+            block.release();
+
+            if((idx + 1) % burst == 0) {
+                encoder.flush(frames);
+            }
+
+            for(ByteBuf frame : frames) {
+                compact.writeBytes(frame);
+                frame.release();
+            }
+
+            frames.clear();
+        }
+    }
+
+    private static long _decode(ByteBuf stream) {
+        EmbeddedChannel channel = new EmbeddedChannel(new BlockDecoder());
+        long blocks = 0;
+
+        for(int offset = 0; offset < stream.writerIndex(); offset += _CHUNK) {
+            int len = Math.min(_CHUNK, stream.writerIndex() - offset);
+            channel.writeInbound(stream.retainedSlice(offset, len));
+
+            Block block;
+            while((block = channel.readInbound()) != null) {
+                blocks++;
+                block.release();
+            }
+        }
+
+        channel.finish();
+        return blocks;
+    }
+
+    /**
+     * Testing purpose
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        for(int len : _PAYLOADS) {
+            for(int burst : _BURSTS) {
+                ByteBuf blocks = PooledByteBufAllocator.DEFAULT.heapBuffer();
+                ByteBuf compact = PooledByteBufAllocator.DEFAULT.heapBuffer();
+                _encode(len, burst, blocks, compact);
+
+                long blockBytes = blocks.writerIndex();
+                long payload = (long)len * _BLOCKS;
+
+                System.out.println(String.format(
+                        "%5d bytes, burst %2d: block %6.1f B/block (%4.1f%% overhead), compact %6.1f B/block (%4.1f%% overhead)",
+                        len, burst,
+                        blockBytes / (double)_BLOCKS, 100.0 * (blockBytes - payload) / blockBytes,
+                        compact.writerIndex() / (double)_BLOCKS, 100.0 * (compact.writerIndex() - payload) / compact.writerIndex()
+                ));
+
+                blocks.release();
+                compact.release();
+            }
+        }
+
+        // decode, warm up first
+        ByteBuf blocks = PooledByteBufAllocator.DEFAULT.heapBuffer();
+        ByteBuf compact = PooledByteBufAllocator.DEFAULT.heapBuffer();
+        _encode(200, 16, blocks, compact);
+        for(int i = 0; i < 20; i++) {
+            _decode(blocks);
+            _decode(compact);
+        }
+
+        for(int i = 0; i < 3; i++) {
+            _report("Block", blocks);
+            _report("Compact", compact);
+        }
+
+        blocks.release();
+        compact.release();
+
+        /**
+         * Performance result (JDK 8, x86_64, 1 vCPU so decode rates are noisy):
+         *
+         *    20 bytes, burst  1: block   32.0 B/block (37.5% overhead), compact   24.0 B/block (16.7% overhead)
+         *    20 bytes, burst 16: block   32.0 B/block (37.5% overhead), compact   23.1 B/block (13.5% overhead)
+         *    50 bytes, burst  1: block   64.0 B/block (21.9% overhead), compact   54.0 B/block ( 7.4% overhead)
+         *    50 bytes, burst 16: block   64.0 B/block (21.9% overhead), compact   53.1 B/block ( 5.9% overhead)
+         *   100 bytes, burst  1: block  112.0 B/block (10.7% overhead), compact  104.0 B/block ( 3.9% overhead)
+         *   100 bytes, burst 16: block  112.0 B/block (10.7% overhead), compact  103.1 B/block ( 3.0% overhead)
+         *   200 bytes, burst  1: block  216.0 B/block ( 7.4% overhead), compact  206.0 B/block ( 2.9% overhead)
+         *   200 bytes, burst 16: block  216.0 B/block ( 7.4% overhead), compact  204.1 B/block ( 2.0% overhead)
+         *  1460 bytes, burst  1: block 1472.0 B/block ( 0.8% overhead), compact 1466.0 B/block ( 0.4% overhead)
+         *  1460 bytes, burst 16: block 1472.0 B/block ( 0.8% overhead), compact 1464.3 B/block ( 0.3% overhead)
+         *
+         * Block    decode  16384 blocks of 200 bytes,  1608918 - 4570980 blocks/s
+         * Compact  decode  16385 blocks of 200 bytes,  6378765 - 7026742 blocks/s
+         *
+         * Wire bytes exclude what SSH adds per packet, which is the same for both.
+         */
+    }
+
+    private static void _report(String name, ByteBuf stream) {
+        long start = System.nanoTime();
+        long blocks = _decode(stream);
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(
+                "%-8s decode %6d blocks of 200 bytes, %8.0f blocks/s",
+                name, blocks, blocks / secs
+        ));
+    }
+}
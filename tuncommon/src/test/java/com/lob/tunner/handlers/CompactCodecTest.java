@@ -0,0 +1,207 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.BlockUtils;
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactCodecTest {
+    private static final byte[] _TEXT = ("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n"
+            + "[{\"id\":1,\"user\":\"alice\",\"state\":\"active\"},{\"id\":2,\"user\":\"bob\",\"state\":\"closed\"}]")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Blocks of many connections (more than the streams), data and control alike, small and large
+     */
+    private static List<Block> _blocks(Random random, int count, boolean text) {
+        List<Block> blocks = new ArrayList<>();
+        HashMap<Integer, Integer> sequences = new HashMap<>();
+
+        for(int idx = 0; idx < count; idx++) {
+            int conn = random.nextInt(CompactEncoder.STREAMS + 2000) * 7 + 1;
+
+            if(random.nextInt(5) == 0) {
+                short code = random.nextBoolean() ? Block.CODE_ABORT : (short)random.nextInt(8);
+                blocks.add(random.nextBoolean()
+                        ? new Block(conn, BlockUtils.control(code))
+                        : new Block(conn, BlockUtils.control(code), Unpooled.buffer(8).writeLong(idx)));
+                continue;
+            }
+
+            // mostly one after the other, sometimes jumping (connection moved or sequences beyond 14 bits)
+            int seq = sequences.merge(conn, random.nextInt(10) == 0 ? 1000000 : 1, Integer::sum);
+            int length = random.nextInt(10) == 0 ? random.nextInt(Block.MAX_LENGTH) : random.nextInt(300);
+
+            byte[] payload = new byte[length];
+            if(text && random.nextBoolean()) {
+                for(int offset = 0; offset < length; offset += _TEXT.length) {
+                    System.arraycopy(_TEXT, 0, payload, offset, Math.min(_TEXT.length, length - offset));
+                }
+            }
+            else {
+                random.nextBytes(payload);
+            }
+
+            blocks.add(Block.data(conn, seq, Unpooled.wrappedBuffer(payload)));
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Encode blocks, flushed now and then, and decode them from the wire fed in random chunks
+     */
+    private static void _roundTrip(List<Block> blocks, int features, Random random) {
+        CompactEncoder encoder = new CompactEncoder(PooledByteBufAllocator.DEFAULT, features);
+        CompactDecoder decoder = new CompactDecoder();
+        List<ByteBuf> frames = new ArrayList<>();
+        ByteBuf wire = Unpooled.buffer();
+
+        for(Block block : blocks) {
+            encoder.write(block, frames);
+            if(random.nextInt(20) == 0) {
+                encoder.flush(frames);
+            }
+        }
+
+        encoder.flush(frames);
+        encoder.close();
+
+        for(ByteBuf frame : frames) {
+            wire.writeBytes(frame);
+            frame.release();
+        }
+
+        ByteBuf in = Unpooled.buffer();
+        int decoded = 0;
+        while(wire.isReadable()) {
+            in.writeBytes(wire, Math.min(wire.readableBytes(), random.nextInt(3000)));
+
+            Block block;
+            while((block = decoder.decode(in)) != null) {
+                _assertSame(blocks.get(decoded++), block);
+                block.release();
+            }
+
+            in.discardReadBytes();
+        }
+
+        decoder.close();
+
+        assertEquals(blocks.size(), decoded);
+        assertFalse(in.isReadable());
+
+        for(Block block : blocks) {
+            block.release();
+        }
+    }
+
+    private static void _assertSame(Block expected, Block actual) {
+        assertEquals(expected.connection(), actual.connection());
+        assertEquals(expected.type(), actual.type());
+        assertEquals(expected.length(), actual.length());
+
+        if(expected.type() == Block.BLOCK_DATA) {
+            assertTrue(actual.extended());
+            assertEquals(expected.sequence(), actual.sequence());
+        }
+        else {
+            assertEquals(expected.control(), actual.control());
+        }
+
+        if(expected.length() > 0) {
+            assertEquals(expected.content(), actual.content());
+        }
+    }
+
+    @Test
+    public void roundTripsBlocks() {
+        Random random = new Random(1);
+        _roundTrip(_blocks(random, 20000, false), 0, random);
+    }
+
+    @Test
+    public void roundTripsBlocksDeflated() {
+        Random random = new Random(2);
+        _roundTrip(_blocks(random, 5000, true), Block.FEATURE_DEFLATE, random);
+    }
+
+    @Test
+    public void waitsForWholeRecord() {
+        CompactEncoder encoder = new CompactEncoder(PooledByteBufAllocator.DEFAULT, 0);
+        CompactDecoder decoder = new CompactDecoder();
+        List<ByteBuf> frames = new ArrayList<>();
+
+        Block block = Block.data(42, 7, Unpooled.wrappedBuffer(new byte[100]));
+        encoder.write(block, frames);
+        encoder.flush(frames);
+
+        ByteBuf wire = frames.get(0);
+        ByteBuf in = Unpooled.buffer();
+        in.writeBytes(wire, wire.readableBytes() - 1);
+
+        assertNull(decoder.decode(in));
+
+        in.writeBytes(wire);
+        Block decoded = decoder.decode(in);
+        _assertSame(block, decoded);
+
+        decoded.release();
+        wire.release();
+        block.release();
+        encoder.close();
+        decoder.close();
+    }
+
+    /**
+     * Wire bytes of one block encoded on its own
+     */
+    private static int _encoded(CompactEncoder encoder, Block block) {
+        List<ByteBuf> frames = new ArrayList<>();
+        encoder.write(block, frames);
+        encoder.flush(frames);
+
+        int bytes = 0;
+        for(ByteBuf frame : frames) {
+            bytes += frame.readableBytes();
+            frame.release();
+        }
+
+        block.release();
+        return bytes;
+    }
+
+    @Test
+    public void sharesDeflateDictionaryWithinConnectionOnly() {
+        CompactEncoder encoder = new CompactEncoder(PooledByteBufAllocator.DEFAULT, Block.FEATURE_DEFLATE);
+        byte[] payload = new byte[1024];
+        new Random(3).nextBytes(payload);
+        for(int idx = 0; idx < payload.length; idx++) {
+            // low entropy so it is deflated, with hardly a repeat within itself
+            payload[idx] = (byte)('a' + (payload[idx] & 0x07));
+        }
+
+        int first = _encoded(encoder, Block.data(1, 0, Unpooled.wrappedBuffer(payload)));
+        int again = _encoded(encoder, Block.data(1, 1, Unpooled.wrappedBuffer(payload)));
+        int other = _encoded(encoder, Block.data(2, 0, Unpooled.wrappedBuffer(payload)));
+
+        encoder.close();
+
+        // the same payload again refers back to the first, another connection's gets nothing of it
+        assertTrue(again * 4 < first);
+        assertTrue(other * 10 > first * 9);
+    }
+}
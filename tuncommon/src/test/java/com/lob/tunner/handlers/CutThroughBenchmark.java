@@ -0,0 +1,105 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Decoding big data blocks with cut-through against waiting for whole frames.
+ *
+ * The stream of extended 64K blocks is fed to the decoder in reads of _READ bytes (a TCP segment or so).
+ * Measured are the bytes read before the first payload byte of a block is passed on, and CPU cost. The
+ * link is simulated, the first byte of a block goes out once those bytes made it over a link of given
+ * bandwidth, at each hop.
+ */
+public class CutThroughBenchmark {
+    private static final int _BLOCK = 64 * 1024 - 64;
+    private static final int _BLOCKS = 2048;
+    private static final int _READ = 1448;
+    private static final double[] _LINKS_MB = { 1, 10, 100 };
+
+    private static ByteBuf _stream() {
+        ByteBuf stream = PooledByteBufAllocator.DEFAULT.heapBuffer();
+        for(int idx = 0; idx < _BLOCKS; idx++) {
+            ByteBuf payload = PooledByteBufAllocator.DEFAULT.buffer(_BLOCK);
+            payload.writerIndex(_BLOCK);
+
+            Block block = Block.data(1, idx, payload).extend();
+            int start = stream.writerIndex();
+            BlockEncoder.encodeHeader(block, stream).writeBytes(block.content(), block.content().readerIndex(), block.length());
+            stream.writeZero(block.frameLength() - (stream.writerIndex() - start));
+            block.release();
+        }
+
+        return stream;
+    }
+
+    /**
+     * @return {bytes read before the first fragment of the first block, blocks and fragments decoded, nanos}
+     */
+    private static long[] _decode(ByteBuf stream, boolean cutThrough) {
+        EmbeddedChannel channel = new EmbeddedChannel(new BlockDecoder(cutThrough));
+        long first = -1;
+        long decoded = 0;
+
+        long start = System.nanoTime();
+        for(int offset = 0; offset < stream.writerIndex(); offset += _READ) {
+            int len = Math.min(_READ, stream.writerIndex() - offset);
+            channel.writeInbound(stream.retainedSlice(offset, len));
+
+            Block block;
+            while((block = channel.readInbound()) != null) {
+                if(first < 0) {
+                    first = offset + len;
+                }
+
+                decoded++;
+                block.release();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        channel.finish();
+        return new long[]{ first, decoded, nanos };
+    }
+
+    private static void _report(String name, long[] result, long bytes) {
+        StringBuilder links = new StringBuilder();
+        for(double link : _LINKS_MB) {
+            links.append(String.format(" %7.2f", result[0] / (link * 1024 * 1024) * 1000));
+        }
+
+        System.out.println(String.format(
+                "%-12s first byte after %6d bytes read, %6d blocks/fragments, %5.2f s/GB, first byte ms on 1/10/100 MB/s links%s",
+                name, result[0], result[1], result[2] / 1e9 / (bytes / (1024.0 * 1024 * 1024)), links
+        ));
+    }
+
+    /**
+     * Testing purpose
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        ByteBuf stream = _stream();
+
+        for(int i = 0; i < 5; i++) {
+            _report("whole", _decode(stream, false), stream.writerIndex());
+            _report("cut-through", _decode(stream, true), stream.writerIndex());
+        }
+
+        stream.release();
+
+        /**
+         * Performance result (JDK 8, x86_64, 1 vCPU, last of 5 rounds):
+         *
+         * whole        first byte after  66608 bytes read,   2048 blocks/fragments,  0.56 s/GB, first byte ms on 1/10/100 MB/s links   63.52    6.35    0.64
+         * cut-through  first byte after   1448 bytes read,  93201 blocks/fragments,  0.61 s/GB, first byte ms on 1/10/100 MB/s links    1.38    0.14    0.01
+         *
+         * A 64K block starts going out after one read rather than the whole frame, some 60 ms earlier per hop
+         * on a 1 MB/s link. Decoding costs about the same, but each fragment is one more write (and flush) to
+         * the destination socket, about one per read here, which is not measured.
+         */
+    }
+}
@@ -0,0 +1,175 @@
+package com.lob.tunner.handlers;
+
+import com.lob.tunner.common.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compact framing with FEATURE_DEFLATE against without, for JSON over HTTP and for random bytes (what TLS
+ * looks like).
+ *
+ * _CONNECTIONS connections take turns to send 4K blocks cut from their own stream, so the deflate stream starts
+ * over at every block. CPU cost is measured, encoding and decoding every block. The link is simulated, a
+ * transfer over a link of given bandwidth is bounded by the wire bytes over the bandwidth, and by the CPU time
+ * of both ends (taken as one core each, run in sequence here).
+ */
+public class DeflateBenchmark {
+    private static final int _CONNECTIONS = 4;
+    private static final int _BLOCK = 4096;
+    private static final int _BYTES = 64 * 1024 * 1024;
+    private static final double[] _LINKS_MB = { 1, 10, 100 };
+
+    private static final String[] _NAMES = { "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi" };
+    private static final String[] _STATES = { "active", "pending", "suspended", "closed" };
+
+    /**
+     * HTTP responses of JSON arrays, values random so it's not just one record repeated
+     */
+    private static byte[] _json(Random random, int bytes) {
+        StringBuilder sb = new StringBuilder(bytes + 4096);
+        while(sb.length() < bytes) {
+            StringBuilder body = new StringBuilder("[");
+            int records = 10 + random.nextInt(40);
+            for(int idx = 0; idx < records; idx++) {
+                String name = _NAMES[random.nextInt(_NAMES.length)];
+                body.append(idx == 0 ? "" : ",")
+                        .append("{\"id\":").append(random.nextInt(1000000))
+                        .append(",\"user\":\"").append(name).append(random.nextInt(1000))
+                        .append("\",\"email\":\"").append(name).append('.').append(random.nextInt(100)).append("@example.com\"")
+                        .append(",\"state\":\"").append(_STATES[random.nextInt(_STATES.length)])
+                        .append("\",\"balance\":").append(random.nextInt(100000) / 100.0)
+                        .append(",\"updated\":\"2019-0").append(1 + random.nextInt(9)).append("-1").append(random.nextInt(10))
+                        .append("T").append(10 + random.nextInt(14)).append(":").append(10 + random.nextInt(50)).append(":00Z\"}");
+            }
+            body.append("]");
+
+            sb.append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: application/json; charset=utf-8\r\n")
+                    .append("Cache-Control: no-cache\r\n")
+                    .append("Content-Length: ").append(body.length()).append("\r\n\r\n")
+                    .append(body);
+        }
+
+        return sb.substring(0, bytes).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] _random(Random random, int bytes) {
+        byte[] data = new byte[bytes];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static ArrayList<Block> _blocks(byte[] data) {
+        ArrayList<Block> blocks = new ArrayList<>();
+        int share = data.length / _CONNECTIONS;
+
+        for(int offset = 0; offset < share; offset += _BLOCK) {
+            for(int conn = 0; conn < _CONNECTIONS; conn++) {
+                int len = Math.min(_BLOCK, share - offset);
+                blocks.add(Block.data(conn + 1, offset / _BLOCK, Unpooled.wrappedBuffer(data, conn * share + offset, len)));
+            }
+        }
+
+        return blocks;
+    }
+
+    /**
+     * @return {wire bytes, encode nanos, decode nanos}
+     */
+    private static long[] _run(ArrayList<Block> blocks, int features) {
+        CompactEncoder encoder = new CompactEncoder(PooledByteBufAllocator.DEFAULT, features);
+        CompactDecoder decoder = new CompactDecoder();
+        ArrayList<ByteBuf> frames = new ArrayList<>();
+        ByteBuf wire = PooledByteBufAllocator.DEFAULT.heapBuffer(_BLOCK * 4);
+
+        long bytes = 0;
+        long encoding = 0;
+        long decoding = 0;
+
+        for(Block block : blocks) {
+            long start = System.nanoTime();
+            encoder.write(block, frames);
+            encoder.flush(frames);
+            for(ByteBuf frame : frames) {
+                wire.writeBytes(frame);
+                frame.release();
+            }
+            frames.clear();
+            encoding += System.nanoTime() - start;
+
+            bytes += wire.readableBytes();
+
+            start = System.nanoTime();
+            Block decoded = decoder.decode(wire);
+            decoding += System.nanoTime() - start;
+
+            if(decoded == null || decoded.length() != block.length() || wire.isReadable()) {
+                throw new IllegalStateException("Block not decoded as encoded");
+            }
+
+            decoded.release();
+            wire.clear();
+        }
+
+        encoder.close();
+        decoder.close();
+        wire.release();
+
+        return new long[]{ bytes, encoding, decoding };
+    }
+
+    private static void _report(String data, String name, long[] result) {
+        double secs = (result[1] + result[2]) / 1e9;
+        double gb = _BYTES / (1024.0 * 1024 * 1024);
+
+        StringBuilder links = new StringBuilder();
+        for(double link : _LINKS_MB) {
+            // one end or the other, or the link, is the bottleneck
+            double seconds = Math.max(result[0] / (link * 1024 * 1024), Math.max(result[1], result[2]) / 1e9);
+            links.append(String.format(" %7.1f", _BYTES / seconds / (1024 * 1024)));
+        }
+
+        System.out.println(String.format(
+                "%-6s %-8s ratio %5.3f, CPU %5.2f s/GB (encode %5.2f, decode %5.2f), MB/s on 1/10/100 MB/s links%s",
+                data, name, result[0] / (double)_BYTES, secs / gb, result[1] / 1e9 / gb, result[2] / 1e9 / gb, links
+        ));
+    }
+
+    /**
+     * Testing purpose
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        byte[][] data = { _json(random, _BYTES), _random(random, _BYTES) };
+        String[] names = { "json", "random" };
+
+        for(int i = 0; i < 3; i++) {
+            for(int idx = 0; idx < data.length; idx++) {
+                ArrayList<Block> blocks = _blocks(data[idx]);
+                _report(names[idx], "raw", _run(blocks, 0));
+                _report(names[idx], "deflate", _run(blocks, Block.FEATURE_DEFLATE));
+            }
+        }
+
+        /**
+         * Performance result (JDK 8, x86_64, 1 vCPU, last of 3 rounds):
+         *
+         * json   raw      ratio 1.001, CPU  0.50 s/GB (encode  0.46, decode  0.04), MB/s on 1/10/100 MB/s links     1.0    10.0    99.9
+         * json   deflate  ratio 0.282, CPU 29.22 s/GB (encode 20.78, decode  8.44), MB/s on 1/10/100 MB/s links     3.5    35.5    49.3
+         * random raw      ratio 1.001, CPU  0.40 s/GB (encode  0.36, decode  0.04), MB/s on 1/10/100 MB/s links     1.0    10.0    99.9
+         * random deflate  ratio 1.001, CPU  0.93 s/GB (encode  0.88, decode  0.04), MB/s on 1/10/100 MB/s links     1.0    10.0    99.9
+         *
+         * JSON goes about 3.5 times faster on links up to ~50 MB/s, beyond that deflating at the sending end is
+         * the bottleneck. Connections taking turns block by block is the worst case for the deflate stream starting
+         * over on each connection change (ratio 0.233 with the dictionary shared). Random bytes are never deflated,
+         * sampling them costs about 0.5 s/GB.
+         */
+    }
+}
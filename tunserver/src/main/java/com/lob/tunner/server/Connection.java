@@ -1,47 +1,96 @@
 package com.lob.tunner.server;
 
 import com.lob.tunner.BlockUtils;
-import com.lob.tunner.BufferUtils;
-import com.lob.tunner.OOOException;
+import com.lob.tunner.Timeoutable;
 import com.lob.tunner.common.Block;
+import com.lob.tunner.common.Config;
+import com.lob.tunner.common.EventLoops;
+import com.lob.tunner.common.FlowControl;
+import com.lob.tunner.common.ReorderBuffer;
+import com.lob.tunner.common.ReplayBuffer;
+import com.lob.tunner.common.Segmenter;
+import com.lob.tunner.handlers.DataForwardHandler;
+import com.lob.tunner.handlers.InboundDataHandler;
 import com.lob.tunner.logger.AutoLog;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 
-public class Connection {
+public class Connection extends Timeoutable {
     private final int _id;
     private volatile Tunnel _tunnel;
+
+    /**
+     * Other tunnels the connection is striped over by client, replaced as a whole when changed. Data blocks
+     * go on whichever of them and _tunnel has the fewest bytes queued
+     */
+    private static final Tunnel[] _NO_STRIPES = new Tunnel[0];
+    private volatile Tunnel[] _stripes = _NO_STRIPES;
+
+    /**
+     * Where to start looking for the next stripe, only used in _loop
+     */
+    private int _nextStripe = 0;
     private volatile SocketChannel _channel;
 
-    private short _reqSeq = 0;
-    private short _resSeq = 0;
+    /**
+     * Event loop of the tunnel the connection started on, the proxy channel is registered on it. The
+     * connection stays on it even if moved to another tunnel
+     */
+    private volatile EventLoop _loop = null;
+
+    private int _resSeq = 0;
 
-    private long _lastWrite = System.currentTimeMillis();
-    private long _lastRead = System.currentTimeMillis();
+    /**
+     * Sequence after the last data block sent to tunnel
+     */
+    private volatile int _sent = 0;
+
+    /**
+     * Aborted by client, close once blocks up to this sequence are written, -1 if not aborted. Only used in _loop
+     */
+    private int _abortAt = -1;
+
+    /**
+     * Only used in _loop
+     */
+    private final ReorderBuffer _reorder = new ReorderBuffer();
 
     private boolean _connected = false;
     private final LinkedList<Block> _blocks = new LinkedList<>();
 
-    public Connection(int id) {
-        _id = id;
-    }
+    /**
+     * Only used in _loop
+     */
+    private final FlowControl _flow = new FlowControl(Config.getWindow());
+    private final ReplayBuffer _replay = new ReplayBuffer();
 
-    public long lastRead() {
-        return _lastRead;
+    /**
+     * Client takes FEATURE_RESUME, so data is kept to replay. Only used in _loop
+     */
+    private boolean _resumable = false;
+    private final Segmenter.Sender _sender = new Segmenter.Sender();
+
+    private int _weight = 1;
+
+    /**
+     * @param id
+     * @param weight - scheduling weight requested by client
+     */
+    public Connection(int id, int weight) {
+        _id = id;
+        _weight = weight;
     }
 
-    public long lastWrite() {
-        return _lastWrite;
+    public final int weight() {
+        return _weight;
     }
 
     public final int identifier() {
@@ -56,25 +105,139 @@ public class Connection {
         return _tunnel;
     }
 
+    /**
+     * Set the tunnel to respond on, the first one also sets the event loop of the connection
+     * @param tunnel
+     */
     public final void tunnel(Tunnel tunnel) {
+        if(_loop == null) {
+            _loop = tunnel.channel().eventLoop();
+        }
+
         _tunnel = tunnel;
     }
 
+    /**
+     * Striped over one more tunnel
+     * @param tunnel
+     */
+    public synchronized void stripe(Tunnel tunnel) {
+        Tunnel[] stripes = Arrays.copyOf(_stripes, _stripes.length + 1);
+        stripes[stripes.length - 1] = tunnel;
+
+        tunnel.stripe(this);
+        _stripes = stripes;
+    }
+
+    /**
+     * Back to _tunnel only
+     */
+    public synchronized void unstripe() {
+        for(Tunnel tunnel : _stripes) {
+            if(tunnel != _tunnel) {
+                tunnel.remove(this);
+            }
+        }
+
+        _stripes = _NO_STRIPES;
+    }
+
+    public final EventLoop eventLoop() {
+        return _loop;
+    }
+
+    /**
+     * Sequence after the last data block sent
+     * @return
+     */
+    public final int sent() {
+        return _sent;
+    }
+
     public final SocketChannel channel() {
         return _channel;
     }
 
+    /**
+     * Once started on the tunnel, keep what we send to replay if client takes FEATURE_RESUME. Limit it by credit
+     * if client takes FEATURE_CREDIT, and grant it our window even if not larger than the initial one, so client
+     * limits what it sends without waiting for its CODE_HELLO answer. Clients not knowing CODE_CREDIT get none
+     * and are never limited
+     */
+    public void start() {
+        _resumable = _tunnel.resumable();
+
+        if(!_tunnel.credited()) {
+            return;
+        }
+
+        _flow.limit();
+        _tunnel.write(Block.credit(_id, _flow.grant(_flow.initialGrant()), -1));
+    }
+
+    /**
+     * Moved to the tunnel set already after the one we were on failed at client side, send again what client
+     * hasn't received and the credit we granted. Could be called from any thread
+     * @param next - sequence after the last data block client received
+     */
+    public void resumed(int next) {
+        if(!_loop.inEventLoop()) {
+            _loop.execute(() -> resumed(next));
+            return;
+        }
+
+        _replay.ack(next);
+
+        AutoLog.INFO.log(
+                "Resuming connection %08x on tunnel %08x, replaying %d blocks (%d bytes)",
+                _id, _tunnel.identifier(), _replay.size(), _replay.bytes()
+        );
+
+        _replay.replay(_tunnel::write);
+        _tunnel.write(Block.credit(_id, _flow.grant(0), _reorder.next()));
+    }
+
+    /**
+     * Credit granted by client, and blocks it has acknowledged. Could come on any tunnel
+     * @param granted - in total
+     * @param ack - sequence after the last block client has, -1 if none
+     */
+    public void credit(int granted, int ack) {
+        if(!_loop.inEventLoop()) {
+            _loop.execute(() -> credit(granted, ack));
+            return;
+        }
+
+        if(ack >= 0) {
+            _replay.ack(ack);
+        }
+
+        if(_flow.credit(granted, this::_send) && _connected) {
+            _channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Connect to proxy, the channel is registered on the event loop of the tunnel (which must be set before),
+     * so data of this connection never crosses threads
+     * @param address
+     * @param port
+     */
     public void connect(String address, int port) {
         AutoLog.DEBUG.log("Connection %08x try connecting to proxy %s:%d ...", _id, address, port);
         // create a connection ...
         Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(TunnelManager.CONNWORKERS)
-                .channel(NioSocketChannel.class)
+        bootstrap.group(_loop)
+                .channel(EventLoops.socketChannel())
                 .option(ChannelOption.TCP_NODELAY, true)
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(io.netty.channel.socket.SocketChannel ch) throws Exception {
                         _channel = ch;
+                        if(Config.getAggregate() > 0) {
+                            ch.pipeline().addLast(new InboundDataHandler(Config.getAggregate(), Config.getAggregateDelay()));
+                        }
+
                         ch.pipeline().addLast(new IOHandler());
                     }
                 });
@@ -93,7 +256,7 @@ public class Connection {
                     _connected = true;
                 }
 
-                _channel.config().setAutoRead(true);
+                _channel.config().setAutoRead(!_flow.blocked());
             }
             else {
                 AutoLog.ERROR.log("Connection %08x failed to connect proxy!", _id);
@@ -102,16 +265,33 @@ public class Connection {
         });
     }
 
+    @Override
     public void timeout(long now) {
         AutoLog.WARN.log(
                 "Timing out connection %08x (lastRead=%d secs, lastWrite=%d secs)",
-                _id, (now - _lastRead) / 1000, (now - _lastWrite) / 1000
+                _id, (now - lastRead()) / 1000, (now - lastWrite()) / 1000
         );
 
         TunnelManager.getInstance().close(this);
     }
 
     public void shutdown() {
+        disarm();
+
+        if(_loop.inEventLoop()) {
+            _drop();
+        }
+        else {
+            _loop.execute(this::_drop);
+        }
+
+        synchronized (_blocks) {
+            // drop blocks never written out
+            while(_blocks.size() > 0) {
+                _blocks.remove().release();
+            }
+        }
+
         try {
             _channel.close();
         }
@@ -120,18 +300,91 @@ public class Connection {
         }
     }
 
+    private void _drop() {
+        _flow.drop();
+        _reorder.drop();
+        _replay.drop();
+    }
+
     /**
-     * Write data ....
+     * Write data .... could come on any tunnel, blocks are put back in sequence on our event loop. Blocks
+     * received already (replayed by client after a tunnel failed) are dropped
      * @param block
      */
     public void write(Block block) {
+        if(!_loop.inEventLoop()) {
+            _loop.execute(() -> write(block));
+            return;
+        }
+
+        if(!_reorder.add(block, this::_deliver)) {
+            AutoLog.DEBUG.log("Connection %08x dropping duplicate block (seq=%d)", _id, block.sequence());
+        }
+
+        if(_abortAt >= 0 && _reorder.next() == _abortAt) {
+            TunnelManager.getInstance().aborted(this);
+        }
+    }
+
+    /**
+     * Aborted by client, close once all blocks it sent are written to proxy. Could be called from any thread
+     * @param last - sequence after the last data block sent by client, -1 if not known
+     */
+    public void aborted(int last) {
+        if(!_loop.inEventLoop()) {
+            _loop.execute(() -> aborted(last));
+            return;
+        }
+
+        if(last < 0 || _reorder.next() == last) {
+            TunnelManager.getInstance().aborted(this);
+        }
+        else {
+            AutoLog.INFO.log("Connection %08x aborted, waiting for blocks up to %d (next=%d)", _id, last, _reorder.next());
+            _abortAt = last;
+        }
+    }
+
+    /**
+     * Send a data block, kept until client acknowledges it if it could be resumed
+     * @param block
+     */
+    private void _send(Block block) {
+        _stripe().write(_resumable ? _replay.sent(block) : block);
+        _sent = block.sequence() + 1;
+    }
+
+    /**
+     * Tunnel to send the next data block on, the one with the fewest bytes queued, in turns if even
+     * @return
+     */
+    private Tunnel _stripe() {
+        Tunnel[] stripes = _stripes;
+        if(stripes.length == 0) {
+            return _tunnel;
+        }
+
+        int count = stripes.length + 1;
+        int start = _nextStripe % count;
+        _nextStripe = start + 1;
+        Tunnel best = null;
+        for(int idx = 0; idx < count; idx++) {
+            int pos = (start + idx) % count;
+            Tunnel tunnel = pos == stripes.length ? _tunnel : stripes[pos];
+            if(!tunnel.isClosed() && (best == null || tunnel.pending() < best.pending())) {
+                best = tunnel;
+            }
+        }
+
+        return best == null ? _tunnel : best;
+    }
+
+    private void _deliver(Block block) {
         synchronized (_blocks) {
             if(!_connected) {
                 AutoLog.INFO.log("Connection %08x not started yet. Caching block ...", _id);
-                // not ready!!! Let's wait
-                synchronized (_blocks) {
-                    _blocks.add(new Block(block));
-                }
+                // not ready!!! Let's wait, the block is owned by us so no need to copy
+                _blocks.add(block);
 
                 return;
             }
@@ -150,17 +403,27 @@ public class Connection {
         _write(block);
     }
 
+    /**
+     * Write a block in sequence to proxy
+     * @param block
+     */
     private void _write(Block block) {
-        short seq = block.sequence();
-        if(seq != _reqSeq) {
-            throw new OOOException(_reqSeq, seq);
+        AutoLog.INFO.log("Connection %08x write %d bytes (seq=%d) to proxy server", _id, block.length(), block.sequence());
+
+        if(block.content() != null) {
+            // ownership of the payload goes to netty, it will be released once written out
+            int length = block.length();
+            _channel.writeAndFlush(block.content()).addListener(f -> {
+                // credit client back once drained to proxy
+                if(f.isSuccess() && _flow.limited()) {
+                    int grant = _flow.drained(length);
+                    if(grant > 0) {
+                        _tunnel.write(Block.credit(_id, _flow.grant(grant), _reorder.next()));
+                    }
+                }
+            });
         }
 
-        AutoLog.INFO.log("Connection %08x write %d bytes (seq=%d) to proxy server", _id, block.length(), _reqSeq);
-
-        ByteBuffer data = block.data();
-        ChannelFuture future = _channel.writeAndFlush(BufferUtils.fromNioBuffer(data));
-
         /*
         future.addListener(future1 -> {
             if (future1.isSuccess()) {
@@ -171,12 +434,10 @@ public class Connection {
             }
         });
         */
-        _reqSeq = BlockUtils.nextSeqence(seq);
-
-        _lastWrite = System.currentTimeMillis();
+        updateWrite();
     }
 
-    class IOHandler extends ChannelInboundHandlerAdapter {
+    class IOHandler extends DataForwardHandler {
         /**
          * Read something on channel, let's write to server ...
          * @param localCtx
@@ -199,47 +460,28 @@ public class Connection {
             _tunnel.write(new Block(_id, BlockUtils.sequence(_resSeq ++), (short)len, BufferUtils.toNioBuffer(buf)));
             */
 
-            //
-            // Create a block from the buffer and send it to tunnel
-            int bytes = buf.readableBytes();
-
-            AutoLog.INFO.log("Connection %08x read %d bytes (seq=%d) from proxy ...", _id, bytes, _resSeq);
-
-            for(;;) {
-                // we need to split to smaller packets!!! Unlucky!!!!
-                if(bytes > Block.MAX_LENGTH) {
-                    ByteBuffer data = ByteBuffer.allocate(Block.MAX_NO_PADDING_LENGTH);
-                    buf.readBytes(data);
-                    data.rewind();
-
-                    Block block = new Block(
-                            _id, BlockUtils.sequence(_resSeq),
-                            Block.MAX_NO_PADDING_LENGTH, data
-                    );
+            AutoLog.INFO.log("Connection %08x read %d bytes (seq=%d) from proxy ...", _id, buf.readableBytes(), _resSeq);
 
-                    _tunnel.write(block);
+            // blocks on retained slices of the buffer sent to tunnel, no copy here
+            super.channelRead(localCtx, msg);
 
-                    bytes -= Block.MAX_NO_PADDING_LENGTH;
-                    _resSeq = BlockUtils.nextSeqence(_resSeq);
-
-                    AutoLog.DEBUG.log("########Left %d bytes (readable=%d) and next seq=%d ...", bytes, buf.readableBytes(), _resSeq);
-                    continue;
-                }
+            updateRead();
+        }
 
-                Block block = new Block(
-                        _id, BlockUtils.sequence(_resSeq),
-                        bytes, BufferUtils.toNioBuffer(buf)
-                );
+        @Override
+        protected int segment() {
+            return _tunnel.segmenter().segment(_sender);
+        }
 
-                _tunnel.write(block);
-                _resSeq = BlockUtils.nextSeqence(_resSeq);
+        @Override
+        protected void forward(ByteBuf data) {
+            Block block = Block.data(_id, _resSeq, data);
 
-                break;
+            // stop reading from proxy once out of credit, the rest is queued until client grants more
+            if(!_flow.send(block, Connection.this::_send)) {
+                _channel.config().setAutoRead(false);
             }
-
-            _lastRead = System.currentTimeMillis();
-
-            ReferenceCountUtil.release(msg);
+            _resSeq++;
         }
 
         @Override
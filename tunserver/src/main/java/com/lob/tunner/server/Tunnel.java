@@ -1,208 +1,171 @@
 package com.lob.tunner.server;
 
 import com.lob.tunner.BlockUtils;
-import com.lob.tunner.BufferUtils;
 import com.lob.tunner.common.Block;
+import com.lob.tunner.common.ConcurrentIntMap;
+import com.lob.tunner.common.Segmenter;
+import com.lob.tunner.handlers.BlockWriter;
 import com.lob.tunner.logger.AutoLog;
-import com.lob.tunner.logger.HexDump;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.PooledByteBufAllocator;
-import io.netty.buffer.Unpooled;
-import io.netty.buffer.UnpooledHeapByteBuf;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.socket.SocketChannel;
 
-import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Tunnel has two FSMs
- * 1. the request block FSM
- *    1.1. Reading block header
- *    1.2. Reading block payload
- *    1.3. Processing block
+ * Tunnel multiplexes connections on one channel from tunnel client.
  *
- * 2. the response block FSM, simply write out data ....
+ * Framing is done by BlockDecoder / BlockEncoder in the channel pipeline, so the tunnel
+ * 1. dispatches each decoded block to its connection (or handles it as control block)
+ * 2. queues blocks to BlockWriter, which writes them out in batches on the tunnel's event loop, connections
+ *    sharing the tunnel by their weights
  */
 public class Tunnel {
     private static final AtomicInteger _COUNTER = new AtomicInteger();
 
-    private ByteBuffer _data = ByteBuffer.allocate(1024); // 1K for initial size
-    private final ByteBuffer _padding = ByteBuffer.allocate(8);
-    private final ByteBuffer _header = ByteBuffer.allocate(8);
-    private final ByteBuffer _headerOut = ByteBuffer.allocate(8);
+    private final ConcurrentIntMap<Connection> _connections = new ConcurrentIntMap<>();
 
-    private static final int _RS_HEADER = 1;
-    private static final int _RS_PAYLOAD = 2;
-    private static final int _RS_PADDING = 3;
+    private final SocketChannel _channel;
+    private final BlockWriter _writer;
+
+    /**
+     * Packet of the link is not known here (sshd forwards it), the default is taken
+     */
+    private final Segmenter _segmenter = new Segmenter(Block.MAX_LENGTH);
+    private final int _id;
 
-    private final ConcurrentHashMap<Integer, Connection> _connections = new ConcurrentHashMap<>();
+    /**
+     * Features we take of those offered by client with CODE_HELLO
+     */
+    private static final int _FEATURES = Block.FEATURE_SEQ32 | Block.FEATURE_COMPACT | Block.FEATURE_DEFLATE
+            | Block.FEATURE_CREDIT | Block.FEATURE_RESUME;
 
-    private int _readState = _RS_HEADER;
+    /**
+     * Data blocks sent as BLOCK_EXTENDED, once client offered it
+     */
+    private volatile boolean _extended = false;
+
+    /**
+     * Client grants credit and takes ours, once client offered it
+     */
+    private volatile boolean _credited = false;
+
+    /**
+     * Client moves connections between tunnels, once client offered it
+     */
+    private volatile boolean _resumable = false;
 
-    private final SocketChannel _channel;
-    private final int _id;
     public Tunnel(SocketChannel channel) {
         // _id = (int)((System.currentTimeMillis() / 1000) * 1000) + _COUNTER.incrementAndGet() % 1000;
         _id = _COUNTER.incrementAndGet();
         _channel = channel;
+        _writer = new BlockWriter(channel, this::_weight);
     }
 
     public final int identifier() {
         return _id;
     }
 
-    public final SocketChannel channel() {
-        return _channel;
-    }
-
     /**
-     * Read data into buffer. Return true if need more data
-     * @param data
-     * @param buffer
+     * Length of data blocks cut from proxy reads by connections on the tunnel
      * @return
      */
-    private boolean _read(ByteBuf data, ByteBuffer buffer) {
-        // data.readBytes(buffer);
-        while (buffer.hasRemaining() && data.isReadable()) {
-            buffer.put(data.readByte());
-        }
+    public Segmenter segmenter() {
+        return _segmenter;
+    }
 
-        return buffer.hasRemaining();
+    private int _weight(int connId) {
+        Connection conn = _connections.get(connId);
+        return conn == null ? 1 : conn.weight();
     }
 
-    public void read(ByteBuf data) {
-        while(data.isReadable()) {
-            if (_readState == _RS_HEADER) {
-                if( _read(data, _header)) {
-                    return; // wait more data!!!
-                }
-
-                _header.rewind();
-                short typeSeq = _header.getShort();
-                int len = (_header.getShort() & 0x0FFFF);
-                int conn = _header.getInt();
-
-                AutoLog.DEBUG.log(
-                        "Read header (typeSeq=%04x, len=%d, conn=%08x) - %s",
-                        typeSeq, len, conn,
-                        HexDump.dumpHexString(_header.array())
-                );
-
-                if (len > 0) {
-                    while(len > _data.capacity()) {
-                        _data = ByteBuffer.allocate(_data.capacity() << 1);
-                    }
-
-                    _data.rewind();
-                    _data.limit(len);
-
-                    _readState = _RS_PAYLOAD;
-                }
-                else {
-                    _handleBlock();
-                    _readState = _RS_HEADER;
-                }
-            }
-            else if(_readState == _RS_PAYLOAD) {
-                if(_read(data, _data)) {
-                    return; // wait more data
-                }
-
-                AutoLog.DEBUG.log("Read data - %s", HexDump.dumpHexString(_data.array(), 0, _data.limit()));
-                int len = _data.limit();
-                int padding = len % 8;
-                if(padding > 0) {
-                    _padding.rewind();
-                    _padding.limit(8 - padding);
-
-                    _readState = _RS_PADDING;
-                }
-                else {
-                    _handleBlock();
-                    _readState = _RS_HEADER;
-                }
-            }
-            else if(_readState == _RS_PADDING) {
-                if(_read(data, _padding)) {
-                    return; // wait more data
-                }
-
-                AutoLog.DEBUG.log("Read padding - %s", HexDump.dumpHexString(_padding.array(), 0, _padding.limit()));
-                _handleBlock();
-                _readState = _RS_HEADER;
-            }
+    /**
+     * Client offered features with CODE_HELLO, answer with those we take and use them from now on
+     * @param features
+     */
+    public void hello(int features) {
+        int taken = features & _FEATURES;
+        if((taken & Block.FEATURE_COMPACT) == 0) {
+            // only flagged in the compact framing
+            taken &= ~Block.FEATURE_DEFLATE;
         }
-    }
 
-    public synchronized void write(Block block) {
-        if(block.type() == Block.BLOCK_DATA) {
-            AutoLog.INFO.log(
-                    "Write data block (seq=%d, length=%d) back to connection %08x on tunnel %08x ...",
-                    block.sequence(), block.length(), block.connection(), _id
-            );
+        AutoLog.INFO.log("Tunnel %08x offered features %d, taking %d", _id, features, taken);
 
-            TunnelManager.TotalWrite.addAndGet(block.length());
+        write(Block.hello(taken));
+        _extended = (taken & Block.FEATURE_SEQ32) != 0;
+        _credited = (taken & Block.FEATURE_CREDIT) != 0;
+        _resumable = (taken & Block.FEATURE_RESUME) != 0;
+
+        if((taken & Block.FEATURE_COMPACT) != 0) {
+            // BlockWriter switches its encoder right after writing it, client does the same on its own
+            write(Block.framing(Block.FRAMING_COMPACT, taken & Block.FEATURE_DEFLATE));
         }
+    }
 
-        // we a block is here, let's just written it out!
-        int length = block.length();
+    /**
+     * Client takes FEATURE_CREDIT, CODE_HELLO always comes before any connection is started on the tunnel
+     * @return
+     */
+    public boolean credited() {
+        return _credited;
+    }
 
-        // boolean tracing = (length == Block.MAX_NO_PADDING_LENGTH);
-        boolean tracing = false;
+    /**
+     * Client takes FEATURE_RESUME, so it acknowledges data for us to replay
+     * @return
+     */
+    public boolean resumable() {
+        return _resumable;
+    }
 
-        AutoLog.DEBUG.log("Writing a block (seq=%d) of %d bytes ...", block.sequence(), length);
+    /**
+     * Tunnel channel writable again
+     */
+    public void writable() {
+        _writer.writable();
+    }
 
-        // 1. write header on channel
-        _headerOut.clear();
-        _headerOut.putShort(block.getTypeSeq());
-        _headerOut.putShort((short)(length & 0xFFFF));
-        _headerOut.putInt(block.connection());
+    /**
+     * Connections multiplexed on this tunnel
+     * @return
+     */
+    public int connections() {
+        return _connections.size();
+    }
 
-        if(tracing) {
-            AutoLog.INFO.log("Write header - %s", HexDump.dumpHexString(_headerOut.array()));
-        }
-        else {
-            AutoLog.DEBUG.log("Write header - %s", HexDump.dumpHexString(_headerOut.array()));
-        }
+    /**
+     * Bytes queued to write back to client, not yet written to the channel
+     * @return
+     */
+    public long pending() {
+        return _writer.pending();
+    }
 
-        _headerOut.rewind();
-        _channel.write(BufferUtils.fromNioBuffer(_headerOut));
+    public final SocketChannel channel() {
+        return _channel;
+    }
 
-        // 2. if payload, write payload
-        if(length > 0) {
-            ByteBuffer data = block.data();
-            // _channel.write(BufferUtils.fromNioBuffer(data));
-            ChannelFuture future = _channel.write(Unpooled.wrappedBuffer(data));
+    /**
+     * Write a block back to client, could be called from any thread. The block is queued and written out
+     * on the tunnel's event loop
+     * @param block
+     */
+    public void write(Block block) {
+        if(block.type() == Block.BLOCK_DATA) {
+            AutoLog.INFO.log(
+                    "Write data block (seq=%d, length=%d) back to connection %08x on tunnel %08x ...",
+                    block.sequence(), block.length(), block.connection(), _id
+            );
 
-            if(tracing) {
-                AutoLog.INFO.log("Write data - %s", HexDump.dumpHexString(data.array()));
-                future.addListener(f -> {
-                    AutoLog.INFO.log("########Writing block (seq=%d) done with result %s", block.sequence(), f.isSuccess());
-                });
-            }
-            else {
-                AutoLog.DEBUG.log("Write data - %s", HexDump.dumpHexString(data.array()));
-            }
+            TunnelManager.TotalWrite.addAndGet(block.length());
 
-            // 3. if payload and payload size not multiple of 8, write padding bytes
-            length %= 8;
-            if(length > 0) {
-                int padding = 8 - length;
-                _channel.write(Unpooled.wrappedBuffer(BlockUtils.PADDING, 0, padding));
-
-                if(tracing) {
-                    AutoLog.INFO.log("Write padding - %s", HexDump.dumpHexString(BlockUtils.PADDING, 0, padding));
-                }
-                else {
-                    AutoLog.DEBUG.log("Write padding - %s", HexDump.dumpHexString(BlockUtils.PADDING, 0, padding));
-                }
+            if(_extended) {
+                block = block.extend();
             }
         }
 
-        _channel.flush();
+        AutoLog.DEBUG.log("Writing a block (seq=%d) of %d bytes ...", block.sequence(), block.length());
+
+        _writer.write(block);
     }
 
     /**
@@ -221,20 +184,39 @@ public class Tunnel {
         }
     }
 
+    /**
+     * Take blocks of a connection striped over this tunnel too, the connection still responds on its own
+     * tunnel unless it picks this one for a block
+     * @param conn
+     */
+    public void stripe(Connection conn) {
+        _connections.put(conn.identifier(), conn);
+    }
+
+    public boolean isClosed() {
+        return _writer.isClosed();
+    }
+
     public void remove(Connection conn) {
         _connections.remove(conn.identifier());
     }
 
     /**
      * Shutdown tunnel
-     * If there's any connection on it, those connection will also be shutdown
+     * If client takes FEATURE_RESUME, connections on it are kept, client resumes them on another tunnel
+     * (CODE_RESUME). What they send in the meantime is dropped by the closed writer and replayed once resumed,
+     * those never resumed time out idle. Otherwise those connections will also be shutdown
      */
     public void shutdown() {
-        for (Connection conn : _connections.values()) {
-            conn.shutdown();
+        if(!_resumable) {
+            _connections.forEach(Connection::shutdown);
+        }
+        else if(!_connections.isEmpty()) {
+            AutoLog.INFO.log("Tunnel %08x closed, %d connections waiting to be resumed", _id, _connections.size());
         }
 
         _connections.clear();
+        _writer.close();
 
         try {
             _channel.close();
@@ -244,23 +226,12 @@ public class Tunnel {
         }
     }
 
-    private void _handleBlock() {
-        _header.rewind();
-        short typeSeq = _header.getShort();
-        int len = (_header.getShort() & 0x0FFFF);
-        int connId = _header.getInt();
-
-        // prepare for next block!!!!
-        _header.clear();
-
-        Block block;
-        if(len == 0) {
-            block = new Block(connId, typeSeq);
-        }
-        else {
-            _data.rewind();
-            block = new Block(connId, typeSeq, len, _data);
-        }
+    /**
+     * Handle one block decoded from tunnel, the block is owned by the tunnel from now on
+     * @param block
+     */
+    public void handle(Block block) {
+        int connId = block.connection();
 
         if (block.type() == Block.BLOCK_DATA) {
             AutoLog.INFO.log(
@@ -270,9 +241,15 @@ public class Tunnel {
 
             TunnelManager.TotalRead.addAndGet(block.length());
 
-            final Connection conn = _connections.get(connId);
+            Connection conn = _connections.get(connId);
+            if(conn == null) {
+                // moved to another tunnel, still taking what was sent here before
+                conn = TunnelManager.getInstance().connection(connId);
+            }
+
             if(conn == null) {
                 AutoLog.ERROR.log("Receive block for non-existing connection %08x", connId);
+                block.release();
                 write(new Block(connId, BlockUtils.control(Block.CODE_ABORT)));
             }
             else {
@@ -280,7 +257,12 @@ public class Tunnel {
             }
         }
         else {
-            TunnelManager.getInstance().handleControlBlock(this, block.connection(), block.control(), block.data());
+            try {
+                TunnelManager.getInstance().handleControlBlock(this, block.connection(), block.control(), block.data());
+            }
+            finally {
+                block.release();
+            }
         }
     }
 }
@@ -44,7 +44,9 @@ public class TunnelHandler extends ChannelInboundHandlerAdapter {
         boolean canWrite = ctx.channel().isWritable();
         AutoLog.WARN.log(ctx.channel() + " 可写性：" + canWrite);
 
-        _tunnel.channel().config().setAutoRead(canWrite);
+        if(canWrite) {
+            _tunnel.writable();
+        }
         super.channelWritabilityChanged(ctx);
     }
 
@@ -57,13 +59,13 @@ public class TunnelHandler extends ChannelInboundHandlerAdapter {
      */
     @Override
     public void channelRead(ChannelHandlerContext localCtx, Object msg) throws Exception {
-        ByteBuf buf = (ByteBuf)msg;
-
-        // AutoLog.INFO.log("Read %d bytes from client ...", buf.readableBytes());
-        // _tunnel.read(BufferUtils.toNioBuffer(buf));
-        _tunnel.read(buf);
-
-        ReferenceCountUtil.release(msg);
+        if(msg instanceof Block) {
+            // decoded by BlockDecoder
+            _tunnel.handle((Block)msg);
+        }
+        else {
+            ReferenceCountUtil.release(msg);
+        }
     }
 
     @Override
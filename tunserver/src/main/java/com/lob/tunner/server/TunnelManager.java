@@ -2,15 +2,13 @@ package com.lob.tunner.server;
 
 import com.lob.tunner.BlockUtils;
 import com.lob.tunner.common.Block;
+import com.lob.tunner.common.ConcurrentIntMap;
 import com.lob.tunner.common.Config;
 import com.lob.tunner.logger.AutoLog;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -23,20 +21,24 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class TunnelManager {
     private TunnelManager() {
-        new TimeoutThread().start();
+        new StatsThread().start();
     }
 
     public static AtomicLong TotalRead = new AtomicLong(0);
     public static AtomicLong TotalWrite = new AtomicLong(0);
-    public final static EventLoopGroup CONNWORKERS = new NioEventLoopGroup(1);
 
     private static final TunnelManager _INST = new TunnelManager();
     public static TunnelManager getInstance() {
         return _INST;
     }
 
+    /**
+     * Connections are started / aborted on every tunnel event loop, lock them by stripes
+     */
+    private static final int _STRIPES = 16;
+
     private final ArrayList<Tunnel> _tunnels = new ArrayList();
-    private final ConcurrentHashMap<Integer, Connection> _connections = new ConcurrentHashMap<>();
+    private final ConcurrentIntMap<Connection> _connections = new ConcurrentIntMap<>(_STRIPES);
 
     public void start() {
         AutoLog.INFO.log("Starting Tunnel Manager ...");
@@ -53,16 +55,63 @@ public class TunnelManager {
         _tunnels.add(tunnel);
     }
 
+    /**
+     * Find a connection, whichever tunnel it's on
+     * @param conId
+     * @return null if not existing
+     */
+    public Connection connection(int conId) {
+        return _connections.get(conId);
+    }
+
     public void close(Connection conn) {
         _connections.remove(conn.identifier());
 
         Tunnel tunnel = conn.tunnel();
-        tunnel.write(new Block(conn.identifier(), BlockUtils.control(Block.CODE_ABORT)));
+        tunnel.write(Block.abort(conn.identifier(), conn.sent()));
         tunnel.remove(conn);
+        conn.unstripe();
 
         conn.shutdown();
     }
 
+    /**
+     * Close a connection aborted by client, once all it sent is written
+     * @param conn
+     */
+    public void aborted(Connection conn) {
+        if(_connections.remove(conn.identifier()) == null) {
+            return;
+        }
+
+        AutoLog.INFO.log("Shutting down one connection %08x aborted by client ...", conn.identifier());
+        conn.tunnel().remove(conn);
+        conn.unstripe();
+        conn.shutdown();
+    }
+
+    /**
+     * Start a connection on a tunnel and connect it to proxy
+     * @param tunnel
+     * @param conId
+     * @param weight
+     * @return
+     */
+    private Connection _start(Tunnel tunnel, int conId, int weight) {
+        Connection conn = new Connection(conId, weight);
+        _connections.put(conId, conn);
+
+        // allow multiplexing on this tunnel, the connection then lives on the tunnel's event loop
+        tunnel.multiplex(conn);
+        conn.arm();
+        conn.start();
+
+        // and try connect to target
+        conn.connect(Config.getProxyAddress(), Config.getProxyPort());
+
+        return conn;
+    }
+
     /**
      * Handle all control blocks received!!!
      *
@@ -86,61 +135,88 @@ public class TunnelManager {
                 }
                 else {
                     AutoLog.INFO.log("Starting one new connection %08x on tunnel %08x ...", conId, tunnel.identifier());
-                    Connection conn = new Connection(conId);
-                    _connections.put(conId, conn);
-
-                    // try connect to target
-                    conn.connect(Config.getProxyAddress(), Config.getProxyPort());
-
-                    // and allow multiplexing on this tunnel
-                    tunnel.multiplex(conn);
+                    _start(tunnel, conId, Block.weightOf(data));
                 }
                 break;
             case Block.CODE_RESUME:
-                if(!_connections.containsKey(conId)) {
+                Connection resumed = _connections.get(conId);
+                int next = Block.sequenceOf(data);
+                if(resumed == null && next >= 0 && (Block.resumeFlagsOf(data) & Block.RESUME_UNACKNOWLEDGED) != 0) {
+                    // tunnel failed before CODE_START made it, client replays from the very first block. Otherwise
+                    // the connection is closed already, its CODE_ABORT lost with the tunnel
+                    AutoLog.INFO.log("Starting connection %08x resumed on tunnel %08x ...", conId, tunnel.identifier());
+                    resumed = _start(tunnel, conId, Block.resumeWeightOf(data));
+                }
+
+                if(resumed == null) {
                     AutoLog.ERROR.log("Resuming non-existing connection %08x", conId);
-                    throw new RuntimeException(String.format("Try resuming non-existing connection %08x", conId));
+                    tunnel.write(new Block(conId, BlockUtils.control(Block.CODE_ABORT)));
+                    break;
+                }
+
+                // move to this tunnel only, blocks still coming on the old ones are put back in sequence by connection
+                resumed.unstripe();
+
+                Tunnel old = resumed.tunnel();
+                if(old != tunnel) {
+                    AutoLog.INFO.log("Moving connection %08x from tunnel %08x to tunnel %08x ...", conId, old.identifier(), tunnel.identifier());
+                    old.remove(resumed);
+                    tunnel.multiplex(resumed);
                 }
 
-                // we need to abort from old tunnel if there's and associate it with new one
-                // TODO
-                AutoLog.ERROR.log("Resuming connection on different tunnel not supported!!!");
-                tunnel.write(new Block(conId, BlockUtils.control(Block.CODE_ABORT)));
+                if(next >= 0) {
+                    // the tunnel it was on failed at client side, send again what never made it
+                    resumed.resumed(next);
+                }
+                break;
+            case Block.CODE_HELLO:
+                tunnel.hello(Block.featuresOf(data));
+                break;
+            case Block.CODE_STRIPE:
+                Connection striped = _connections.get(conId);
+                if(striped == null) {
+                    AutoLog.WARN.log("Striping non-existing connection %08x on tunnel %08x", conId, tunnel.identifier());
+                }
+                else if(striped.tunnel() != tunnel) {
+                    AutoLog.INFO.log("Striping connection %08x over tunnel %08x too ...", conId, tunnel.identifier());
+                    striped.stripe(tunnel);
+                }
                 break;
             case Block.CODE_ABORT:
-                if(!_connections.containsKey(conId)) {
+                Connection aborted = _connections.get(conId);
+                if(aborted == null) {
                     AutoLog.WARN.log("Abort non-existing connection %08x on tunnel %08x", conId, tunnel.identifier());
-                    break;
                 }
                 else {
-                    AutoLog.INFO.log("Shutting down one connection %08x on tunnel %08x ...", conId, tunnel.identifier());
-                    Connection conn = _connections.remove(conId);
-                    tunnel.remove(conn);
-                    conn.shutdown();
+                    aborted.aborted(Block.sequenceOf(data));
+                }
+                break;
+            case Block.CODE_CREDIT:
+                Connection conn = _connections.get(conId);
+                if(conn != null) {
+                    conn.credit(Block.creditOf(data), Block.ackOf(data));
                 }
                 break;
             case Block.CODE_ECHO:
-                // todo: random payload?
-                tunnel.write(new Block(0, BlockUtils.control(Block.CODE_ECHO)));
+                long timestamp = Block.timestampOf(data);
+                if(timestamp >= 0) {
+                    // load probe from client, answer with our side of the tunnel
+                    tunnel.write(Block.load(timestamp, tunnel.connections(), tunnel.pending()));
+                }
+                else {
+                    // todo: random payload?
+                    tunnel.write(new Block(0, BlockUtils.control(Block.CODE_ECHO)));
+                }
                 break;
             default:
                 break;
         }
     }
 
-    private void _checkTimeouts() {
-        // for connections without active for more than 30 seconds, let's kill them ...
-        long now = System.currentTimeMillis();
-        long timeout = now - 30 * 1000;
-
-        _connections.values().forEach(conn -> {
-            if(conn.lastRead() < timeout && conn.lastWrite() < timeout) {
-                conn.timeout(now);
-            }
-        });
-    }
-
-    class TimeoutThread extends Thread {
+    /**
+     * Print statistics every 30 seconds, idle connections are timed out by Timeoutable
+     */
+    class StatsThread extends Thread {
         @Override
         public void run() {
             while(true) {
@@ -151,8 +227,6 @@ public class TunnelManager {
                     // ignore
                 }
 
-                _checkTimeouts();
-
                 System.out.println(String.format(
                         "=====================================================================\n" +
                                 " Total Connections=%d, Total Read=%d bytes, Total Write=%d bytes\n" +
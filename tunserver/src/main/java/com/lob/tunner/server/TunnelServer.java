@@ -3,6 +3,9 @@ package com.lob.tunner.server;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import com.lob.tunner.common.Config;
+import com.lob.tunner.common.EventLoops;
+import com.lob.tunner.handlers.BlockDecoder;
+import com.lob.tunner.handlers.BlockEncoder;
 import com.lob.tunner.logger.AutoLog;
 import com.lob.tunner.server.echo.EchoServer;
 import io.netty.bootstrap.ServerBootstrap;
@@ -10,9 +13,7 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -20,10 +21,14 @@ import org.slf4j.LoggerFactory;
  * one of the tunnels
  */
 public class TunnelServer {
-    public final static EventLoopGroup TUNWORKERS = new NioEventLoopGroup(1);
+    /**
+     * Event loops of tunnels, proxy connections are registered on the event loop of their tunnel
+     */
+    public static EventLoopGroup TUNWORKERS = null;
 
     private final static TunnelManager _tunnelManager = TunnelManager.getInstance();
-    private final static EventLoopGroup BOSS = new NioEventLoopGroup(1);
+    private static EventLoopGroup BOSS = null;
+    private final static BlockEncoder _ENCODER = new BlockEncoder();
 
     public static void main(String[] args) throws Exception {
         AutoLog.INFO.log("Disable logging ...");
@@ -32,6 +37,10 @@ public class TunnelServer {
 
         Config.initialize(args, false);
 
+        BOSS = EventLoops.newGroup(1);
+        TUNWORKERS = EventLoops.newGroup(Config.getWorkers());
+        AutoLog.INFO.log("Using %s transport ...", EventLoops.isEpoll() ? "epoll" : "nio");
+
         try {
             if(Config.isTestMode()) {
                 // for testing purpose
@@ -59,13 +68,16 @@ public class TunnelServer {
              */
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(BOSS, TUNWORKERS)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(EventLoops.serverChannel())
                     .option(ChannelOption.SO_BACKLOG, 1024)
                     .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 1000)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel channel) {
-                            channel.pipeline().addLast(new TunnelHandler(channel));
+                            channel.pipeline()
+                                    .addLast(new BlockDecoder(Config.isCutThrough()))
+                                    .addLast(_ENCODER)
+                                    .addLast(new TunnelHandler(channel));
                         }
                     });
 
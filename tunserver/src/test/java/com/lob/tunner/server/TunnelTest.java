@@ -0,0 +1,76 @@
+package com.lob.tunner.server;
+
+import com.lob.tunner.common.Block;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TunnelTest {
+    private EventLoopGroup _group;
+
+    @Before
+    public void setUp() {
+        _group = new NioEventLoopGroup(1);
+    }
+
+    @After
+    public void tearDown() {
+        _group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    /**
+     * Channel registered on the loop, never connected
+     */
+    private SocketChannel _channel() {
+        SocketChannel channel = new NioSocketChannel();
+        _group.register(channel).syncUninterruptibly();
+        return channel;
+    }
+
+    /**
+     * Connection multiplexed on the tunnel with a proxy channel
+     */
+    private SocketChannel _connect(Tunnel tunnel, int id) {
+        SocketChannel proxy = _channel();
+        Connection conn = new Connection(id, 1);
+        tunnel.multiplex(conn);
+        conn.channel(proxy);
+        return proxy;
+    }
+
+    @Test
+    public void shutsDownConnectionsIfNotResumable() {
+        Tunnel tunnel = new Tunnel(_channel());
+        SocketChannel first = _connect(tunnel, 1);
+        SocketChannel second = _connect(tunnel, 2);
+
+        tunnel.shutdown();
+
+        assertTrue(first.closeFuture().awaitUninterruptibly(1000));
+        assertTrue(second.closeFuture().awaitUninterruptibly(1000));
+        assertEquals(0, tunnel.connections());
+    }
+
+    @Test
+    public void keepsConnectionsToResumeIfResumable() {
+        Tunnel tunnel = new Tunnel(_channel());
+        tunnel.hello(Block.FEATURE_RESUME);
+        SocketChannel proxy = _connect(tunnel, 1);
+
+        tunnel.shutdown();
+
+        assertFalse(proxy.closeFuture().awaitUninterruptibly(200));
+        assertTrue(proxy.isOpen());
+        proxy.close().syncUninterruptibly();
+    }
+}